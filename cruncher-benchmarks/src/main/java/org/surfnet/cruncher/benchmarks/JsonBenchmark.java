@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.surfnet.cruncher.model.LoginData;
+import org.surfnet.cruncher.model.VersStatistic;
+
+/**
+ * Serializing the responses of /v1/logins and /v1/versstats/batch, both as a
+ * whole (like Jersey does) and element by element on a single generator (like
+ * the streaming responses do).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  @Param({"10", "1000"})
+  public int pairs;
+
+  @Param({"31", "365"})
+  public int points;
+
+  @Param({"100"})
+  public int institutions;
+
+  @Param({"12"})
+  public int months;
+
+  private List<LoginData> logins;
+  private List<VersStatistic> versStatistics;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42L);
+    logins = new ArrayList<LoginData>(pairs);
+    for (int i = 0; i < pairs; i++) {
+      LoginData loginData = new LoginData();
+      loginData.setIdpEntityId("https://idp" + i + ".example.org/metadata");
+      loginData.setIdpname("IdP " + i);
+      loginData.setSpEntityId("https://sp" + i + ".example.org/metadata");
+      loginData.setSpName("SP " + i);
+      int[] dataPoints = new int[points];
+      int total = 0;
+      for (int j = 0; j < points; j++) {
+        dataPoints[j] = random.nextInt(1000);
+        total += dataPoints[j];
+      }
+      loginData.setDataPoints(dataPoints);
+      loginData.setTotal(total);
+      loginData.setPointStart(Workload.START);
+      loginData.setPointEnd(Workload.START + points * 24L * 60L * 60L * 1000L);
+      loginData.setPointInterval(24L * 60L * 60L * 1000L);
+      logins.add(loginData);
+    }
+    versStatistics = new ArrayList<VersStatistic>(months);
+    for (int month = 1; month <= months; month++) {
+      VersStatistic versStatistic = new VersStatistic();
+      versStatistic.setSpEntityId("https://sp.example.org/metadata");
+      versStatistic.setMonth((month - 1) % 12 + 1);
+      versStatistic.setYear(2013);
+      versStatistic.setTotalLogins(random.nextInt(1000000));
+      versStatistic.setTotalUniqueLogins(random.nextInt(10000));
+      for (int i = 0; i < institutions; i++) {
+        versStatistic.addInstitutionLoginCount("institution" + i, (long) random.nextInt(10000));
+      }
+      versStatistics.add(versStatistic);
+    }
+  }
+
+  @Benchmark
+  public byte[] loginsAsList() throws IOException {
+    return OBJECT_MAPPER.writeValueAsBytes(logins);
+  }
+
+  @Benchmark
+  public byte[] loginsStreamed() throws IOException {
+    return streamed(logins);
+  }
+
+  @Benchmark
+  public byte[] versStatisticsAsList() throws IOException {
+    return OBJECT_MAPPER.writeValueAsBytes(versStatistics);
+  }
+
+  @Benchmark
+  public byte[] versStatisticsStreamed() throws IOException {
+    return streamed(versStatistics);
+  }
+
+  private byte[] streamed(List<?> elements) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    JsonGenerator generator = OBJECT_MAPPER.getJsonFactory().createJsonGenerator(output, JsonEncoding.UTF8);
+    generator.writeStartArray();
+    for (Object element : elements) {
+      OBJECT_MAPPER.writeValue(generator, element);
+    }
+    generator.writeEndArray();
+    generator.close();
+    return output.toByteArray();
+  }
+}
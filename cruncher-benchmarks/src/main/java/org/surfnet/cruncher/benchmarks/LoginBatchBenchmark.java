@@ -0,0 +1,94 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.surfnet.cruncher.message.LoginBatch;
+import org.surfnet.cruncher.model.LoginEntry;
+import org.surfnet.cruncher.repository.AggregationShard;
+
+/**
+ * Reducing a batch of logins to the rows the aggregator writes, for the whole
+ * login-log and for one of a number of shards. The number of distinct keys, and
+ * so the work per login, depends on the entities, the skew and the number of
+ * days the batch spans.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoginBatchBenchmark {
+
+  @Param({"1000", "32000"})
+  public int batchSize;
+
+  @Param({"200"})
+  public int idps;
+
+  @Param({"1000"})
+  public int sps;
+
+  @Param({"10000", "1000000"})
+  public int users;
+
+  @Param({"0.0", "1.2"})
+  public double skew;
+
+  @Param({"1", "30"})
+  public int days;
+
+  @Param({"4"})
+  public int shards;
+
+  private List<LoginEntry> entries;
+  private AggregationShard shard;
+
+  @Setup
+  public void setUp() {
+    entries = new Workload(idps, sps, users, skew, Workload.START, days, batchSize, 42L).next(batchSize);
+    shard = new AggregationShard(0, shards, 0L, null, null);
+  }
+
+  @Benchmark
+  public LoginBatch reduce() {
+    return LoginBatch.reduce(entries);
+  }
+
+  @Benchmark
+  public LoginBatch reduceShard() {
+    LoginBatch batch = new LoginBatch(shard);
+    for (LoginEntry le : entries) {
+      batch.add(le);
+    }
+    return batch;
+  }
+}
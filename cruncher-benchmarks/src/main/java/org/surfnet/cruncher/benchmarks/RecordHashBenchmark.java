@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.benchmarks;
+
+import static org.surfnet.cruncher.message.Aggregator.aggregationRecordHash;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.surfnet.cruncher.model.LoginEntry;
+
+/**
+ * The record hashes the aggregator computes for every login: one of the (day,
+ * idp, sp), one of the (user, sp) and one of the (user, sp, idp, month). Scored
+ * per login.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordHashBenchmark {
+  private static final int LOGINS = 1000;
+
+  @Param({"10", "200"})
+  public int idps;
+
+  @Param({"10", "1000"})
+  public int sps;
+
+  @Param({"1000"})
+  public int users;
+
+  @Param({"1.0"})
+  public double skew;
+
+  private List<LoginEntry> entries;
+
+  @Setup
+  public void setUp() {
+    entries = new Workload(idps, sps, users, skew, Workload.START, 30, LOGINS, 42L).next(LOGINS);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LOGINS)
+  public void dailyHash(Blackhole blackhole) {
+    for (LoginEntry le : entries) {
+      blackhole.consume(aggregationRecordHash(le));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LOGINS)
+  public void userHash(Blackhole blackhole) {
+    for (LoginEntry le : entries) {
+      blackhole.consume(aggregationRecordHash(le.getUserId(), le.getSpEntityId()));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LOGINS)
+  public void uniqueLoginHash(Blackhole blackhole) {
+    for (LoginEntry le : entries) {
+      blackhole.consume(aggregationRecordHash(le.getUserId(), le.getSpEntityId(), le.getIdpEntityId(), 2013, 1));
+    }
+  }
+}
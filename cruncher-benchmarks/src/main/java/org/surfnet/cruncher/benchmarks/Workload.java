@@ -0,0 +1,115 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.surfnet.cruncher.model.LoginEntry;
+
+/**
+ * A synthetic login-log. The IdPs, SPs and users a login is of are drawn from
+ * Zipf distributions, so a few of them have most of the logins, like in
+ * production. The same parameters and seed always give the same logins.
+ */
+public class Workload {
+  private static final long DAY = 24L * 60L * 60L * 1000L;
+  /**
+   * 2013-01-01 00:00 UTC
+   */
+  public static final long START = 1356998400000L;
+
+  private final Random random;
+  private final Zipf idps;
+  private final Zipf sps;
+  private final Zipf users;
+  private final long start;
+  private final long interval;
+  private long nextId = 1;
+
+  /**
+   * @param idps nr of distinct IdPs
+   * @param sps nr of distinct SPs
+   * @param users nr of distinct users
+   * @param skew exponent of the Zipf distributions, 0 is uniform
+   * @param start time of the first login
+   * @param days nr of days the logins are spread over
+   * @param logins nr of logins in those days
+   * @param seed seed of the random generator
+   */
+  public Workload(int idps, int sps, int users, double skew, long start, int days, int logins, long seed) {
+    this.random = new Random(seed);
+    this.idps = new Zipf(idps, skew);
+    this.sps = new Zipf(sps, skew);
+    this.users = new Zipf(users, skew);
+    this.start = start;
+    this.interval = Math.max(1L, days * DAY / Math.max(1, logins));
+  }
+
+  /**
+   * The next logins, in order of their id and login time.
+   */
+  public List<LoginEntry> next(int nr) {
+    List<LoginEntry> entries = new ArrayList<LoginEntry>(nr);
+    for (int i = 0; i < nr; i++) {
+      long id = nextId++;
+      long time = start + (id - 1) * interval;
+      int idp = idps.next(random);
+      int sp = sps.next(random);
+      entries.add(new LoginEntry(id, "https://idp" + idp + ".example.org/metadata", "IdP " + idp, new Date(time),
+          "https://sp" + sp + ".example.org/metadata", "SP " + sp, "urn:collab:person:idp" + idp + ":user" + users.next(random)));
+    }
+    return entries;
+  }
+
+  /**
+   * Draws ranks 0 (most frequent) to n - 1 with a probability proportional to
+   * 1 / (rank + 1)^skew, by a binary search on the cumulative probabilities.
+   */
+  public static class Zipf {
+    private final double[] cumulative;
+
+    public Zipf(int n, double skew) {
+      cumulative = new double[Math.max(1, n)];
+      double sum = 0;
+      for (int i = 0; i < cumulative.length; i++) {
+        sum += 1 / Math.pow(i + 1, skew);
+        cumulative[i] = sum;
+      }
+      for (int i = 0; i < cumulative.length; i++) {
+        cumulative[i] /= sum;
+      }
+    }
+
+    public int next(Random random) {
+      double p = random.nextDouble();
+      int low = 0;
+      int high = cumulative.length - 1;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (cumulative[mid] < p) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.LocalDate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.surfnet.cruncher.model.LoginData;
+
+/**
+ * Grouping the rows of the logins query into a LoginData per (idp, sp), the
+ * way {@link StatisticsRepositoryImpl#streamLogins} does it, without the
+ * database. Lives in the repository package as LoginSeries is package private.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoginSeriesBenchmark {
+
+  @Param({"10", "1000"})
+  public int pairs;
+
+  @Param({"31", "365"})
+  public int days;
+
+  @Param({"DAY", "WEEK", "MONTH"})
+  public LoginInterval interval;
+
+  /* fraction of the periods that have logins, the others have no row */
+  @Param({"0.1", "1.0"})
+  public double density;
+
+  private LocalDate start;
+  private LocalDate end;
+  private LocalDate firstPeriod;
+  /* the rows in query order, as (pair, period offset, count) */
+  private int[][] rows;
+  private String[] entityIds;
+
+  @Setup
+  public void setUp() {
+    start = new LocalDate(2013, 1, 1);
+    end = start.plusDays(days - 1);
+    firstPeriod = interval.periodStart(start);
+    int periods = interval.periodsBetween(firstPeriod, interval.periodStart(end)) + 1;
+    Random random = new Random(42L);
+    List<int[]> result = new ArrayList<int[]>();
+    for (int pair = 0; pair < pairs; pair++) {
+      for (int period = 0; period < periods; period++) {
+        if (random.nextDouble() < density) {
+          result.add(new int[] {pair, period, 1 + random.nextInt(1000)});
+        }
+      }
+    }
+    rows = result.toArray(new int[result.size()][]);
+    entityIds = new String[pairs * 2];
+    for (int i = 0; i < entityIds.length; i++) {
+      entityIds[i] = "https://entity" + i + ".example.org/metadata";
+    }
+  }
+
+  @Benchmark
+  public List<LoginData> group() {
+    List<LoginData> result = new ArrayList<LoginData>();
+    LoginSeries series = null;
+    int currentPair = -1;
+    for (int[] row : rows) {
+      if (row[0] != currentPair) {
+        if (series != null) {
+          result.add(series.build());
+        }
+        currentPair = row[0];
+        LoginData loginData = new LoginData();
+        loginData.setIdpEntityId(entityIds[currentPair * 2]);
+        loginData.setSpEntityId(entityIds[currentPair * 2 + 1]);
+        series = new LoginSeries(loginData, interval, firstPeriod, end);
+      }
+      /* the query returns the period start as a date, which is converted for every row */
+      series.set(offset(row[1]), row[2]);
+    }
+    if (series != null) {
+      result.add(series.build());
+    }
+    return result;
+  }
+
+  private LocalDate offset(int periods) {
+    switch (interval) {
+    case DAY:
+      return firstPeriod.plusDays(periods);
+    case WEEK:
+      return firstPeriod.plusWeeks(periods);
+    default:
+      return firstPeriod.plusMonths(periods);
+    }
+  }
+}
@@ -20,6 +20,8 @@ package org.surfnet.cruncher;
 
 import nl.surfnet.coin.oauth.OauthClient;
 import org.surfnet.cruncher.model.SpStatistic;
+import org.surfnet.cruncher.model.SpStatisticPage;
+import org.surfnet.cruncher.model.VersStatistic;
 
 import java.util.Date;
 import java.util.List;
@@ -40,5 +42,24 @@ public interface Cruncher {
 
   List<SpStatistic> getRecentLoginsForUser(String userId, String idpEntityId);
 
+  /**
+   * @param limit the max nr of logins on the page
+   * @param cursor the nextCursor of the previous page, null for the first page
+   * @return a page of the logins of the user, most recent first
+   */
+  SpStatisticPage getRecentLoginsForUser(String userId, String idpEntityId, int limit, String cursor);
+
+  /**
+   * @return all logins of the user, most recent first, fetched a page at a time
+   *         while iterating
+   */
+  Iterable<SpStatistic> iterateRecentLoginsForUser(String userId, String idpEntityId, int pageSize);
+
+  /**
+   * @param spEntityIds the SPs to get the statistics of, all SPs if empty
+   * @return the statistics of every SP and month (from start to end, inclusive) with logins
+   */
+  List<VersStatistic> getVersStatistics(int startMonth, int startYear, int endMonth, int endYear, List<String> spEntityIds);
+
   void setOauthClient(OauthClient oc);
 }
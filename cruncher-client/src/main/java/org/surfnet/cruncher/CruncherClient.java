@@ -20,20 +20,27 @@ package org.surfnet.cruncher;
 
 import nl.surfnet.coin.oauth.OauthClient;
 
+import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.StringUtils;
 import org.surfnet.cruncher.model.SpStatistic;
+import org.surfnet.cruncher.model.SpStatisticPage;
+import org.surfnet.cruncher.model.VersStatistic;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 
 public class CruncherClient implements Cruncher {
   private static final Logger LOG = LoggerFactory.getLogger(CruncherClient.class); 
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
   private OauthClient oauthClient;
 
@@ -48,7 +55,7 @@ public class CruncherClient implements Cruncher {
 
   @Override
   public String getLogins(final Date startDate, final Date endDate) {
-    return doJsonGetFromCruncher("/logins?startDate={startDate}&endDate={endDate}", getLoginsVariables(startDate, endDate, null, null));
+    return doJsonGetFromCruncher("/logins?startDate={startDate}&endDate={endDate}&stream=true", getLoginsVariables(startDate, endDate, null, null));
   }
 
   @Override
@@ -80,6 +87,53 @@ public class CruncherClient implements Cruncher {
     return recentLogins;
   }
 
+  @Override
+  public SpStatisticPage getRecentLoginsForUser(String userId, String idpEntityId, int limit, String cursor) {
+    StringBuilder subPath = new StringBuilder("/lastlogin?idpEntityId={idpEntityId}&userId={userId}&limit={limit}");
+    Map<String, Object> variables = new HashMap<String, Object>();
+    variables.put("idpEntityId", idpEntityId);
+    variables.put("userId", userId);
+    variables.put("limit", limit);
+    if (cursor != null) {
+      subPath.append("&cursor={cursor}");
+      variables.put("cursor", cursor);
+    }
+    String json = doJsonGetFromCruncher(subPath.toString(), variables);
+    try {
+      return OBJECT_MAPPER.readValue(json, SpStatisticPage.class);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unexpected response of the cruncher: " + json, e);
+    }
+  }
+
+  @Override
+  public Iterable<SpStatistic> iterateRecentLoginsForUser(final String userId, final String idpEntityId,
+      final int pageSize) {
+    return new Iterable<SpStatistic>() {
+      @Override
+      public Iterator<SpStatistic> iterator() {
+        return new RecentLoginsIterator(userId, idpEntityId, pageSize);
+      }
+    };
+  }
+
+  @Override
+  public List<VersStatistic> getVersStatistics(int startMonth, int startYear, int endMonth, int endYear,
+      List<String> spEntityIds) {
+    StringBuilder subPath = new StringBuilder("/versstats/batch?startMonth={startMonth}&startYear={startYear}" +
+        "&endMonth={endMonth}&endYear={endYear}");
+    Map<String, Object> variables = new HashMap<String, Object>();
+    variables.put("startMonth", startMonth);
+    variables.put("startYear", startYear);
+    variables.put("endMonth", endMonth);
+    variables.put("endYear", endYear);
+    for (int i = 0; i < spEntityIds.size(); i++) {
+      subPath.append("&spEntityId={sp").append(i).append("}");
+      variables.put("sp" + i, spEntityIds.get(i));
+    }
+    return oauthClient.exchange(cruncherBaseLocation + subPath, variables, VersStatistic[].class);
+  }
+
   @Override
   public void setOauthClient(OauthClient oc) {
     this.oauthClient = oc;
@@ -103,6 +157,46 @@ public class CruncherClient implements Cruncher {
     return variables;
   }
 
+  /*
+   * Fetches the next page when the current one is used up
+   */
+  private class RecentLoginsIterator implements Iterator<SpStatistic> {
+    private final String userId;
+    private final String idpEntityId;
+    private final int pageSize;
+    private Iterator<SpStatistic> page;
+    private String nextCursor;
+
+    private RecentLoginsIterator(String userId, String idpEntityId, int pageSize) {
+      this.userId = userId;
+      this.idpEntityId = idpEntityId;
+      this.pageSize = pageSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (page == null || (!page.hasNext() && nextCursor != null)) {
+        SpStatisticPage next = getRecentLoginsForUser(userId, idpEntityId, pageSize, nextCursor);
+        page = next.getSpStatistics().iterator();
+        nextCursor = next.getNextCursor();
+      }
+      return page.hasNext();
+    }
+
+    @Override
+    public SpStatistic next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return page.next();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
   public void setCruncherBaseLocation(String cruncherBaseLocation) {
     this.cruncherBaseLocation = cruncherBaseLocation;
   }
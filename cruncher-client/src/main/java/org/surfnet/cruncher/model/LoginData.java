@@ -18,10 +18,16 @@
  */
 package org.surfnet.cruncher.model;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
 
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonProperty;
+
 public class LoginData {
+  private static final int[] NO_DATA = new int[0];
+
   private String spName;
   private String idpname;
   private String spEntityId;
@@ -30,7 +36,8 @@ public class LoginData {
   private long pointEnd;
   private long pointInterval;
   private int total;
-  private List<Integer> data;
+  private int[] data = NO_DATA;
+  private int dataSize = 0;
   
   public String getSpName() {
     return spName;
@@ -80,11 +87,28 @@ public class LoginData {
     this.pointEnd = pointEnd;
   }
   
+  /**
+   * @return the data points as a modifiable list, backed by the int array of
+   *         {@link #getDataPoints()}
+   */
+  @JsonIgnore
   public List<Integer> getData() {
-    if (null == data) {
-      data = new ArrayList<Integer>();
-    }
-    return data;
+    return new DataList();
+  }
+
+  /**
+   * The data points as serialized to and from json, without boxing every
+   * count. The returned array may be the internal one, do not modify it.
+   */
+  @JsonProperty("data")
+  public int[] getDataPoints() {
+    return dataSize == data.length ? data : Arrays.copyOf(data, dataSize);
+  }
+
+  @JsonProperty("data")
+  public void setDataPoints(int[] dataPoints) {
+    this.data = dataPoints == null ? NO_DATA : dataPoints;
+    this.dataSize = this.data.length;
   }
 
   public int getTotal() {
@@ -112,4 +136,56 @@ public class LoginData {
     }
     return result;
   }
+
+  /*
+   * List view on the data points, adding grows the array
+   */
+  private class DataList extends AbstractList<Integer> {
+    @Override
+    public Integer get(int index) {
+      checkIndex(index, dataSize);
+      return data[index];
+    }
+
+    @Override
+    public Integer set(int index, Integer element) {
+      checkIndex(index, dataSize);
+      int previous = data[index];
+      data[index] = element;
+      return previous;
+    }
+
+    @Override
+    public void add(int index, Integer element) {
+      checkIndex(index, dataSize + 1);
+      if (dataSize == data.length) {
+        data = Arrays.copyOf(data, Math.max(16, dataSize * 2));
+      }
+      System.arraycopy(data, index, data, index + 1, dataSize - index);
+      data[index] = element;
+      dataSize += 1;
+      modCount += 1;
+    }
+
+    @Override
+    public Integer remove(int index) {
+      checkIndex(index, dataSize);
+      int previous = data[index];
+      System.arraycopy(data, index + 1, data, index, dataSize - index - 1);
+      dataSize -= 1;
+      modCount += 1;
+      return previous;
+    }
+
+    @Override
+    public int size() {
+      return dataSize;
+    }
+
+    private void checkIndex(int index, int bound) {
+      if (index < 0 || index >= bound) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + dataSize);
+      }
+    }
+  }
 }
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.surfnet.cruncher.model;
+
+/**
+ * A login as EngineBlock pushes it to the cruncher, the login time is in
+ * milliseconds since the epoch.
+ */
+public class LoginEvent {
+  private long loginTime;
+  private String userId;
+  private String idpEntityId;
+  private String idpEntityName;
+  private String spEntityId;
+  private String spEntityName;
+
+  public LoginEvent() {
+  }
+
+  public LoginEvent(long loginTime, String userId, String idpEntityId, String idpEntityName, String spEntityId,
+      String spEntityName) {
+    this.loginTime = loginTime;
+    this.userId = userId;
+    this.idpEntityId = idpEntityId;
+    this.idpEntityName = idpEntityName;
+    this.spEntityId = spEntityId;
+    this.spEntityName = spEntityName;
+  }
+
+  public long getLoginTime() {
+    return loginTime;
+  }
+
+  public void setLoginTime(long loginTime) {
+    this.loginTime = loginTime;
+  }
+
+  public String getUserId() {
+    return userId;
+  }
+
+  public void setUserId(String userId) {
+    this.userId = userId;
+  }
+
+  public String getIdpEntityId() {
+    return idpEntityId;
+  }
+
+  public void setIdpEntityId(String idpEntityId) {
+    this.idpEntityId = idpEntityId;
+  }
+
+  public String getIdpEntityName() {
+    return idpEntityName;
+  }
+
+  public void setIdpEntityName(String idpEntityName) {
+    this.idpEntityName = idpEntityName;
+  }
+
+  public String getSpEntityId() {
+    return spEntityId;
+  }
+
+  public void setSpEntityId(String spEntityId) {
+    this.spEntityId = spEntityId;
+  }
+
+  public String getSpEntityName() {
+    return spEntityName;
+  }
+
+  public void setSpEntityName(String spEntityName) {
+    this.spEntityName = spEntityName;
+  }
+
+  @Override
+  public String toString() {
+    return "Login at " + loginTime + " of " + userId + " on " + idpEntityId + " sp " + spEntityId;
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.surfnet.cruncher.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A page of the services a user logged in to, most recent first. The
+ * nextCursor is an opaque value that selects the next page, it is null on the
+ * last page.
+ */
+public class SpStatisticPage {
+  private List<SpStatistic> spStatistics = new ArrayList<SpStatistic>();
+  private String nextCursor;
+
+  public SpStatisticPage() {
+  }
+
+  public SpStatisticPage(List<SpStatistic> spStatistics, String nextCursor) {
+    this.spStatistics = spStatistics;
+    this.nextCursor = nextCursor;
+  }
+
+  public List<SpStatistic> getSpStatistics() {
+    return spStatistics;
+  }
+
+  public void setSpStatistics(List<SpStatistic> spStatistics) {
+    this.spStatistics = spStatistics;
+  }
+
+  public String getNextCursor() {
+    return nextCursor;
+  }
+
+  public void setNextCursor(String nextCursor) {
+    this.nextCursor = nextCursor;
+  }
+}
@@ -21,11 +21,46 @@ package org.surfnet.cruncher.model;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+import org.codehaus.jackson.map.annotate.JsonSerialize.Inclusion;
+
+/**
+ * Logins of a single SP in a single month. The SP and month are only set in
+ * the results of the batch request, which covers multiple of them.
+ */
+@JsonSerialize(include = Inclusion.NON_NULL)
 public class VersStatistic {
+  private String spEntityId;
+  private Integer month;
+  private Integer year;
   private long totalLogins = 0L;
   private long totalUniqueLogins = 0L;
   private Map<String, Long> institutionLogins = new HashMap<String,Long>();
   
+  public String getSpEntityId() {
+    return spEntityId;
+  }
+
+  public void setSpEntityId(String spEntityId) {
+    this.spEntityId = spEntityId;
+  }
+
+  public Integer getMonth() {
+    return month;
+  }
+
+  public void setMonth(Integer month) {
+    this.month = month;
+  }
+
+  public Integer getYear() {
+    return year;
+  }
+
+  public void setYear(Integer year) {
+    this.year = year;
+  }
+
   public long getTotalLogins() {
     return totalLogins;
   }
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package db.migration.mysql;
+
+import java.util.Date;
+
+import org.joda.time.LocalDate;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.surfnet.cruncher.repository.PartitionManager;
+
+import com.googlecode.flyway.core.api.migration.spring.SpringJdbcMigration;
+
+/**
+ * Partitions the daily and rollup logins per month of entryday, see
+ * {@link PartitionManager}. The month partitions cover every month that has
+ * data up to the current one, so the max partition starts out empty and the
+ * partition manager only has to split off the coming months. Every unique key
+ * of a partitioned table has to include the partitioning column.
+ */
+public class V4_11_0__partition_per_month implements SpringJdbcMigration {
+
+  @Override
+  public void migrate(JdbcTemplate jdbcTemplate) throws Exception {
+    jdbcTemplate.execute("ALTER TABLE aggregated_log_logins DROP PRIMARY KEY, ADD PRIMARY KEY (id, entryday), " +
+        "DROP INDEX COMPOUND_AGGREGATED_DATA, ADD UNIQUE KEY COMPOUND_AGGREGATED_DATA (datespidphash, entryday)");
+    jdbcTemplate.execute("ALTER TABLE aggregated_log_logins_rollup DROP PRIMARY KEY, ADD PRIMARY KEY (id, entryday)");
+
+    LocalDate currentMonth = new LocalDate().withDayOfMonth(1);
+    LocalDate firstMonth = currentMonth;
+    LocalDate bound = currentMonth.plusMonths(1);
+    for (String table : PartitionManager.PARTITIONED_TABLES) {
+      Date first = jdbcTemplate.queryForObject("select min(entryday) from " + table, Date.class);
+      Date last = jdbcTemplate.queryForObject("select max(entryday) from " + table, Date.class);
+      if (first != null && new LocalDate(first).isBefore(firstMonth)) {
+        firstMonth = new LocalDate(first).withDayOfMonth(1);
+      }
+      if (last != null && !new LocalDate(last).isBefore(bound)) {
+        bound = new LocalDate(last).withDayOfMonth(1).plusMonths(1);
+      }
+    }
+    for (String table : PartitionManager.PARTITIONED_TABLES) {
+      jdbcTemplate.execute(PartitionManager.partitionStatement(table, firstMonth, bound));
+    }
+  }
+}
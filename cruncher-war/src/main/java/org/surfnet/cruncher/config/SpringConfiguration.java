@@ -33,11 +33,13 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.EnableMBeanExport;
 import org.springframework.context.annotation.ImportResource;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.core.env.Environment;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jmx.support.RegistrationPolicy;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
@@ -48,6 +50,7 @@ import com.googlecode.flyway.core.Flyway;
 
 @EnableScheduling
 @EnableTransactionManagement
+@EnableMBeanExport(registration = RegistrationPolicy.IGNORE_EXISTING)
 @Configuration
 @PropertySource({"classpath:application.properties","classpath:cruncher.properties"})
 @ImportResource("classpath:aggregationScheduling.xml")
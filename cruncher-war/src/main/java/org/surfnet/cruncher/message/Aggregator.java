@@ -16,41 +16,95 @@
 
 package org.surfnet.cruncher.message;
 
-import org.apache.commons.codec.digest.DigestUtils;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.dao.PessimisticLockingFailureException;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
+import org.joda.time.LocalDate;
+import org.surfnet.cruncher.message.LoginBatch.DailyLogins;
+import org.surfnet.cruncher.message.LoginBatch.UniqueLogin;
 import org.surfnet.cruncher.model.LoginEntry;
+import org.surfnet.cruncher.repository.AggregationShard;
+import org.surfnet.cruncher.repository.LoginEntryHandler;
+import org.surfnet.cruncher.repository.QueryResultCache;
 import org.surfnet.cruncher.repository.StatisticsRepository;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.inject.Inject;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Component("aggregator")
+@ManagedResource(objectName = "org.surfnet.cruncher:name=Aggregator")
 public class Aggregator {
-  private static final DateTimeFormatter dateformat = DateTimeFormat.forPattern("yyyy-MM-dd");
   private static final Logger LOG = LoggerFactory.getLogger(Aggregator.class);
+
+  /**
+   * Nr of times a batch is retried after a lock wait timeout or deadlock
+   */
+  private static final int LOCK_RETRIES = 5;
   
-  public static String aggregationRecordHash(LoginEntry le) {
+  public static byte[] aggregationRecordHash(LoginEntry le) {
     return aggregationRecordHash(le.getIdpEntityId(), le.getSpEntityId(), le.getLoginDate());
   }
 
-  public static String aggregationRecordHash(String idpEntityId, String spEntityId, Date loginDate) {
-    String input = dateformat.print(loginDate.getTime()) + "!" + idpEntityId + "!" + spEntityId;
-    return DigestUtils.sha1Hex(input);
+  public static byte[] aggregationRecordHash(String idpEntityId, String spEntityId, Date loginDate) {
+    return aggregationRecordHash(idpEntityId, spEntityId, loginDate.getTime());
+  }
+
+  /**
+   * @return the SHA-1 of 'yyyy-MM-dd!idp!sp', the key of the aggregated_log_logins record
+   */
+  public static byte[] aggregationRecordHash(String idpEntityId, String spEntityId, long loginTime) {
+    return RecordHasher.get().hash(idpEntityId, spEntityId, loginTime);
+  }
+
+  /**
+   * @return the SHA-1 of the entityId, the key of the entity record
+   */
+  public static byte[] entityHash(String entityId) {
+    return RecordHasher.get().hash(entityId);
+  }
+
+  /**
+   * @return the SHA-1 of 'user!sp', the key of the user_log_logins record
+   */
+  public static byte[] aggregationRecordHash(String userId, String spEntityId) {
+    return RecordHasher.get().hash(userId, spEntityId);
   }
 
-  public static String aggregationRecordHash(String userId, String spEntityId) {
-    String input = userId + "!" + spEntityId;
-    return DigestUtils.sha1Hex(input);
+  /**
+   * @return the SHA-1 of 'yyyy-MM!user!sp!idp', the key of the user_unique_logins_cache record
+   */
+  public static byte[] aggregationRecordHash(String userId, String spEntityId, String idpEntityId, int year, int month) {
+    return RecordHasher.get().hash(userId, spEntityId, idpEntityId, year, month);
   }
 
   @Inject
@@ -59,62 +113,400 @@ public class Aggregator {
   @Inject
   private TransactionTemplate transactionTemplate;
 
+  @Inject
+  private QueryResultCache queryResultCache;
+
   @Value("${aggregation.batch-size}")
   private int batchSize;
 
   @Value("${aggregation.enabled}")
   private boolean enabled;
 
+  @Value("${aggregation.catchup.enabled}")
+  private boolean catchUpEnabled;
+
+  @Value("${aggregation.catchup.threshold}")
+  private long catchUpThreshold;
+
+  @Value("${aggregation.catchup.max-batch-size}")
+  private int catchUpMaxBatchSize;
+
+  @Value("${aggregation.catchup.max-duration}")
+  private long catchUpMaxDuration;
+
+  @Value("${aggregation.pipeline.enabled}")
+  private boolean pipelineEnabled;
+
+  @Value("${aggregation.pipeline.queue-size}")
+  private int pipelineQueueSize;
+
+  @Value("${unique-logins.estimated}")
+  private boolean uniqueLoginsEstimated;
+
+  @Value("${aggregation.shards}")
+  private int shards;
+
+  @Value("${aggregation.lease-duration}")
+  private long leaseDuration;
+
+  @Value("${aggregation.workers}")
+  private int workers;
+
+  private final ExecutorService readerExecutor = Executors.newSingleThreadExecutor();
+
+  /**
+   * Crunches the shards of a page in parallel, null when there is a single worker
+   */
+  private ExecutorService workerExecutor;
+
+  /**
+   * Identifies this node in the leases of the shards
+   */
+  private final String nodeId = ManagementFactory.getRuntimeMXBean().getName();
+
+  private final Lock crunching = new ReentrantLock();
+  private final Random random = new Random();
+  private final AtomicLong shardsLeasedElsewhere = new AtomicLong();
+  private final AtomicLong leasesLost = new AtomicLong();
+  private volatile boolean stopped = false;
+
+  /**
+   * Aggregate the next batch of unprocessed logins of every shard this node
+   * can lease. When catch-up mode is enabled and the number of unprocessed
+   * logins is above the threshold (e.g. after an outage), batches are run
+   * back-to-back with a growing batch size until the lag is below the threshold
+   * or the maximum duration of a single run is reached. The shards crunched one
+   * after the other each get an equal part of that duration. The next run is
+   * then scheduled as usual.
+   * <p>
+   * The login-log is divided in shards (see {@link AggregationShard}), each
+   * with a checkpoint of its own. A node only aggregates a shard while it holds
+   * its lease, so multiple nodes aggregate different shards at the same time.
+   * The lease is renewed before every batch and released after the run; the
+   * shard of a node that died is taken over once its lease has expired. Every
+   * batch moves the checkpoint only if the node still holds the lease, so a
+   * node that lost it (e.g. after a long pause) rolls back instead of counting
+   * the logins twice.
+   * </p>
+   * <p>
+   * In pipeline mode the batches are read by a separate thread, so reading the
+   * next batch from the login-log overlaps with crunching the previous one.
+   * </p>
+   */
   public void run() {
     if (!enabled) {
       LOG.info("aggregation disabled, because aggregation.enabled=false");
       return;
     }
-    
-    AggregateCounts counts = new AggregateCounts();
-    LOG.info("Running aggregation task, batch size {}", batchSize);
-    long lockAquired = 0L;
-    long loginsRetrieved = 0L;
-    long crunched = 0L;
-    long lockReleased = 0L;
-    long totalTime = 0L;
-    long startTime = now();
+    if (!crunching.tryLock()) {
+      LOG.info("The previous aggregation run is still busy, not doing anything");
+      return;
+    }
+    try {
+      AggregateCounts counts = new AggregateCounts();
+      LOG.info("Running aggregation task, batch size {}", batchSize);
+      long startTime = now();
 
-    
-    if (statisticsRepository.lockForCrunching()) {
-      lockAquired = now();
-      List<LoginEntry> entries = statisticsRepository.getUnprocessedLoginEntries(batchSize);
-      loginsRetrieved = now();
-      LOG.debug("Got {} unprocessed login entries", entries.size());
-      counts = aggregateLogin(entries);
-      crunched = now();
-      statisticsRepository.unlockForCrunching();
-      lockReleased = now();
-
-      // convert timestamp to time spend
-      totalTime = now() - startTime;
-      lockReleased = lockReleased - crunched;
-      crunched = crunched - loginsRetrieved;
-      loginsRetrieved = loginsRetrieved - lockAquired;
-      lockAquired = lockAquired - startTime;
-    } else {
-      LOG.info("Someone else is crunching, not doing anything");
-    }
-    LOG.info("logins retrieved in " + loginsRetrieved + " ms, crunching took " + totalTime + " ms");
-    
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("detailed results of this aggregate run:");
-      LOG.debug("total number of records handled: " + counts.total);
-      LOG.debug("number of new aggregation records inserted: " + counts.aggregated_insert);
-      LOG.debug("number of aggregation records updated: " + counts.aggregated_update);
-      LOG.debug("number of new user records inserted: " + counts.user_insert);
-      LOG.debug("number of user records updated: " + counts.user_update);
-      LOG.debug("detailed timing (in ms)");
-      LOG.debug("time to aquire the 'lock': " + lockAquired);
-      LOG.debug("time to retrieve the logins: " + loginsRetrieved);
-      LOG.debug("time to crunch the data: " + crunched);
-      LOG.debug("time to release the 'lock': " + lockReleased);
-      LOG.debug("total time in this run: " + totalTime);
+      List<AggregationShard> all = statisticsRepository.getAggregationShards(shards);
+      if (workerExecutor != null && all.size() > 1) {
+        crunchParallel(all, counts, startTime);
+      } else {
+        /*
+         * the nodes start at a random shard, so they do not all compete for the same one;
+         * every shard gets an equal part of the time left, so the backlog of one shard
+         * can not use up the catch-up time of the shards after it
+         */
+        int first = all.isEmpty() ? 0 : random.nextInt(all.size());
+        for (int i = 0; i < all.size() && !stopped; i++) {
+          long shardStart = now();
+          long deadline = shardStart + (startTime + catchUpMaxDuration - shardStart) / (all.size() - i);
+          crunchShard(all.get((first + i) % all.size()), counts, deadline);
+        }
+      }
+      statisticsRepository.updateAggregatePoint();
+      long totalTime = now() - startTime;
+      LOG.info("logins retrieved in " + counts.retrievalTime + " ms, crunching took " + totalTime + " ms");
+
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("detailed results of this aggregate run:");
+        LOG.debug("number of shards handled: " + counts.shards);
+        LOG.debug("number of batches handled: " + counts.batches);
+        LOG.debug("total number of records handled: " + counts.total);
+        LOG.debug("number of new aggregation records inserted: " + counts.aggregated_insert);
+        LOG.debug("number of aggregation records updated: " + counts.aggregated_update);
+        LOG.debug("number of new user records inserted: " + counts.user_insert);
+        LOG.debug("number of user records updated: " + counts.user_update);
+        LOG.debug("detailed timing (in ms)");
+        LOG.debug("time to lease the shards: " + counts.leaseTime);
+        LOG.debug("time to retrieve the logins: " + counts.retrievalTime);
+        LOG.debug("time to crunch the data: " + counts.crunchTime);
+        LOG.debug("total time in this run: " + totalTime);
+      }
+    } finally {
+      crunching.unlock();
+    }
+  }
+
+  /*
+   * Aggregate the shard, if it is not leased by another node
+   */
+  private void crunchShard(AggregationShard shard, AggregateCounts counts, long deadline) {
+    int index = shard.getIndex();
+    long leaseStart = now();
+    if (!statisticsRepository.acquireShardLease(index, nodeId, leaseDuration)) {
+      shardsLeasedElsewhere.incrementAndGet();
+      LOG.info("Someone else is crunching shard {}, not doing anything with it", index);
+      return;
+    }
+    counts.leaseTime += now() - leaseStart;
+    try {
+      long checkpoint = statisticsRepository.getShardCheckpoint(index);
+      if (pipelineEnabled) {
+        crunchPipelined(shard, checkpoint, counts, deadline);
+      } else {
+        crunchSequential(shard, checkpoint, counts, deadline);
+      }
+      counts.shards += 1;
+    } catch (OptimisticLockingFailureException e) {
+      leasesLost.incrementAndGet();
+      LOG.warn("Stopped crunching shard {}: {}", index, e.getMessage());
+    } finally {
+      long releaseStart = now();
+      statisticsRepository.releaseShardLease(index, nodeId);
+      counts.leaseTime += now() - releaseStart;
+    }
+  }
+
+  private void crunchSequential(AggregationShard shard, long checkpoint, AggregateCounts counts, long deadline) {
+    int currentBatchSize = batchSize;
+    boolean catchingUp = true;
+    while (catchingUp) {
+      long batchStart = now();
+      LoginBatch batch = new LoginBatch(shard);
+      statisticsRepository.streamLoginEntries(checkpoint, currentBatchSize, batch);
+      long batchRetrieved = now();
+      LOG.debug("Got {} unprocessed login entries, {} of other shards", batch.getSize(), batch.getSkipped());
+      counts.add(aggregateBatch(batch, shard, checkpoint));
+      if (!batch.isEmpty()) {
+        checkpoint = batch.getLastId();
+      }
+      counts.batches += 1;
+      counts.retrievalTime += batchRetrieved - batchStart;
+      counts.crunchTime += now() - batchRetrieved;
+
+      catchingUp = catchUpEnabled && !stopped && batch.getSize() == currentBatchSize && now() < deadline;
+      if (catchingUp) {
+        long lag = statisticsRepository.getLastLoginEntryId() - checkpoint;
+        catchingUp = lag > catchUpThreshold && renewLease(shard);
+        if (catchingUp) {
+          currentBatchSize = Math.min(currentBatchSize * 2, Math.max(batchSize, catchUpMaxBatchSize));
+          LOG.info("Aggregation of shard {} is {} records behind, continuing in catch-up mode with batch size {}",
+              new Object[] {shard.getIndex(), lag, currentBatchSize});
+        }
+      }
+    }
+  }
+
+  /*
+   * The reader thread fills a bounded queue with reduced batches, this thread takes them
+   * off and crunches them one transaction at a time. The checkpoint only
+   * moves when a batch is committed; batches read ahead but not crunched (because
+   * the time of the shard is up or crunching failed) are simply read again in
+   * the next run.
+   */
+  private void crunchPipelined(AggregationShard shard, long checkpoint, AggregateCounts counts, long deadline) {
+    BlockingQueue<LoginBatch> queue = new ArrayBlockingQueue<LoginBatch>(Math.max(1, pipelineQueueSize));
+    LoginEntryReader reader = new LoginEntryReader(statisticsRepository, queue, shard, checkpoint,
+        batchSize, catchUpMaxBatchSize, catchUpEnabled, catchUpThreshold);
+    Future<Integer> pagesRead = readerExecutor.submit(reader);
+    try {
+      while (true) {
+        long waitStart = now();
+        LoginBatch batch = queue.take();
+        long batchRetrieved = now();
+        counts.retrievalTime += batchRetrieved - waitStart;
+        if (batch == LoginEntryReader.END) {
+          break;
+        }
+        LOG.debug("Got {} unprocessed login entries, {} of other shards", batch.getSize(), batch.getSkipped());
+        counts.add(aggregateBatch(batch, shard, checkpoint));
+        checkpoint = batch.getLastId();
+        counts.batches += 1;
+        counts.crunchTime += now() - batchRetrieved;
+        if (now() >= deadline) {
+          LOG.info("Time of shard {} in this aggregation run is up, continuing in the next run", shard.getIndex());
+          break;
+        }
+        if (stopped || !renewLease(shard)) {
+          break;
+        }
+      }
+      reader.stop();
+      LOG.debug("Reader read {} pages", pagesRead.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.warn("Interrupted while waiting for login entries");
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Reading login entries failed", e.getCause());
+    } finally {
+      reader.stop();
+      queue.clear();
+    }
+  }
+
+  /*
+   * Lease every shard that is free, then read the login-log a page at a time
+   * and hand the page to the workers, one per shard. Every worker reduces the
+   * logins of its shard and writes them in a transaction of its own, which
+   * moves the checkpoint of the shard. The shards never write the same rows,
+   * so the workers do not wait for each other's locks.
+   */
+  private void crunchParallel(List<AggregationShard> all, AggregateCounts counts, long startTime) {
+    long leaseStart = now();
+    Map<AggregationShard, Long> checkpoints = new LinkedHashMap<AggregationShard, Long>();
+    for (AggregationShard shard : all) {
+      if (statisticsRepository.acquireShardLease(shard.getIndex(), nodeId, leaseDuration)) {
+        checkpoints.put(shard, statisticsRepository.getShardCheckpoint(shard.getIndex()));
+      } else {
+        shardsLeasedElsewhere.incrementAndGet();
+        LOG.info("Someone else is crunching shard {}, not doing anything with it", shard.getIndex());
+      }
+    }
+    counts.leaseTime += now() - leaseStart;
+    Collection<AggregationShard> leased = new ArrayList<AggregationShard>(checkpoints.keySet());
+    try {
+      int currentBatchSize = batchSize;
+      boolean catchingUp = !checkpoints.isEmpty();
+      while (catchingUp) {
+        long batchStart = now();
+        final List<LoginEntry> page = new ArrayList<LoginEntry>();
+        statisticsRepository.streamLoginEntries(Collections.min(checkpoints.values()), currentBatchSize,
+            new LoginEntryHandler() {
+          @Override
+          public void handle(long id, String idpEntityId, String idpEntityName, long loginTime, String spEntityId,
+              String spEntityName, String userId) {
+            page.add(new LoginEntry(id, idpEntityId, idpEntityName, new Date(loginTime), spEntityId, spEntityName, userId));
+          }
+        });
+        long batchRetrieved = now();
+        LOG.debug("Got {} unprocessed login entries for {} shards", page.size(), checkpoints.size());
+        counts.add(crunchPage(page, checkpoints));
+        counts.batches += 1;
+        counts.retrievalTime += batchRetrieved - batchStart;
+        counts.crunchTime += now() - batchRetrieved;
+
+        catchingUp = catchUpEnabled && !stopped && page.size() == currentBatchSize && !checkpoints.isEmpty() &&
+            now() - startTime < catchUpMaxDuration;
+        if (catchingUp) {
+          long lag = statisticsRepository.getLastLoginEntryId() - Collections.min(checkpoints.values());
+          catchingUp = lag > catchUpThreshold;
+          for (Iterator<AggregationShard> shards = checkpoints.keySet().iterator(); catchingUp && shards.hasNext();) {
+            if (!renewLease(shards.next())) {
+              shards.remove();
+            }
+          }
+          catchingUp = catchingUp && !checkpoints.isEmpty();
+          if (catchingUp) {
+            currentBatchSize = Math.min(currentBatchSize * 2, Math.max(batchSize, catchUpMaxBatchSize));
+            LOG.info("Aggregation is {} records behind, continuing in catch-up mode with batch size {}", lag,
+                currentBatchSize);
+          }
+        }
+      }
+      counts.shards += leased.size();
+    } finally {
+      long releaseStart = now();
+      for (AggregationShard shard : leased) {
+        statisticsRepository.releaseShardLease(shard.getIndex(), nodeId);
+      }
+      counts.leaseTime += now() - releaseStart;
+    }
+  }
+
+  /*
+   * Crunch the page for every shard in parallel, and move the checkpoints of
+   * the shards that were written. A shard whose lease was lost is dropped, any
+   * other failure is thrown once all workers are done.
+   */
+  private AggregateCounts crunchPage(final List<LoginEntry> page, Map<AggregationShard, Long> checkpoints) {
+    Map<AggregationShard, Future<AggregateCounts>> results = new LinkedHashMap<AggregationShard, Future<AggregateCounts>>();
+    for (Map.Entry<AggregationShard, Long> entry : checkpoints.entrySet()) {
+      final AggregationShard shard = entry.getKey();
+      final long checkpoint = entry.getValue();
+      results.put(shard, workerExecutor.submit(new Callable<AggregateCounts>() {
+        @Override
+        public AggregateCounts call() {
+          LoginBatch batch = new LoginBatch(shard);
+          for (LoginEntry le : page) {
+            if (le.getId() > checkpoint) {
+              batch.add(le);
+            }
+          }
+          return aggregateBatch(batch, shard, checkpoint);
+        }
+      }));
+    }
+    AggregateCounts result = new AggregateCounts();
+    RuntimeException failure = null;
+    long lastId = page.isEmpty() ? 0L : page.get(page.size() - 1).getId();
+    for (Map.Entry<AggregationShard, Future<AggregateCounts>> entry : results.entrySet()) {
+      AggregationShard shard = entry.getKey();
+      try {
+        result.add(entry.getValue().get());
+        if (lastId > checkpoints.get(shard)) {
+          checkpoints.put(shard, lastId);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failure = new IllegalStateException("Interrupted while crunching shard " + shard.getIndex(), e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof OptimisticLockingFailureException) {
+          leasesLost.incrementAndGet();
+          LOG.warn("Stopped crunching shard {}: {}", shard.getIndex(), e.getCause().getMessage());
+          checkpoints.remove(shard);
+        } else if (failure == null) {
+          failure = new RuntimeException("Crunching shard " + shard.getIndex() + " failed", e.getCause());
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return result;
+  }
+
+  private boolean renewLease(AggregationShard shard) {
+    if (statisticsRepository.acquireShardLease(shard.getIndex(), nodeId, leaseDuration)) {
+      return true;
+    }
+    leasesLost.incrementAndGet();
+    LOG.warn("Lost the lease of shard {}, another node took it over", shard.getIndex());
+    return false;
+  }
+
+  /*
+   * Write the batch, retried when it fails on a lock wait timeout or deadlock
+   */
+  private AggregateCounts aggregateBatch(LoginBatch batch, AggregationShard shard, long checkpoint) {
+    int lockFailures = 0;
+    while (true) {
+      try {
+        return writeBatch(batch, shard, checkpoint);
+      } catch (PessimisticLockingFailureException e) {
+        if (++lockFailures > LOCK_RETRIES) {
+          throw e;
+        }
+        LOG.info("Batch of shard {} failed on locks, retrying: {}", shard.getIndex(), e.getMessage());
+        pause(100L << lockFailures);
+      }
+    }
+  }
+
+  private void pause(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
   }
 
@@ -124,59 +516,70 @@ public class Aggregator {
 
   /**
    * Use the given LoginEntries to aggregate data in the database.
-   * This will
+   * The entries are first reduced in memory (see {@link LoginBatch}), the
+   * result is written with a few batch statements per table.
    * @param loginEntries
    */
   public AggregateCounts aggregateLogin(final List<LoginEntry> loginEntries) {
     if (loginEntries == null) {
       throw new IllegalArgumentException("List of loginEntries cannot be null.");
     }
-    
+    return aggregateBatch(LoginBatch.reduce(loginEntries));
+  }
+
+  /**
+   * Write an already reduced batch of logins to the database, in a single
+   * transaction that also moves the aggregation point. The logins are
+   * aggregated outside of the shards, they should not be read from the
+   * login-log by the shards as well.
+   * @param batch the reduced logins
+   */
+  public AggregateCounts aggregateBatch(final LoginBatch batch) {
+    return writeBatch(batch, null, 0L);
+  }
+
+  /*
+   * Write the batch in a single transaction that also moves the checkpoint of
+   * the shard, or the aggregation point when there is no shard
+   */
+  private AggregateCounts writeBatch(final LoginBatch batch, final AggregationShard shard, final long checkpoint) {
     AggregateCounts counts = transactionTemplate.execute(new TransactionCallback<AggregateCounts>() {
       @Override
       public AggregateCounts doInTransaction(TransactionStatus status) {
-        AggregateCounts result = new AggregateCounts();
-        
-        for (LoginEntry le : loginEntries) {
-          result.total += 1;
-          //aggregate the login
-          if (entryForDayExists(le)) {
-            LOG.trace("Updating existing aggregated record for date {}, record: {}", le.getLoginDate(), le);
-            statisticsRepository.updateAggregated(le.getIdpEntityId(), le.getSpEntityId(), le.getLoginDate());
-            result.aggregated_update += 1;
-          } else {
-            LOG.trace("Inserting aggregated record for date {}, record: {}", le.getLoginDate(), le);
-            statisticsRepository.insertAggregated(le);
-            result.aggregated_insert += 1;
-          }
-          
-          //aggregate for the user
-          if (entryForUserExists(le)) {
-            LOG.trace("Updating existing aggregated record for date {}, record: {}", le.getLoginDate(), le);
-            statisticsRepository.updateLastLogin(le.getUserId(), le.getSpEntityId(), le.getLoginDate());
-            result.user_update += 1;
+        /* moving the checkpoint first fences off a node that lost the lease, before anything is written */
+        if (!batch.isEmpty()) {
+          if (shard == null) {
+            statisticsRepository.setLoginEntriesProcessed(batch.getLastId());
           } else {
-            LOG.trace("Inserting aggregated record for date {}, record: {}", le.getLoginDate(), le);
-            statisticsRepository.insertLastLogin(le);
-            result.user_insert += 1;
-          }
-          
-          //update the unique user login table
-          if (!entryForUniqueUserExists(le)) {
-            LOG.trace("Inserting unique user login record for user {}, record: {}", le.getUserId(), le);
-            statisticsRepository.insertUniqueLoginInCache(le);
+            statisticsRepository.moveShardCheckpoint(shard.getIndex(), nodeId, checkpoint, batch.getLastId(),
+                batch.getLastLoginDate());
           }
         }
-        
-        if (loginEntries.size() > 0) {
-          statisticsRepository.setLoginEntriesProcessed(loginEntries);
+
+        AggregateCounts result = new AggregateCounts();
+        result.total = batch.getSize() - batch.getSkipped();
+
+        //aggregate the logins
+        result.aggregated_insert = statisticsRepository.upsertAggregated(batch.getDailyLogins());
+        result.aggregated_update = result.total - result.aggregated_insert;
+        statisticsRepository.upsertRollups(batch.getDailyLogins());
+
+        //aggregate for the users
+        result.user_insert = statisticsRepository.upsertLastLogins(batch.getLastLogins());
+        result.user_update = result.total - result.user_insert;
+
+        //update the unique user login sketches or table
+        if (uniqueLoginsEstimated) {
+          statisticsRepository.updateUniqueLoginSketches(batch.getUniqueLogins());
+          Collection<UniqueLogin> exact = exactUniqueLogins(batch.getUniqueLogins());
+          if (!exact.isEmpty()) {
+            statisticsRepository.insertUniqueLoginsInCache(exact);
+          }
+        } else {
+          statisticsRepository.insertUniqueLoginsInCache(batch.getUniqueLogins());
         }
-        
-        /*
-         * If we have moved from one month to the other, we need to update
-         * the unique user logins for this month.
-         */
-        statisticsRepository.aggregateUniqueLoginsIfNeeded();
+
+        invalidateQueryResults(batch);
         return result;
       }
       
@@ -185,38 +588,139 @@ public class Aggregator {
     return counts;
   }
 
+  /*
+   * The unique logins of months that were already counted exactly before the
+   * sketches were switched on, those months stay exact so their counts are complete
+   */
+  private Collection<UniqueLogin> exactUniqueLogins(Collection<UniqueLogin> uniqueLogins) {
+    Map<Integer, Boolean> sketched = new HashMap<Integer, Boolean>();
+    List<UniqueLogin> exact = new ArrayList<UniqueLogin>();
+    for (UniqueLogin unique : uniqueLogins) {
+      Integer month = unique.getYear() * 100 + unique.getMonth();
+      Boolean onlySketched = sketched.get(month);
+      if (onlySketched == null) {
+        onlySketched = statisticsRepository.startUniqueLoginSketches(unique.getYear(), unique.getMonth());
+        sketched.put(month, onlySketched);
+      }
+      if (!onlySketched) {
+        exact.add(unique);
+      }
+    }
+    return exact;
+  }
+
+  /*
+   * Cached query results of the days in this batch are outdated once it is committed
+   */
+  private void invalidateQueryResults(LoginBatch batch) {
+    if (batch.getDailyLogins().isEmpty()) {
+      return;
+    }
+    LocalDate first = null;
+    LocalDate last = null;
+    for (DailyLogins daily : batch.getDailyLogins()) {
+      LocalDate day = new LocalDate(daily.getLoginDate());
+      if (first == null || day.isBefore(first)) {
+        first = day;
+      }
+      if (last == null || day.isAfter(last)) {
+        last = day;
+      }
+    }
+    queryResultCache.invalidate(first, last);
+  }
+
+  @PostConstruct
+  public void init() {
+    if (workers > 1) {
+      workerExecutor = Executors.newFixedThreadPool(workers);
+    }
+  }
+
+  /**
+   * Stop after the current batch, the run then releases its leases.
+   */
   @PreDestroy
   public void shutdownAggregator() {
-    while (!statisticsRepository.lockForCrunching()) {
+    stopped = true;
+    if (!crunching.tryLock()) {
       LOG.warn("delaying shutdown, cruncher is still running");
-      try {
-        Thread.sleep(500);
-      } catch (InterruptedException e) {}
+      crunching.lock();
+    }
+    crunching.unlock();
+    readerExecutor.shutdownNow();
+    if (workerExecutor != null) {
+      workerExecutor.shutdownNow();
     }
-    statisticsRepository.unlockForCrunching();
   }
-  
-  private boolean entryForUserExists(LoginEntry le) {
-    return statisticsRepository.lastLogonExists(le.getUserId(), le.getSpEntityId());
+
+  @ManagedAttribute
+  public String getNodeId() {
+    return nodeId;
   }
-  
-  private boolean entryForUniqueUserExists(LoginEntry le) {
-    return statisticsRepository.uniqueUserLogonExists(le.getUserId(), le.getLoginDate(), le.getSpEntityId(), le.getIdpEntityId());
+
+  @ManagedAttribute(description = "The checkpoints and leases of the shards")
+  public String[] getShards() {
+    List<AggregationShard> all = statisticsRepository.getAggregationShards(shards);
+    String[] result = new String[all.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = all.get(i).toString();
+    }
+    return result;
   }
 
-  /**
-   * Whether an aggregated record exists for the given record
-   * @param le the LoginEntry
-   */
-  private boolean entryForDayExists(LoginEntry le) {
-    return statisticsRepository.aggregatedExists(le.getIdpEntityId(), le.getSpEntityId(), le.getLoginDate());
+  @ManagedAttribute
+  public long getShardsLeasedElsewhere() {
+    return shardsLeasedElsewhere.get();
+  }
+
+  @ManagedAttribute
+  public long getLeasesLost() {
+    return leasesLost.get();
   }
   
+  void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  void setCatchUpThreshold(long catchUpThreshold) {
+    this.catchUpThreshold = catchUpThreshold;
+  }
+
+  void setPipelineEnabled(boolean pipelineEnabled) {
+    this.pipelineEnabled = pipelineEnabled;
+  }
+
+  void setUniqueLoginsEstimated(boolean uniqueLoginsEstimated) {
+    this.uniqueLoginsEstimated = uniqueLoginsEstimated;
+  }
+
+  void setShards(int shards) {
+    this.shards = shards;
+  }
+
+  void setWorkerExecutor(ExecutorService workerExecutor) {
+    this.workerExecutor = workerExecutor;
+  }
+
   private class AggregateCounts {
     public int total = 0;
     public int aggregated_insert = 0;
     public int aggregated_update = 0;
     public int user_insert = 0;
     public int user_update = 0;
+    public int batches = 0;
+    public int shards = 0;
+    public long leaseTime = 0L;
+    public long retrievalTime = 0L;
+    public long crunchTime = 0L;
+
+    private void add(AggregateCounts other) {
+      total += other.total;
+      aggregated_insert += other.aggregated_insert;
+      aggregated_update += other.aggregated_update;
+      user_insert += other.user_insert;
+      user_update += other.user_update;
+    }
   }
 }
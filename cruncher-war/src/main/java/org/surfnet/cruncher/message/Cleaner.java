@@ -1,36 +1,228 @@
 package org.surfnet.cruncher.message;
 
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.inject.Inject;
 
+import org.joda.time.LocalDate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.PessimisticLockingFailureException;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Component;
+import org.surfnet.cruncher.repository.AggregateKeyCache;
+import org.surfnet.cruncher.repository.PartitionManager;
+import org.surfnet.cruncher.repository.QueryResultCache;
+import org.surfnet.cruncher.repository.RetentionTable;
 import org.surfnet.cruncher.repository.StatisticsRepository;
 
+/**
+ * Removes the records past the retention period. Where a table is partitioned
+ * per month, the partitions of the expired months are dropped first (see
+ * {@link PartitionManager}). The remaining records are deleted in
+ * chunks, in the order of their primary key, each chunk in a statement of its
+ * own, so no large ranges of rows are locked and the aggregation can continue
+ * in between.
+ * <p>
+ * After every chunk the cleaner pauses for (throttle x the time the chunk
+ * took): when the database is busy, or the deletes wait for locks, chunks take
+ * longer and the cleaner backs off accordingly. A chunk that fails on a lock
+ * wait timeout or deadlock is retried after a growing pause. A run stops once
+ * its time budget is used up, the next run continues where it left off as the
+ * expired records are looked up again.
+ * </p>
+ */
 @Component("cleaner")
+@ManagedResource(objectName = "org.surfnet.cruncher:name=Cleaner")
 public class Cleaner {
   private static final Logger LOG = LoggerFactory.getLogger(Cleaner.class);
-  
+
+  /**
+   * Nr of times a chunk is retried after a lock wait timeout or deadlock
+   */
+  private static final int LOCK_RETRIES = 5;
+
   @Inject
   private StatisticsRepository statisticsRepository;
-  
+
+  @Inject
+  private AggregateKeyCache aggregateKeyCache;
+
+  @Inject
+  private QueryResultCache queryResultCache;
+
+  @Inject
+  private PartitionManager partitionManager;
+
   @Value("${cleaner.retention}")
   private int retention;
-  
+
   @Value("${cleaner.enabled}")
   private boolean enabled;
-  
+
+  @Value("${cleaner.chunk-size}")
+  private int chunkSize;
+
+  @Value("${cleaner.throttle}")
+  private double throttle;
+
+  @Value("${cleaner.max-pause}")
+  private long maxPause;
+
+  @Value("${cleaner.max-duration}")
+  private long maxDuration;
+
+  private final AtomicLong lockWaits = new AtomicLong();
+  private volatile String progress = "not run yet";
+  private volatile long lastRunDeleted;
+  private volatile boolean lastRunComplete;
+  private long runDeleted;
+
   public void run() {
     if (!enabled) {
       LOG.info("cleaning disabled, because cleaning.enabled=false");
       return;
     }
     LOG.info("Running database cleanup for the cruncher retention period is " + retention + " month(s)");
-    statisticsRepository.cleanTables(retention);
+    Date retentionTime = createRetentionTime(retention);
+    long deadline = now() + maxDuration;
+    boolean complete = true;
+    runDeleted = 0L;
+    int partitionsDropped = 0;
+    try {
+      partitionsDropped = dropExpiredPartitions(retentionTime);
+      for (RetentionTable table : RetentionTable.values()) {
+        if (!clean(table, retentionTime, deadline)) {
+          complete = false;
+          break;
+        }
+      }
+    } finally {
+      lastRunDeleted = runDeleted;
+      lastRunComplete = complete;
+      progress = (complete ? "completed, " : "stopped, ") + partitionsDropped + " partitions dropped and " + runDeleted +
+          " records removed";
+      if (runDeleted > 0 || partitionsDropped > 0) {
+        aggregateKeyCache.invalidate();
+        queryResultCache.invalidateAll();
+      }
+    }
+  }
+
+  /*
+   * Delete the expired records of the table, returns false if the run has to
+   * stop before the table is done
+   */
+  private boolean clean(RetentionTable table, Date retentionTime, long deadline) {
+    long deleted = 0L;
+    long afterId = 0L;
+    int chunks = 0;
+    int lockFailures = 0;
+    while (true) {
+      if (now() >= deadline) {
+        LOG.info("Cleaner stopped at {} after {} chunks, the time budget of {} ms is used up",
+            new Object[] {table.getTableName(), chunks, maxDuration});
+        return false;
+      }
+      List<Long> ids = statisticsRepository.findExpiredRecords(table, retentionTime, afterId, chunkSize);
+      if (ids.isEmpty()) {
+        break;
+      }
+      long start = now();
+      try {
+        int chunkDeleted = statisticsRepository.deleteExpiredRecords(table, retentionTime, ids);
+        deleted += chunkDeleted;
+        runDeleted += chunkDeleted;
+        lockFailures = 0;
+      } catch (PessimisticLockingFailureException e) {
+        lockWaits.incrementAndGet();
+        if (++lockFailures > LOCK_RETRIES) {
+          LOG.warn("Cleaner stopped at {}, a chunk failed {} times on locks",
+              new Object[] {table.getTableName(), lockFailures, e});
+          return false;
+        }
+        LOG.info("Chunk of {} failed on locks, retrying: {}", table.getTableName(), e.getMessage());
+        pause(Math.min(maxPause, 100L << lockFailures));
+        continue;
+      }
+      afterId = ids.get(ids.size() - 1);
+      chunks += 1;
+      progress = table.getTableName() + ": " + deleted + " records removed up to id " + afterId;
+      LOG.debug("Cleaner progress {}", progress);
+      pause(Math.min(maxPause, (long) ((now() - start) * throttle)));
+    }
+    LOG.info("Removed {} records from {} in {} chunks", new Object[] {deleted, table.getTableName(), chunks});
+    return true;
+  }
+
+  /*
+   * Drop the partitions of the months that are wholly past the retention time,
+   * the remaining expired records are deleted row by row
+   */
+  private int dropExpiredPartitions(Date retentionTime) {
+    LocalDate retentionDate = new LocalDate(retentionTime);
+    return partitionManager.dropPartitions(RetentionTable.AGGREGATED_LOGINS.getTableName(), retentionDate.plusDays(1))
+        + partitionManager.dropPartitions(RetentionTable.ROLLUPS.getTableName(), retentionDate.minusMonths(1).plusDays(1));
   }
-  
+
+  private Date createRetentionTime(int retention) {
+    Calendar retentionTime = new GregorianCalendar();
+    retentionTime.setLenient(true);
+    retentionTime.add(Calendar.MONTH, -retention);
+    LOG.debug("Cleaning tables to date {}", retentionTime.getTime());
+    return retentionTime.getTime();
+  }
+
+  private void pause(long millis) {
+    if (millis <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private long now() {
+    return System.currentTimeMillis();
+  }
+
+  @ManagedAttribute
+  public String getProgress() {
+    return progress;
+  }
+
+  @ManagedAttribute
+  public long getLastRunDeleted() {
+    return lastRunDeleted;
+  }
+
+  @ManagedAttribute
+  public boolean isLastRunComplete() {
+    return lastRunComplete;
+  }
+
+  @ManagedAttribute
+  public long getLockWaits() {
+    return lockWaits.get();
+  }
+
   void setRetention(int retention) {
     this.retention = retention;
   }
+
+  void setChunkSize(int chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+
+  void setMaxDuration(long maxDuration) {
+    this.maxDuration = maxDuration;
+  }
 }
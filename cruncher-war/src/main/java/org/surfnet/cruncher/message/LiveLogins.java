@@ -0,0 +1,321 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.message;
+
+import static org.surfnet.cruncher.message.Aggregator.aggregationRecordHash;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+
+import org.joda.time.LocalDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.surfnet.cruncher.message.LoginBatch.LastLogin;
+import org.surfnet.cruncher.model.LoginEvent;
+import org.surfnet.cruncher.repository.AggregationShard;
+import org.surfnet.cruncher.repository.QueryResultCache;
+import org.surfnet.cruncher.repository.RecordHash;
+import org.surfnet.cruncher.repository.StatisticsRepository;
+
+/**
+ * Counts the logins EngineBlock pushes, so they show up within seconds instead
+ * of after the next aggregation run. Logins are counted per (minute, idp, sp) in
+ * atomic counters and the last login per (user, sp) is swapped in with
+ * compare-and-set, so concurrent requests never wait for each other. The flush
+ * writes the counts to the live logins table and the last logins to the user
+ * logins, in one short transaction.
+ * <p>
+ * The aggregator still counts every login from the login-log. The live counts
+ * of an SP are only added to query results for the minutes after the one of
+ * the last login aggregated by the shard of the SP (the watermark of the
+ * shard), and the aggregator removes them once the shard gets there, so no
+ * login is counted twice. Setting a last login is idempotent as only a later
+ * login time replaces it.
+ * </p>
+ */
+@Component("liveLogins")
+@ManagedResource(objectName = "org.surfnet.cruncher:name=LiveLogins")
+public class LiveLogins {
+  private static final Logger LOG = LoggerFactory.getLogger(LiveLogins.class);
+  private static final long MINUTE = 60 * 1000L;
+
+  @Inject
+  private StatisticsRepository statisticsRepository;
+
+  @Inject
+  private TransactionTemplate transactionTemplate;
+
+  @Inject
+  private QueryResultCache queryResultCache;
+
+  @Value("${live.enabled}")
+  private boolean enabled;
+
+  private final ConcurrentMap<MinuteLogins, AtomicInteger> counts = new ConcurrentHashMap<MinuteLogins, AtomicInteger>();
+  private final ConcurrentMap<RecordHash, LastLogin> lastLogins = new ConcurrentHashMap<RecordHash, LastLogin>();
+
+  /**
+   * Start of the minute of the last aggregated login per shard, as of the last
+   * flush. Until the first flush nothing is known to be aggregated
+   */
+  private volatile long[] watermarks = {0L};
+
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong aggregatedAlready = new AtomicLong();
+  private final AtomicLong flushed = new AtomicLong();
+  private final AtomicLong flushFailures = new AtomicLong();
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Count a login, logins of minutes the aggregator has done already are
+   * ignored.
+   */
+  public void add(LoginEvent event) {
+    long minute = event.getLoginTime() - event.getLoginTime() % MINUTE;
+    received.incrementAndGet();
+    long[] current = watermarks;
+    if (minute <= current[AggregationShard.indexOf(event.getSpEntityId(), current.length)]) {
+      aggregatedAlready.incrementAndGet();
+      return;
+    }
+    MinuteLogins key = new MinuteLogins(new Date(minute), event.getIdpEntityId(), event.getIdpEntityName(),
+        event.getSpEntityId(), event.getSpEntityName());
+    counterOf(key).incrementAndGet();
+    RecordHash hash = new RecordHash(aggregationRecordHash(event.getUserId(), event.getSpEntityId()));
+    offer(new LastLogin(hash, event.getUserId(), event.getSpEntityId(), event.getSpEntityName(),
+        event.getIdpEntityId(), new Date(event.getLoginTime())));
+  }
+
+  private AtomicInteger counterOf(MinuteLogins key) {
+    AtomicInteger counter = counts.get(key);
+    if (counter == null) {
+      AtomicInteger created = new AtomicInteger();
+      counter = counts.putIfAbsent(key, created);
+      if (counter == null) {
+        counter = created;
+      }
+    }
+    return counter;
+  }
+
+  /*
+   * Keep the latest login of the (user, sp)
+   */
+  private void offer(LastLogin login) {
+    while (true) {
+      LastLogin current = lastLogins.putIfAbsent(login.getHash(), login);
+      if (current == null || current.getLoginDate().getTime() >= login.getLoginDate().getTime() ||
+          lastLogins.replace(login.getHash(), current, login)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Write the logins counted since the previous flush. The counters are taken
+   * out with get-and-set, so logins counted meanwhile go to the next flush. If
+   * writing fails the counts are put back.
+   */
+  public void flush() {
+    if (!enabled) {
+      return;
+    }
+    final long[] current = statisticsRepository.getLiveWatermarks();
+    watermarks = current;
+    final List<MinuteLogins> minuteLogins = new ArrayList<MinuteLogins>();
+    for (Map.Entry<MinuteLogins, AtomicInteger> entry : counts.entrySet()) {
+      MinuteLogins key = entry.getKey();
+      int count = entry.getValue().getAndSet(0);
+      if (key.getLoginDate().getTime() <= current[AggregationShard.indexOf(key.getSpEntityId(), current.length)]) {
+        /* the aggregator has counted these, so later increments would be ignored as well */
+        counts.remove(key, entry.getValue());
+      } else if (count > 0) {
+        minuteLogins.add(key.withCount(count));
+      }
+    }
+    final List<LastLogin> logins = new ArrayList<LastLogin>();
+    for (Map.Entry<RecordHash, LastLogin> entry : lastLogins.entrySet()) {
+      /* a later login that is swapped in meanwhile stays for the next flush */
+      if (lastLogins.remove(entry.getKey(), entry.getValue())) {
+        logins.add(entry.getValue());
+      }
+    }
+    if (minuteLogins.isEmpty() && logins.isEmpty()) {
+      return;
+    }
+    try {
+      transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+        @Override
+        protected void doInTransactionWithoutResult(TransactionStatus status) {
+          /* the aggregator could otherwise insert the same user logins concurrently */
+          statisticsRepository.lockAggregationShards();
+          statisticsRepository.upsertLiveLogins(minuteLogins, current.length);
+          statisticsRepository.upsertLastLogins(logins);
+          invalidateQueryResults(minuteLogins, logins);
+        }
+      });
+      flushed.addAndGet(minuteLogins.size());
+      LOG.debug("Flushed {} live login counts and {} last logins", minuteLogins.size(), logins.size());
+    } catch (RuntimeException e) {
+      flushFailures.incrementAndGet();
+      LOG.error("Flushing live logins failed, retrying in the next flush", e);
+      for (MinuteLogins counted : minuteLogins) {
+        counterOf(counted.withCount(0)).addAndGet(counted.getCount());
+      }
+      for (LastLogin login : logins) {
+        offer(login);
+      }
+    }
+  }
+
+  private void invalidateQueryResults(List<MinuteLogins> minuteLogins, List<LastLogin> logins) {
+    LocalDate first = null;
+    LocalDate last = null;
+    for (MinuteLogins counted : minuteLogins) {
+      LocalDate day = new LocalDate(counted.getLoginDate());
+      first = first == null || day.isBefore(first) ? day : first;
+      last = last == null || day.isAfter(last) ? day : last;
+    }
+    for (LastLogin login : logins) {
+      LocalDate day = new LocalDate(login.getLoginDate());
+      first = first == null || day.isBefore(first) ? day : first;
+      last = last == null || day.isAfter(last) ? day : last;
+    }
+    queryResultCache.invalidate(first, last);
+  }
+
+  @ManagedAttribute
+  public long getReceived() {
+    return received.get();
+  }
+
+  @ManagedAttribute(description = "Logins received after the aggregator counted their minute")
+  public long getAggregatedAlready() {
+    return aggregatedAlready.get();
+  }
+
+  @ManagedAttribute(description = "Nr of (minute, idp, sp) counts written")
+  public long getFlushed() {
+    return flushed.get();
+  }
+
+  @ManagedAttribute
+  public long getFlushFailures() {
+    return flushFailures.get();
+  }
+
+  @ManagedAttribute
+  public int getPendingCounts() {
+    return counts.size();
+  }
+
+  @ManagedAttribute
+  public int getPendingLastLogins() {
+    return lastLogins.size();
+  }
+
+  /**
+   * The logins of a (minute, idp, sp), equal by those three only.
+   */
+  public static class MinuteLogins {
+    private final Date loginDate;
+    private final String idpEntityId;
+    private final String idpEntityName;
+    private final String spEntityId;
+    private final String spEntityName;
+    private final int count;
+
+    private MinuteLogins(Date loginDate, String idpEntityId, String idpEntityName, String spEntityId,
+        String spEntityName) {
+      this(loginDate, idpEntityId, idpEntityName, spEntityId, spEntityName, 0);
+    }
+
+    private MinuteLogins(Date loginDate, String idpEntityId, String idpEntityName, String spEntityId,
+        String spEntityName, int count) {
+      this.loginDate = loginDate;
+      this.idpEntityId = idpEntityId;
+      this.idpEntityName = idpEntityName;
+      this.spEntityId = spEntityId;
+      this.spEntityName = spEntityName;
+      this.count = count;
+    }
+
+    private MinuteLogins withCount(int count) {
+      return new MinuteLogins(loginDate, idpEntityId, idpEntityName, spEntityId, spEntityName, count);
+    }
+
+    /**
+     * @return the start of the minute
+     */
+    public Date getLoginDate() {
+      return loginDate;
+    }
+
+    public String getIdpEntityId() {
+      return idpEntityId;
+    }
+
+    public String getIdpEntityName() {
+      return idpEntityName;
+    }
+
+    public String getSpEntityId() {
+      return spEntityId;
+    }
+
+    public String getSpEntityName() {
+      return spEntityName;
+    }
+
+    public int getCount() {
+      return count;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof MinuteLogins)) {
+        return false;
+      }
+      MinuteLogins other = (MinuteLogins) obj;
+      return loginDate.equals(other.loginDate) && idpEntityId.equals(other.idpEntityId) &&
+          spEntityId.equals(other.spEntityId);
+    }
+
+    @Override
+    public int hashCode() {
+      return (loginDate.hashCode() * 31 + idpEntityId.hashCode()) * 31 + spEntityId.hashCode();
+    }
+  }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.message;
+
+import static java.util.Calendar.MONTH;
+import static java.util.Calendar.YEAR;
+import static org.surfnet.cruncher.message.Aggregator.aggregationRecordHash;
+
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.surfnet.cruncher.model.LoginEntry;
+import org.surfnet.cruncher.repository.AggregationShard;
+import org.surfnet.cruncher.repository.LoginEntryHandler;
+import org.surfnet.cruncher.repository.RecordHash;
+
+/**
+ * In-memory reduction of a batch of LoginEntries. Instead of touching the
+ * database for every single login, a batch is collapsed into:
+ * <ul>
+ * <li>one count delta per (day, idp, sp)</li>
+ * <li>one last login per (user, sp)</li>
+ * <li>one unique login per (user, sp, idp, month)</li>
+ * </ul>
+ * which can then be written with a few batch statements per table. Entries are
+ * expected in the order of their id (as they are read from log_logins), the
+ * resulting rows are the same as when the entries would be handled one by one.
+ * <p>
+ * As a {@link LoginEntryHandler} the batch can be filled straight from a
+ * streaming query, only the distinct keys are kept in memory. A batch of a
+ * shard skips the logins of the other shards, they are still counted in its
+ * size and last id, as the shard is done with them.
+ * </p>
+ */
+public class LoginBatch implements LoginEntryHandler {
+
+  private final Map<RecordHash, DailyLogins> dailyLogins = new LinkedHashMap<RecordHash, DailyLogins>();
+  private final Map<RecordHash, LastLogin> lastLogins = new LinkedHashMap<RecordHash, LastLogin>();
+  private final Map<RecordHash, UniqueLogin> uniqueLogins = new LinkedHashMap<RecordHash, UniqueLogin>();
+  private final Calendar calendar = new GregorianCalendar();
+  private final AggregationShard shard;
+  private int size = 0;
+  private int skipped = 0;
+  private long lastId;
+  private long lastLoginTime;
+
+  public LoginBatch() {
+    this(null);
+  }
+
+  /**
+   * @param shard the shard to reduce the logins of, null for all logins
+   */
+  public LoginBatch(AggregationShard shard) {
+    this.shard = shard;
+  }
+
+  public static LoginBatch reduce(List<LoginEntry> loginEntries) {
+    LoginBatch batch = new LoginBatch();
+    for (LoginEntry le : loginEntries) {
+      batch.add(le);
+    }
+    return batch;
+  }
+
+  public void add(LoginEntry le) {
+    handle(le.getId(), le.getIdpEntityId(), le.getIdpEntityName(), le.getLoginDate().getTime(), le.getSpEntityId(),
+        le.getSpEntityName(), le.getUserId());
+  }
+
+  @Override
+  public void handle(long id, String idpEntityId, String idpEntityName, long loginTime, String spEntityId,
+      String spEntityName, String userId) {
+    size += 1;
+    lastId = id;
+    lastLoginTime = loginTime;
+    if (shard != null && !shard.contains(spEntityId)) {
+      skipped += 1;
+      return;
+    }
+
+    RecordHash dayHash = new RecordHash(aggregationRecordHash(idpEntityId, spEntityId, loginTime));
+    DailyLogins daily = dailyLogins.get(dayHash);
+    if (daily == null) {
+      daily = new DailyLogins(dayHash, new Date(loginTime), idpEntityId, idpEntityName, spEntityId, spEntityName);
+      dailyLogins.put(dayHash, daily);
+    }
+    daily.count += 1;
+
+    RecordHash userHash = new RecordHash(aggregationRecordHash(userId, spEntityId));
+    LastLogin last = lastLogins.get(userHash);
+    if (last == null) {
+      lastLogins.put(userHash, new LastLogin(userHash, userId, spEntityId, spEntityName, idpEntityId, new Date(loginTime)));
+    } else if (last.loginDate.getTime() != loginTime) {
+      /*
+       * the last processed login wins, just like an update of an existing
+       * record would have done
+       */
+      last.loginDate = new Date(loginTime);
+    }
+
+    calendar.setTimeInMillis(loginTime);
+    int month = calendar.get(MONTH) + 1; //this stupid thing is 0 based
+    int year = calendar.get(YEAR);
+    RecordHash uniqueHash = new RecordHash(aggregationRecordHash(userId, spEntityId, idpEntityId, year, month));
+    if (!uniqueLogins.containsKey(uniqueHash)) {
+      uniqueLogins.put(uniqueHash, new UniqueLogin(uniqueHash, userId, spEntityId, idpEntityId, month, year));
+    }
+  }
+
+  /**
+   * @return the number of LoginEntries added to this batch, including the
+   *         skipped ones
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * @return the number of LoginEntries skipped as they belong to another shard
+   */
+  public int getSkipped() {
+    return skipped;
+  }
+
+  /**
+   * @return the id of the last LoginEntry added, or null for an empty batch
+   */
+  public Long getLastId() {
+    return isEmpty() ? null : lastId;
+  }
+
+  /**
+   * @return the login time of the last LoginEntry added, or null for an empty batch
+   */
+  public Date getLastLoginDate() {
+    return isEmpty() ? null : new Date(lastLoginTime);
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @return the count deltas per (day, idp, sp), in order of first appearance
+   */
+  public Collection<DailyLogins> getDailyLogins() {
+    return dailyLogins.values();
+  }
+
+  /**
+   * @return the last login per (user, sp), in order of first appearance
+   */
+  public Collection<LastLogin> getLastLogins() {
+    return lastLogins.values();
+  }
+
+  /**
+   * @return the distinct (user, sp, idp, month) tuples, in order of first appearance
+   */
+  public Collection<UniqueLogin> getUniqueLogins() {
+    return uniqueLogins.values();
+  }
+
+  public static class DailyLogins {
+    private final RecordHash hash;
+    private final Date loginDate;
+    private final String idpEntityId;
+    private final String idpEntityName;
+    private final String spEntityId;
+    private final String spEntityName;
+    private int count = 0;
+
+    private DailyLogins(RecordHash hash, Date loginDate, String idpEntityId, String idpEntityName, String spEntityId,
+        String spEntityName) {
+      this.hash = hash;
+      this.loginDate = loginDate;
+      this.idpEntityId = idpEntityId;
+      this.idpEntityName = idpEntityName;
+      this.spEntityId = spEntityId;
+      this.spEntityName = spEntityName;
+    }
+
+    public RecordHash getHash() {
+      return hash;
+    }
+
+    public Date getLoginDate() {
+      return loginDate;
+    }
+
+    public String getIdpEntityId() {
+      return idpEntityId;
+    }
+
+    public String getIdpEntityName() {
+      return idpEntityName;
+    }
+
+    public String getSpEntityId() {
+      return spEntityId;
+    }
+
+    public String getSpEntityName() {
+      return spEntityName;
+    }
+
+    public int getCount() {
+      return count;
+    }
+  }
+
+  public static class LastLogin {
+    private final RecordHash hash;
+    private final String userId;
+    private final String spEntityId;
+    private final String spEntityName;
+    private final String idpEntityId;
+    private Date loginDate;
+
+    LastLogin(RecordHash hash, String userId, String spEntityId, String spEntityName, String idpEntityId, Date loginDate) {
+      this.hash = hash;
+      this.userId = userId;
+      this.spEntityId = spEntityId;
+      this.spEntityName = spEntityName;
+      this.idpEntityId = idpEntityId;
+      this.loginDate = loginDate;
+    }
+
+    public RecordHash getHash() {
+      return hash;
+    }
+
+    public String getUserId() {
+      return userId;
+    }
+
+    public String getSpEntityId() {
+      return spEntityId;
+    }
+
+    public String getSpEntityName() {
+      return spEntityName;
+    }
+
+    public String getIdpEntityId() {
+      return idpEntityId;
+    }
+
+    public Date getLoginDate() {
+      return loginDate;
+    }
+  }
+
+  public static class UniqueLogin {
+    private final RecordHash hash;
+    private final String userId;
+    private final String spEntityId;
+    private final String idpEntityId;
+    private final int month;
+    private final int year;
+
+    private UniqueLogin(RecordHash hash, String userId, String spEntityId, String idpEntityId, int month, int year) {
+      this.hash = hash;
+      this.userId = userId;
+      this.spEntityId = spEntityId;
+      this.idpEntityId = idpEntityId;
+      this.month = month;
+      this.year = year;
+    }
+
+    public RecordHash getHash() {
+      return hash;
+    }
+
+    public String getUserId() {
+      return userId;
+    }
+
+    public String getSpEntityId() {
+      return spEntityId;
+    }
+
+    public String getIdpEntityId() {
+      return idpEntityId;
+    }
+
+    public int getMonth() {
+      return month;
+    }
+
+    public int getYear() {
+      return year;
+    }
+  }
+}
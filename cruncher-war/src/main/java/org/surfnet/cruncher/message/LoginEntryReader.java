@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.message;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.surfnet.cruncher.repository.AggregationShard;
+import org.surfnet.cruncher.repository.StatisticsRepository;
+
+/**
+ * Reads pages of login-log entries ahead of the aggregation and hands them over
+ * through a bounded queue, so the next page is read from the EngineBlock
+ * database while the previous one is being written. Every page is streamed
+ * straight into a {@link LoginBatch}, when the queue is full the reader waits,
+ * so at most 'queue capacity' reduced pages are held in memory.
+ * <p>
+ * The reader keeps its own position in the login-log; the aggregation point in
+ * the database is only moved by the aggregation transactions. The end of the
+ * pages is signalled with {@link #END}.
+ * </p>
+ */
+class LoginEntryReader implements Callable<Integer> {
+  private static final Logger LOG = LoggerFactory.getLogger(LoginEntryReader.class);
+
+  static final LoginBatch END = new LoginBatch();
+
+  private final StatisticsRepository statisticsRepository;
+  private final BlockingQueue<LoginBatch> queue;
+  private final AggregationShard shard;
+  private final int maxPageSize;
+  private final boolean catchUp;
+  private final long catchUpThreshold;
+
+  private long position;
+  private int pageSize;
+  private volatile boolean stopped = false;
+
+  /**
+   * @param statisticsRepository the repository to read from
+   * @param queue the queue to put the pages in
+   * @param shard the shard to read the logins of
+   * @param position the id after which to start reading
+   * @param pageSize the size of the first page
+   * @param maxPageSize the maximum size the pages grow to when catching up
+   * @param catchUp whether to read more than a single page
+   * @param catchUpThreshold nr of records still to be read below which reading stops
+   */
+  LoginEntryReader(StatisticsRepository statisticsRepository, BlockingQueue<LoginBatch> queue, AggregationShard shard,
+      long position, int pageSize, int maxPageSize, boolean catchUp, long catchUpThreshold) {
+    this.statisticsRepository = statisticsRepository;
+    this.queue = queue;
+    this.shard = shard;
+    this.position = position;
+    this.pageSize = pageSize;
+    this.maxPageSize = Math.max(pageSize, maxPageSize);
+    this.catchUp = catchUp;
+    this.catchUpThreshold = catchUpThreshold;
+  }
+
+  /**
+   * @return the number of pages read
+   */
+  @Override
+  public Integer call() throws InterruptedException {
+    int pages = 0;
+    try {
+      while (!stopped) {
+        LoginBatch page = new LoginBatch(shard);
+        statisticsRepository.streamLoginEntries(position, pageSize, page);
+        pages += 1;
+        if (!page.isEmpty()) {
+          position = page.getLastId();
+          if (!put(page)) {
+            break;
+          }
+        }
+        if (!catchUp || page.getSize() < pageSize) {
+          break;
+        }
+        long lag = statisticsRepository.getLastLoginEntryId() - position;
+        if (lag <= catchUpThreshold) {
+          break;
+        }
+        pageSize = Math.min(pageSize * 2, maxPageSize);
+        LOG.debug("Reader is {} records behind, reading ahead with page size {}", lag, pageSize);
+      }
+    } finally {
+      put(END);
+    }
+    return pages;
+  }
+
+  /**
+   * Stop reading, pages already read but not yet taken from the queue will not be
+   * handed over anymore.
+   */
+  void stop() {
+    stopped = true;
+  }
+
+  /*
+   * Wait for room in the queue, but give up once the reader is stopped
+   */
+  private boolean put(LoginBatch page) throws InterruptedException {
+    while (!stopped) {
+      if (queue.offer(page, 100, TimeUnit.MILLISECONDS)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.message;
+
+import static java.util.Calendar.DAY_OF_MONTH;
+import static java.util.Calendar.MONTH;
+import static java.util.Calendar.YEAR;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * Computes the SHA-1 keys of the aggregated records. The digest is fed with
+ * the UTF-8 bytes of 'yyyy-MM-dd!idp!sp' and 'user!sp', exactly like the former
+ * hex keys, but without formatting dates or concatenating strings. Unique
+ * logins are keyed by 'yyyy-MM!user!sp!idp' and entities by their entityId.
+ * Instances keep their digest and buffers and are not thread-safe, use
+ * {@link #get()}.
+ */
+final class RecordHasher {
+  private static final byte SEPARATOR = '!';
+
+  private static final ThreadLocal<RecordHasher> INSTANCE = new ThreadLocal<RecordHasher>() {
+    @Override
+    protected RecordHasher initialValue() {
+      return new RecordHasher();
+    }
+  };
+
+  private final MessageDigest digest;
+  private final Calendar calendar = new GregorianCalendar();
+  private byte[] buffer = new byte[256];
+  private int length;
+
+  private RecordHasher() {
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the RecordHasher of the current thread
+   */
+  static RecordHasher get() {
+    return INSTANCE.get();
+  }
+
+  byte[] hash(String idpEntityId, String spEntityId, long loginTime) {
+    length = 0;
+    calendar.setTimeInMillis(loginTime);
+    appendDigits(calendar.get(YEAR), 4);
+    append((byte) '-');
+    appendDigits(calendar.get(MONTH) + 1, 2);
+    append((byte) '-');
+    appendDigits(calendar.get(DAY_OF_MONTH), 2);
+    append(SEPARATOR);
+    append(idpEntityId);
+    append(SEPARATOR);
+    append(spEntityId);
+    return digest();
+  }
+
+  byte[] hash(String entityId) {
+    length = 0;
+    append(entityId);
+    return digest();
+  }
+
+  byte[] hash(String userId, String spEntityId) {
+    length = 0;
+    append(userId);
+    append(SEPARATOR);
+    append(spEntityId);
+    return digest();
+  }
+
+  byte[] hash(String userId, String spEntityId, String idpEntityId, int year, int month) {
+    length = 0;
+    appendDigits(year, 4);
+    append((byte) '-');
+    appendDigits(month, 2);
+    append(SEPARATOR);
+    append(userId);
+    append(SEPARATOR);
+    append(spEntityId);
+    append(SEPARATOR);
+    append(idpEntityId);
+    return digest();
+  }
+
+  private byte[] digest() {
+    digest.update(buffer, 0, length);
+    return digest.digest();
+  }
+
+  private void appendDigits(int value, int width) {
+    ensureCapacity(width);
+    for (int i = width - 1; i >= 0; i--) {
+      buffer[length + i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    length += width;
+  }
+
+  /*
+   * UTF-8 encoding of the value, null is encoded as "null" and unpaired
+   * surrogates as '?', just like string concatenation and String#getBytes do
+   */
+  private void append(String value) {
+    if (value == null) {
+      value = "null";
+    }
+    int count = value.length();
+    ensureCapacity(count * 3);
+    for (int i = 0; i < count; i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        buffer[length++] = (byte) c;
+      } else if (c < 0x800) {
+        buffer[length++] = (byte) (0xc0 | (c >> 6));
+        buffer[length++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        buffer[length++] = (byte) (0xf0 | (codePoint >> 18));
+        buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buffer[length++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        buffer[length++] = '?';
+      } else {
+        buffer[length++] = (byte) (0xe0 | (c >> 12));
+        buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buffer[length++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+  }
+
+  private void append(byte b) {
+    ensureCapacity(1);
+    buffer[length++] = b;
+  }
+
+  private void ensureCapacity(int extra) {
+    if (length + extra > buffer.length) {
+      byte[] bigger = new byte[Math.max(buffer.length * 2, length + extra)];
+      System.arraycopy(buffer, 0, bigger, 0, length);
+      buffer = bigger;
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.message;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+
+import org.joda.time.LocalDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.surfnet.cruncher.repository.QueryResultCache;
+import org.surfnet.cruncher.repository.StatisticsRepository;
+
+/**
+ * Moves the exact unique logins of closed months from the unique login cache to
+ * the unique logins per month, separate from the aggregation. The months are
+ * done one at a time, oldest first, in chunks of rows that each have a short
+ * transaction of their own. The repository records after each chunk how far
+ * the month got, so a run that stops halfway (shutdown, failure) is resumed by
+ * the next one.
+ * <p>
+ * A month is closed once every aggregation shard has reached a later month, so
+ * the run waits for the slowest shard and for shards that have not aggregated
+ * anything yet. Late logins of a closed month that arrive after it was moved
+ * are picked up by the next run.
+ * </p>
+ */
+@Component("uniqueLoginsRollover")
+@ManagedResource(objectName = "org.surfnet.cruncher:name=UniqueLoginsRollover")
+public class UniqueLoginsRollover {
+  private static final Logger LOG = LoggerFactory.getLogger(UniqueLoginsRollover.class);
+
+  @Inject
+  private StatisticsRepository statisticsRepository;
+
+  @Inject
+  private TransactionTemplate transactionTemplate;
+
+  @Inject
+  private QueryResultCache queryResultCache;
+
+  @Value("${unique-logins.rollover.enabled}")
+  private boolean enabled;
+
+  @Value("${unique-logins.rollover.chunk-size}")
+  private int chunkSize;
+
+  private final AtomicLong rowsMoved = new AtomicLong();
+  private final AtomicLong monthsCompleted = new AtomicLong();
+
+  public void run() {
+    if (!enabled) {
+      LOG.debug("unique logins rollover disabled, because unique-logins.rollover.enabled=false");
+      return;
+    }
+    LocalDate currentMonth = statisticsRepository.getCurrentAggregationMonth();
+    if (currentMonth == null) {
+      return;
+    }
+    List<LocalDate> months = statisticsRepository.getClosedUniqueLoginMonths(currentMonth);
+    for (LocalDate month : months) {
+      try {
+        rollOver(month);
+      } catch (OptimisticLockingFailureException e) {
+        LOG.info("Stopped the unique logins rollover of {}: {}", month, e.getMessage());
+        return;
+      }
+    }
+  }
+
+  private void rollOver(final LocalDate month) {
+    long start = System.currentTimeMillis();
+    long moved = 0L;
+    int chunk;
+    do {
+      chunk = transactionTemplate.execute(new TransactionCallback<Integer>() {
+        @Override
+        public Integer doInTransaction(TransactionStatus status) {
+          return statisticsRepository.rollOverUniqueLogins(month, chunkSize);
+        }
+      });
+      moved += chunk;
+      rowsMoved.addAndGet(chunk);
+    } while (chunk > 0);
+    monthsCompleted.incrementAndGet();
+    queryResultCache.invalidate(month, month.plusMonths(1).minusDays(1));
+    LOG.info("Moved {} unique login rows of {} in {} ms", new Object[] {moved, month, System.currentTimeMillis() - start});
+  }
+
+  @ManagedAttribute
+  public long getRowsMoved() {
+    return rowsMoved.get();
+  }
+
+  @ManagedAttribute
+  public long getMonthsCompleted() {
+    return monthsCompleted.get();
+  }
+
+  void setChunkSize(int chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+}
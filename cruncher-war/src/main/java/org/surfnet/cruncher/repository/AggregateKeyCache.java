@@ -0,0 +1,219 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.repository;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Size bounded cache of the datespidphash and usersphash keys known to exist in
+ * the cruncher database. For keys in the cache the aggregation goes straight to
+ * an update, without querying for their existence first.
+ * <p>
+ * Keys are only added once the transaction that wrote them is committed. If a
+ * cached key turns out to be gone anyway (e.g. removed by the cleaner of
+ * another node) the update does not touch any row and the record is inserted,
+ * so a stale cache never loses logins.
+ * </p>
+ */
+@Named
+@DependsOn("flyway")
+@ManagedResource(objectName = "org.surfnet.cruncher:name=AggregateKeyCache")
+public class AggregateKeyCache {
+  private static final Logger LOG = LoggerFactory.getLogger(AggregateKeyCache.class);
+
+  @Inject
+  private JdbcTemplate cruncherJdbcTemplate;
+
+  @Value("${aggregation.key-cache.size}")
+  private int size;
+
+  private KeySet aggregatedKeys;
+  private KeySet userKeys;
+
+  public AggregateKeyCache() {
+  }
+
+  AggregateKeyCache(int size) {
+    this.size = size;
+    this.aggregatedKeys = new KeySet(size);
+    this.userKeys = new KeySet(size);
+  }
+
+  @PostConstruct
+  public void init() {
+    aggregatedKeys = new KeySet(size);
+    userKeys = new KeySet(size);
+    if (size > 0) {
+      warmUp();
+    }
+  }
+
+  /**
+   * Fill the cache with the keys of the most recent day, these are the ones the
+   * aggregation is most likely to update next.
+   */
+  public void warmUp() {
+    List<byte[]> aggregated = cruncherJdbcTemplate.queryForList("select datespidphash from aggregated_log_logins " +
+        "where entryday = (select max(entryday) from aggregated_log_logins)", byte[].class);
+    List<byte[]> users = cruncherJdbcTemplate.queryForList("select usersphash from user_log_logins " +
+        "where loginstamp >= (select max(entryday) from aggregated_log_logins)", byte[].class);
+    for (byte[] hash : aggregated) {
+      aggregatedKeys.add(new RecordHash(hash));
+    }
+    for (byte[] hash : users) {
+      userKeys.add(new RecordHash(hash));
+    }
+    LOG.info("Warmed up the aggregate key cache with {} aggregated and {} user keys", aggregated.size(), users.size());
+  }
+
+  public boolean containsAggregated(RecordHash hash) {
+    return aggregatedKeys.contains(hash);
+  }
+
+  public boolean containsUser(RecordHash hash) {
+    return userKeys.contains(hash);
+  }
+
+  /**
+   * Remember the given aggregated keys, after the current transaction (if any) is
+   * committed.
+   */
+  public void addAggregated(Collection<RecordHash> hashes) {
+    addAfterCommit(aggregatedKeys, hashes);
+  }
+
+  /**
+   * Remember the given user keys, after the current transaction (if any) is
+   * committed.
+   */
+  public void addUser(Collection<RecordHash> hashes) {
+    addAfterCommit(userKeys, hashes);
+  }
+
+  @ManagedOperation(description = "Remove all keys from the cache")
+  public void invalidate() {
+    aggregatedKeys.clear();
+    userKeys.clear();
+    LOG.debug("Invalidated the aggregate key cache");
+  }
+
+  @ManagedAttribute
+  public long getAggregatedHits() {
+    return aggregatedKeys.hits.get();
+  }
+
+  @ManagedAttribute
+  public long getAggregatedMisses() {
+    return aggregatedKeys.misses.get();
+  }
+
+  @ManagedAttribute
+  public int getAggregatedSize() {
+    return aggregatedKeys.size();
+  }
+
+  @ManagedAttribute
+  public long getUserHits() {
+    return userKeys.hits.get();
+  }
+
+  @ManagedAttribute
+  public long getUserMisses() {
+    return userKeys.misses.get();
+  }
+
+  @ManagedAttribute
+  public int getUserSize() {
+    return userKeys.size();
+  }
+
+  private void addAfterCommit(final KeySet keySet, final Collection<RecordHash> hashes) {
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+        @Override
+        public void afterCommit() {
+          keySet.addAll(hashes);
+        }
+      });
+    } else {
+      keySet.addAll(hashes);
+    }
+  }
+
+  /*
+   * Set of keys, evicting the least recently used key when full
+   */
+  private static class KeySet {
+    private final Map<RecordHash, Boolean> keys;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private KeySet(final int maxSize) {
+      this.keys = new LinkedHashMap<RecordHash, Boolean>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<RecordHash, Boolean> eldest) {
+          return size() > maxSize;
+        }
+      };
+    }
+
+    private synchronized boolean contains(RecordHash key) {
+      boolean result = keys.get(key) != null;
+      (result ? hits : misses).incrementAndGet();
+      return result;
+    }
+
+    private synchronized void addAll(Collection<RecordHash> newKeys) {
+      for (RecordHash key : newKeys) {
+        add(key);
+      }
+    }
+
+    private synchronized void add(RecordHash key) {
+      keys.put(key, Boolean.TRUE);
+    }
+
+    private synchronized void clear() {
+      keys.clear();
+    }
+
+    private synchronized int size() {
+      return keys.size();
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.repository;
+
+import java.util.Date;
+
+/**
+ * A shard of the login-log, as recorded in aggregation_shard. The logins are
+ * divided over the shards by the hash of their SP, so the rows written for
+ * different shards (per day, user, month etc. and always per SP) never
+ * overlap and the shards can be aggregated concurrently.
+ */
+public class AggregationShard {
+  private final int index;
+  private final int shards;
+  private final long checkpoint;
+  private final String owner;
+  private final Date leaseUntil;
+
+  public AggregationShard(int index, int shards, long checkpoint, String owner, Date leaseUntil) {
+    this.index = index;
+    this.shards = shards;
+    this.checkpoint = checkpoint;
+    this.owner = owner;
+    this.leaseUntil = leaseUntil;
+  }
+
+  /**
+   * @return the index of the shard the logins of the SP belong to
+   */
+  public static int indexOf(String spEntityId, int shards) {
+    if (spEntityId == null || shards <= 1) {
+      return 0;
+    }
+    // String.hashCode is the same in every JVM, so all nodes agree on it
+    return (spEntityId.hashCode() & Integer.MAX_VALUE) % shards;
+  }
+
+  /**
+   * @return whether the logins of the SP belong to this shard
+   */
+  public boolean contains(String spEntityId) {
+    return indexOf(spEntityId, shards) == index;
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  /**
+   * @return the total nr of shards
+   */
+  public int getShards() {
+    return shards;
+  }
+
+  /**
+   * @return the id of the last login-log entry aggregated for this shard
+   */
+  public long getCheckpoint() {
+    return checkpoint;
+  }
+
+  /**
+   * @return the node holding the lease, or null
+   */
+  public String getOwner() {
+    return owner;
+  }
+
+  public Date getLeaseUntil() {
+    return leaseUntil;
+  }
+
+  @Override
+  public String toString() {
+    return "shard " + index + " of " + shards + " at " + checkpoint +
+        (owner == null ? "" : ", leased by " + owner + " until " + leaseUntil);
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.repository;
+
+/**
+ * Bloom filter of record hashes. {@link #mightContain(RecordHash)} never
+ * misses a hash that was added, but may claim a hash that never was, with
+ * (about) the false positive rate it is sized for.
+ * <p>
+ * The record hashes are SHA-1 digests and thus already evenly spread, the bit
+ * positions are derived from their first 16 bytes (double hashing) instead of
+ * hashing them again.
+ * </p>
+ */
+final class BloomFilter {
+  private final long[] bits;
+  private final long size;
+  private final int hashCount;
+
+  /**
+   * @param expectedInsertions the nr of hashes at which the false positive rate is reached
+   * @param falsePositiveRate the wanted false positive rate, e.g. 0.01
+   */
+  BloomFilter(int expectedInsertions, double falsePositiveRate) {
+    long n = Math.max(1, expectedInsertions);
+    long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+    this.bits = new long[(int) ((Math.max(64L, m) + 63) / 64)];
+    this.size = bits.length * 64L;
+    this.hashCount = Math.max(1, (int) Math.round((double) size / n * Math.log(2)));
+  }
+
+  void add(RecordHash hash) {
+    long h1 = toLong(hash.getBytes(), 0);
+    long h2 = toLong(hash.getBytes(), 8);
+    for (int i = 0; i < hashCount; i++) {
+      long index = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+      bits[(int) (index >>> 6)] |= 1L << index;
+    }
+  }
+
+  boolean mightContain(RecordHash hash) {
+    long h1 = toLong(hash.getBytes(), 0);
+    long h2 = toLong(hash.getBytes(), 8);
+    for (int i = 0; i < hashCount; i++) {
+      long index = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+      if ((bits[(int) (index >>> 6)] & (1L << index)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the size of the filter in bytes
+   */
+  long getByteSize() {
+    return bits.length * 8L;
+  }
+
+  private static long toLong(byte[] bytes, int offset) {
+    long result = 0L;
+    for (int i = offset; i < offset + 8; i++) {
+      result = (result << 8) | (bytes[i] & 0xff);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.repository;
+
+import java.util.Arrays;
+
+/**
+ * HyperLogLog sketch estimating the number of distinct users. Sketches of
+ * different SPs, IdPs or months can be merged, the estimate of the merged
+ * sketch is that of the union of the users (a user counted in both only counts
+ * once).
+ * <p>
+ * With 2^12 registers the relative standard error is 1.04 / sqrt(4096) = 1.6%:
+ * about 68% of the estimates are within 1.6% of the real count, 95% within 3.3%
+ * and 99.7% within 4.9%. Below 10.000 users (2.5 x the registers) linear
+ * counting is used, which is close to exact for small counts.
+ * </p>
+ * <p>
+ * Serialized, a sketch with few users only holds its non-empty registers (3
+ * bytes each), at most it takes 4098 bytes.
+ * </p>
+ */
+final class HyperLogLog {
+  static final int PRECISION = 12;
+  private static final int REGISTERS = 1 << PRECISION;
+
+  private static final byte SPARSE = 0;
+  private static final byte DENSE = 1;
+
+  private final byte[] registers;
+  private boolean changed = false;
+
+  HyperLogLog() {
+    this.registers = new byte[REGISTERS];
+  }
+
+  /**
+   * Add a user to the sketch.
+   */
+  void add(String userId) {
+    long hash = hash(userId);
+    int index = (int) (hash >>> (64 - PRECISION));
+    // the guard bit limits the rank to 64 - PRECISION + 1
+    long remaining = (hash << PRECISION) | (1L << (PRECISION - 1));
+    setRegister(index, (byte) (Long.numberOfLeadingZeros(remaining) + 1));
+  }
+
+  /**
+   * Add all users of the other sketch to this one.
+   */
+  void merge(HyperLogLog other) {
+    for (int i = 0; i < REGISTERS; i++) {
+      setRegister(i, other.registers[i]);
+    }
+  }
+
+  /**
+   * @return the estimated number of distinct users added
+   */
+  long estimate() {
+    double sum = 0d;
+    int zeros = 0;
+    for (byte register : registers) {
+      sum += 1d / (1L << register);
+      if (register == 0) {
+        zeros += 1;
+      }
+    }
+    double alpha = 0.7213d / (1d + 1.079d / REGISTERS);
+    double estimate = alpha * REGISTERS * REGISTERS / sum;
+    if (estimate <= 2.5d * REGISTERS && zeros > 0) {
+      estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  /**
+   * @return whether a register changed since this sketch was created or read,
+   *         if not it needs no writing
+   */
+  boolean isChanged() {
+    return changed;
+  }
+
+  /**
+   * @return the sketch as stored in the database
+   */
+  byte[] toBytes() {
+    int used = 0;
+    for (byte register : registers) {
+      if (register != 0) {
+        used += 1;
+      }
+    }
+    if (used * 3 >= REGISTERS) {
+      byte[] result = new byte[REGISTERS + 2];
+      result[0] = DENSE;
+      result[1] = PRECISION;
+      System.arraycopy(registers, 0, result, 2, REGISTERS);
+      return result;
+    }
+    byte[] result = new byte[2 + used * 3];
+    result[0] = SPARSE;
+    result[1] = PRECISION;
+    int position = 2;
+    for (int i = 0; i < REGISTERS; i++) {
+      if (registers[i] != 0) {
+        result[position++] = (byte) (i >>> 8);
+        result[position++] = (byte) i;
+        result[position++] = registers[i];
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @param bytes a sketch as returned by {@link #toBytes()}
+   */
+  static HyperLogLog fromBytes(byte[] bytes) {
+    if (bytes.length < 2 || bytes[1] != PRECISION) {
+      throw new IllegalArgumentException("Not a sketch with precision " + PRECISION);
+    }
+    HyperLogLog result = new HyperLogLog();
+    if (bytes[0] == DENSE) {
+      System.arraycopy(bytes, 2, result.registers, 0, REGISTERS);
+    } else {
+      for (int position = 2; position + 2 < bytes.length; position += 3) {
+        int index = ((bytes[position] & 0xff) << 8) | (bytes[position + 1] & 0xff);
+        result.registers[index] = bytes[position + 2];
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return obj instanceof HyperLogLog && Arrays.equals(registers, ((HyperLogLog) obj).registers);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(registers);
+  }
+
+  private void setRegister(int index, byte value) {
+    if (value > registers[index]) {
+      registers[index] = value;
+      changed = true;
+    }
+  }
+
+  /*
+   * 64 bit FNV-1a of the characters, followed by the MurmurHash3 finalizer to
+   * spread the bits over the whole hash
+   */
+  static long hash(String value) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      hash ^= c & 0xff;
+      hash *= 0x100000001b3L;
+      hash ^= c >>> 8;
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.repository;
+
+import org.surfnet.cruncher.model.LoginData;
+
+/**
+ * Callback for streaming login series, see
+ * {@link StatisticsRepository#streamLogins(org.joda.time.LocalDate, org.joda.time.LocalDate, String, String, LoginInterval, LoginDataHandler)}
+ */
+public interface LoginDataHandler {
+
+  /**
+   * Handle the completed series of a single (idp, sp) pair.
+   */
+  void handle(LoginData loginData);
+}
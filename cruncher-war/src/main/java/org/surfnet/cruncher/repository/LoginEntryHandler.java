@@ -0,0 +1,28 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.repository;
+
+/**
+ * Callback for login-log entries that are streamed from the database, one call
+ * per row. The values are handed over as is, so no LoginEntry has to be created
+ * for every row.
+ */
+public interface LoginEntryHandler {
+
+  void handle(long id, String idpEntityId, String idpEntityName, long loginTime, String spEntityId, String spEntityName,
+      String userId);
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.repository;
+
+import org.joda.time.DateTimeConstants;
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
+import org.joda.time.Months;
+
+/**
+ * The size of the data points in a login series. Days are read from the
+ * aggregated logins, weeks (starting on monday) and months from the rollups
+ * the aggregator maintains next to them.
+ */
+public enum LoginInterval {
+
+  DAY(24L * 60L * 60L * 1000L) {
+    @Override
+    public LocalDate periodStart(LocalDate date) {
+      return date;
+    }
+
+    @Override
+    public LocalDate nextPeriod(LocalDate periodStart) {
+      return periodStart.plusDays(1);
+    }
+
+    @Override
+    public int periodsBetween(LocalDate firstPeriod, LocalDate periodStart) {
+      return Days.daysBetween(firstPeriod, periodStart).getDays();
+    }
+  },
+
+  WEEK(7L * 24L * 60L * 60L * 1000L) {
+    @Override
+    public LocalDate periodStart(LocalDate date) {
+      return date.withDayOfWeek(DateTimeConstants.MONDAY);
+    }
+
+    @Override
+    public LocalDate nextPeriod(LocalDate periodStart) {
+      return periodStart.plusWeeks(1);
+    }
+
+    @Override
+    public int periodsBetween(LocalDate firstPeriod, LocalDate periodStart) {
+      return Days.daysBetween(firstPeriod, periodStart).getDays() / 7;
+    }
+  },
+
+  /**
+   * Months differ in length, the point interval is that of an average month
+   */
+  MONTH(30L * 24L * 60L * 60L * 1000L) {
+    @Override
+    public LocalDate periodStart(LocalDate date) {
+      return date.withDayOfMonth(1);
+    }
+
+    @Override
+    public LocalDate nextPeriod(LocalDate periodStart) {
+      return periodStart.plusMonths(1);
+    }
+
+    @Override
+    public int periodsBetween(LocalDate firstPeriod, LocalDate periodStart) {
+      return Months.monthsBetween(firstPeriod, periodStart).getMonths();
+    }
+  };
+
+  private final long pointInterval;
+
+  private LoginInterval(long pointInterval) {
+    this.pointInterval = pointInterval;
+  }
+
+  /**
+   * @return the first day of the period the given date is in
+   */
+  public abstract LocalDate periodStart(LocalDate date);
+
+  /**
+   * @return the first day of the period after the given one
+   */
+  public abstract LocalDate nextPeriod(LocalDate periodStart);
+
+  /**
+   * @return the number of periods from the first to the given period, both
+   *         being the start of a period
+   */
+  public abstract int periodsBetween(LocalDate firstPeriod, LocalDate periodStart);
+
+  /**
+   * @return the length of a period in milliseconds
+   */
+  public long getPointInterval() {
+    return pointInterval;
+  }
+
+  /**
+   * @param value 'day', 'week' or 'month' (case insensitive), null for the default 'day'
+   * @throws IllegalArgumentException for any other value
+   */
+  public static LoginInterval fromParameter(String value) {
+    if (value == null) {
+      return DAY;
+    }
+    for (LoginInterval interval : values()) {
+      if (interval.name().equalsIgnoreCase(value)) {
+        return interval;
+      }
+    }
+    throw new IllegalArgumentException("interval must be one of day, week or month, not " + value);
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.repository;
+
+import org.joda.time.LocalDate;
+import org.surfnet.cruncher.model.LoginData;
+
+/**
+ * Builds the data points of a single LoginData. Counts are put straight into an
+ * int array by their period offset from the first period, so building a series
+ * costs one step per row instead of a map entry and a boxed Integer per day.
+ */
+class LoginSeries {
+  private final LoginData loginData;
+  private final LoginInterval interval;
+  private final LocalDate firstPeriod;
+  private final LocalDate end;
+  private final int[] counts;
+
+  /**
+   * @param loginData the LoginData to build the series for
+   * @param interval the period of a single data point
+   * @param firstPeriod start of the first period
+   * @param end the last date, its period is the last data point
+   */
+  LoginSeries(LoginData loginData, LoginInterval interval, LocalDate firstPeriod, LocalDate end) {
+    this.loginData = loginData;
+    this.interval = interval;
+    this.firstPeriod = firstPeriod;
+    this.end = end;
+    this.counts = new int[Math.max(0, interval.periodsBetween(firstPeriod, interval.periodStart(end)) + 1)];
+  }
+
+  /**
+   * Set the count of the period starting at the given date, periods outside the
+   * series are ignored.
+   */
+  void set(LocalDate periodStart, int count) {
+    int index = interval.periodsBetween(firstPeriod, periodStart);
+    if (index >= 0 && index < counts.length) {
+      counts[index] = count;
+    }
+  }
+
+  /**
+   * Add a count to the period the given day is in, days outside the series are
+   * ignored.
+   */
+  void add(LocalDate day, int count) {
+    int index = interval.periodsBetween(firstPeriod, interval.periodStart(day));
+    if (index >= 0 && index < counts.length) {
+      counts[index] += count;
+    }
+  }
+
+  /**
+   * Hand the data points, total and point times over to the LoginData.
+   * @return the LoginData
+   */
+  LoginData build() {
+    int total = 0;
+    for (int count : counts) {
+      total += count;
+    }
+    loginData.setDataPoints(counts);
+    loginData.setTotal(total);
+    loginData.setPointStart(firstPeriod.toDate().getTime());
+    loginData.setPointEnd(end.toDate().getTime());
+    loginData.setPointInterval(interval.getPointInterval());
+    return loginData;
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.repository;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.joda.time.LocalDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Maintains the monthly partitions of the tables partitioned by entryday (see
+ * the V4.11.0 migration). Partition pyyyyMM holds the days of that month, pmax
+ * holds the days after the last month partition and should stay empty: the
+ * partitions of the coming months are split off it ahead of time. Splitting
+ * only copies the rows of pmax, so it is cheap enough to do at startup as long
+ * as pmax is empty (the migration creates the partitions of every month that
+ * has data). Expired months are removed by dropping their partition, which
+ * takes no longer than dropping a table.
+ * <p>
+ * Databases without partitioning (HSQLDB in the tests, or a MySQL database
+ * that is not migrated) are left alone, the cleaner then deletes all expired
+ * records row by row.
+ * </p>
+ */
+@Named
+@DependsOn("flyway")
+@ManagedResource(objectName = "org.surfnet.cruncher:name=PartitionManager")
+public class PartitionManager {
+  private static final Logger LOG = LoggerFactory.getLogger(PartitionManager.class);
+
+  public static final List<String> PARTITIONED_TABLES = Arrays.asList("aggregated_log_logins", "aggregated_log_logins_rollup");
+  static final String MAX_PARTITION = "pmax";
+
+  @Inject
+  private JdbcTemplate cruncherJdbcTemplate;
+
+  @Value("${partitions.months-ahead}")
+  private int monthsAhead;
+
+  private final AtomicLong partitionsCreated = new AtomicLong();
+  private final AtomicLong partitionsDropped = new AtomicLong();
+
+  private Boolean supported;
+
+  @PostConstruct
+  public void init() {
+    try {
+      createPartitions();
+    } catch (DataAccessException e) {
+      LOG.error("Could not create the partitions of the coming months", e);
+    }
+  }
+
+  /**
+   * Make sure the partitions of the current month and the configured nr of
+   * months after it exist.
+   */
+  @ManagedOperation(description = "Create the partitions of the coming months")
+  public void createPartitions() {
+    LocalDate wantedBound = new LocalDate().withDayOfMonth(1).plusMonths(monthsAhead + 1);
+    for (String table : PARTITIONED_TABLES) {
+      List<Partition> partitions = getPartitions(table);
+      List<Partition> missing = missingPartitions(partitions, wantedBound);
+      if (missing.isEmpty()) {
+        continue;
+      }
+      cruncherJdbcTemplate.execute(reorganizeStatement(table, lastBound(partitions), wantedBound));
+      partitionsCreated.addAndGet(missing.size());
+      LOG.info("Created {} partitions of {}, up to {}", new Object[] {missing.size(), table, wantedBound});
+    }
+  }
+
+  /**
+   * Drop the partitions of the table that only hold days before the given one.
+   * @return the nr of partitions dropped, 0 if the table is not partitioned
+   */
+  public int dropPartitions(String table, LocalDate before) {
+    List<Partition> expired = expiredPartitions(getPartitions(table), before);
+    if (expired.isEmpty()) {
+      return 0;
+    }
+    StringBuilder names = new StringBuilder();
+    for (Partition partition : expired) {
+      names.append(names.length() == 0 ? "" : ", ").append(partition.name);
+    }
+    cruncherJdbcTemplate.execute("ALTER TABLE " + table + " DROP PARTITION " + names);
+    partitionsDropped.addAndGet(expired.size());
+    LOG.info("Dropped the partitions {} of {}", names, table);
+    return expired.size();
+  }
+
+  @ManagedAttribute
+  public long getPartitionsCreated() {
+    return partitionsCreated.get();
+  }
+
+  @ManagedAttribute
+  public long getPartitionsDropped() {
+    return partitionsDropped.get();
+  }
+
+  /*
+   * The month partitions between the last bound of the partitions and the wanted bound,
+   * none if the table is not partitioned
+   */
+  static List<Partition> missingPartitions(List<Partition> partitions, LocalDate wantedBound) {
+    LocalDate lastBound = lastBound(partitions);
+    return lastBound == null ? Collections.<Partition>emptyList() : monthPartitions(lastBound, wantedBound);
+  }
+
+  /*
+   * The partitions that only hold days before the given one
+   */
+  static List<Partition> expiredPartitions(List<Partition> partitions, LocalDate before) {
+    List<Partition> result = new ArrayList<Partition>();
+    for (Partition partition : partitions) {
+      if (partition.bound != null && !partition.bound.isAfter(before)) {
+        result.add(partition);
+      }
+    }
+    return result;
+  }
+
+  /*
+   * The partitions of the months from the first one up to the bound, firstMonth and bound
+   * are first days of a month
+   */
+  static List<Partition> monthPartitions(LocalDate firstMonth, LocalDate bound) {
+    List<Partition> result = new ArrayList<Partition>();
+    for (LocalDate month = firstMonth; month.isBefore(bound); month = month.plusMonths(1)) {
+      result.add(new Partition("p" + month.toString("yyyyMM"), month.plusMonths(1)));
+    }
+    return result;
+  }
+
+  /**
+   * Partition the table per month: the days before the first month in p_start,
+   * the days from the bound on in the max partition. Used by the migration that
+   * partitions the tables.
+   */
+  public static String partitionStatement(String table, LocalDate firstMonth, LocalDate bound) {
+    StringBuilder result = new StringBuilder("ALTER TABLE ").append(table)
+        .append(" PARTITION BY RANGE COLUMNS(entryday) (PARTITION p_start VALUES LESS THAN ('")
+        .append(firstMonth).append("'), ");
+    return appendPartitions(result, monthPartitions(firstMonth, bound)).toString();
+  }
+
+  /*
+   * Split the partitions of the months from lastBound up to wantedBound off the max partition
+   */
+  static String reorganizeStatement(String table, LocalDate lastBound, LocalDate wantedBound) {
+    StringBuilder result = new StringBuilder("ALTER TABLE ").append(table)
+        .append(" REORGANIZE PARTITION ").append(MAX_PARTITION).append(" INTO (");
+    return appendPartitions(result, monthPartitions(lastBound, wantedBound)).toString();
+  }
+
+  private static StringBuilder appendPartitions(StringBuilder statement, List<Partition> partitions) {
+    for (Partition partition : partitions) {
+      statement.append("PARTITION ").append(partition.name)
+          .append(" VALUES LESS THAN ('").append(partition.bound).append("'), ");
+    }
+    return statement.append("PARTITION ").append(MAX_PARTITION).append(" VALUES LESS THAN (MAXVALUE))");
+  }
+
+  private static LocalDate lastBound(List<Partition> partitions) {
+    LocalDate result = null;
+    for (Partition partition : partitions) {
+      if (partition.bound != null) {
+        result = partition.bound;
+      }
+    }
+    return result;
+  }
+
+  /*
+   * The bound of a partition as described in the information schema, null for MAXVALUE
+   */
+  static LocalDate parseBound(String description) {
+    if (description == null || "MAXVALUE".equalsIgnoreCase(description)) {
+      return null;
+    }
+    return new LocalDate(description.replace("'", ""));
+  }
+
+  /*
+   * The partitions of the table in order, empty if it is not partitioned
+   */
+  private List<Partition> getPartitions(String table) {
+    if (!isSupported()) {
+      return Collections.emptyList();
+    }
+    return cruncherJdbcTemplate.query("select partition_name, partition_description from information_schema.partitions " +
+        "where table_schema = database() and table_name = ? and partition_name is not null " +
+        "order by partition_ordinal_position", new RowMapper<Partition>() {
+      @Override
+      public Partition mapRow(ResultSet rs, int rowNum) throws SQLException {
+        return new Partition(rs.getString("partition_name"), parseBound(rs.getString("partition_description")));
+      }
+    }, table);
+  }
+
+  private synchronized boolean isSupported() {
+    if (supported == null) {
+      try {
+        String product = (String) JdbcUtils.extractDatabaseMetaData(cruncherJdbcTemplate.getDataSource(),
+            "getDatabaseProductName");
+        supported = "MySQL".equalsIgnoreCase(product);
+      } catch (MetaDataAccessException e) {
+        LOG.warn("Could not determine the database product, not managing partitions", e);
+        supported = false;
+      }
+    }
+    return supported;
+  }
+
+  /*
+   * A partition holds the days before its bound (and from the bound of the partition before
+   * it), the max partition has no bound
+   */
+  static class Partition {
+    final String name;
+    final LocalDate bound;
+
+    Partition(String name, LocalDate bound) {
+      this.name = name;
+      this.bound = bound;
+    }
+  }
+}
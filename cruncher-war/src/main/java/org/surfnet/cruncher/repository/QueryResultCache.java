@@ -0,0 +1,238 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.repository;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Named;
+
+import org.joda.time.LocalDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Size bounded (least recently used) cache of query results, keyed by the
+ * normalized parameters of the query. Every result is stored with the range of
+ * login days it is computed from, or without a range if it may depend on any
+ * day.
+ * <p>
+ * The aggregator invalidates the results whose range overlaps the days it has
+ * just written. Other nodes aggregating shards of the login-log can't
+ * invalidate the results of this node, so results also expire: results whose
+ * range reaches today (or that have no range) after the ttl, results of closed
+ * periods after the (longer) closed-ttl. Other nodes write closed days while
+ * catching up with a backlog or after taking over a shard, those results are
+ * at most the closed-ttl out of date.
+ * </p>
+ * <p>
+ * Results are shared between requests and must not be modified.
+ * </p>
+ */
+@Named
+@ManagedResource(objectName = "org.surfnet.cruncher:name=QueryResultCache")
+public class QueryResultCache {
+  private static final Logger LOG = LoggerFactory.getLogger(QueryResultCache.class);
+
+  @Value("${query-cache.size}")
+  private int size;
+
+  @Value("${query-cache.ttl}")
+  private long ttl;
+
+  @Value("${query-cache.closed-ttl}")
+  private long closedTtl;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong expirations = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  private Map<Object, Entry> entries;
+
+  public QueryResultCache() {
+  }
+
+  QueryResultCache(int size, long ttl, long closedTtl) {
+    this.size = size;
+    this.ttl = ttl;
+    this.closedTtl = closedTtl;
+    init();
+  }
+
+  @PostConstruct
+  public void init() {
+    final int maxSize = size;
+    entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Object, Entry> eldest) {
+        boolean evict = size() > maxSize;
+        if (evict) {
+          evictions.incrementAndGet();
+        }
+        return evict;
+      }
+    };
+  }
+
+  /**
+   * @return the cached result for the given key, or null if there is none (or
+   *         it has expired)
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized <T> T get(Object key) {
+    Entry entry = entries.get(key);
+    if (entry != null && entry.expires <= now()) {
+      entries.remove(key);
+      expirations.incrementAndGet();
+      entry = null;
+    }
+    if (entry == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return (T) entry.result;
+  }
+
+  /**
+   * Cache the result of a query.
+   *
+   * @param key the normalized query parameters, with equals and hashCode of
+   *          their values
+   * @param from the first login day the result is computed from, null if any day
+   * @param to the last login day the result is computed from, null if any day
+   * @param result the result, not to be modified afterwards
+   */
+  public synchronized void put(Object key, LocalDate from, LocalDate to, Object result) {
+    if (size <= 0 || result == null) {
+      return;
+    }
+    long now = now();
+    boolean closed = to != null && to.isBefore(new LocalDate(now));
+    entries.put(key, new Entry(from, to, result, now + (closed ? closedTtl : ttl)));
+  }
+
+  /**
+   * Remove all results computed from any day in the given range, after the
+   * current transaction (if any) is committed.
+   */
+  public void invalidate(final LocalDate from, final LocalDate to) {
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+        @Override
+        public void afterCommit() {
+          remove(from, to);
+        }
+      });
+    } else {
+      remove(from, to);
+    }
+  }
+
+  @ManagedOperation(description = "Remove all results from the cache")
+  public synchronized void invalidateAll() {
+    invalidations.addAndGet(entries.size());
+    entries.clear();
+    LOG.debug("Invalidated the query result cache");
+  }
+
+  @ManagedAttribute
+  public long getHits() {
+    return hits.get();
+  }
+
+  @ManagedAttribute
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @ManagedAttribute
+  public double getHitRatio() {
+    long hits = getHits();
+    long total = hits + getMisses();
+    return total == 0 ? 0d : (double) hits / total;
+  }
+
+  @ManagedAttribute
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  @ManagedAttribute
+  public long getExpirations() {
+    return expirations.get();
+  }
+
+  @ManagedAttribute
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  @ManagedAttribute
+  public synchronized int getSize() {
+    return entries.size();
+  }
+
+  long now() {
+    return System.currentTimeMillis();
+  }
+
+  private synchronized void remove(LocalDate from, LocalDate to) {
+    int removed = 0;
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().overlaps(from, to)) {
+        iterator.remove();
+        removed += 1;
+      }
+    }
+    invalidations.addAndGet(removed);
+    LOG.debug("Invalidated {} cached results for the days {} to {}", new Object[] {removed, from, to});
+  }
+
+  private static class Entry {
+    private final LocalDate from;
+    private final LocalDate to;
+    private final Object result;
+    private final long expires;
+
+    private Entry(LocalDate from, LocalDate to, Object result, long expires) {
+      this.from = from;
+      this.to = to;
+      this.result = result;
+      this.expires = expires;
+    }
+
+    private boolean overlaps(LocalDate otherFrom, LocalDate otherTo) {
+      return (from == null || otherTo == null || !otherTo.isBefore(from))
+          && (to == null || otherFrom == null || !otherFrom.isAfter(to));
+    }
+  }
+}
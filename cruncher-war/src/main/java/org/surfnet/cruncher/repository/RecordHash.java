@@ -0,0 +1,58 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.repository;
+
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * The binary (SHA-1) key of an aggregated record, as stored in the
+ * datespidphash and usersphash columns. Unlike a plain byte[] it can be used as
+ * key in maps and sets.
+ */
+public final class RecordHash {
+  private final byte[] bytes;
+  private final int hashCode;
+
+  public RecordHash(byte[] bytes) {
+    this.bytes = bytes;
+    this.hashCode = Arrays.hashCode(bytes);
+  }
+
+  /**
+   * @return the hash as stored in the database, not to be modified
+   */
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return this == o || (o instanceof RecordHash && Arrays.equals(bytes, ((RecordHash) o).bytes));
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  @Override
+  public String toString() {
+    return Hex.encodeHexString(bytes);
+  }
+}
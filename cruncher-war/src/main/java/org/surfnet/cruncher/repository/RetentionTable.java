@@ -0,0 +1,46 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.repository;
+
+/**
+ * The tables the cleaner removes records from, in the order it does so. Each
+ * has an id primary key, which the records are deleted in the order of.
+ */
+public enum RetentionTable {
+  AGGREGATED_LOGINS("aggregated_log_logins", "entryday <= :retentionTime"),
+  USER_LOGINS("user_log_logins", "loginstamp <= :retentionTime"),
+  /* rollups and sketches are removed once the whole week or month is past the retention time */
+  ROLLUPS("aggregated_log_logins_rollup",
+      "((timespan = 52 AND entryday <= :lastWeek) OR (timespan = 12 AND entryday <= :lastMonth))"),
+  SKETCHES("user_unique_sketches", "(year < :lastMonthYear OR (year = :lastMonthYear AND month <= :lastMonthOfYear))");
+
+  private final String tableName;
+  private final String expiredCondition;
+
+  private RetentionTable(String tableName, String expiredCondition) {
+    this.tableName = tableName;
+    this.expiredCondition = expiredCondition;
+  }
+
+  public String getTableName() {
+    return tableName;
+  }
+
+  String getExpiredCondition() {
+    return expiredCondition;
+  }
+}
@@ -18,13 +18,18 @@
  */
 package org.surfnet.cruncher.repository;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
 import org.joda.time.LocalDate;
+import org.surfnet.cruncher.message.LiveLogins.MinuteLogins;
+import org.surfnet.cruncher.message.LoginBatch.DailyLogins;
+import org.surfnet.cruncher.message.LoginBatch.LastLogin;
+import org.surfnet.cruncher.message.LoginBatch.UniqueLogin;
 import org.surfnet.cruncher.model.LoginData;
 import org.surfnet.cruncher.model.LoginEntry;
-import org.surfnet.cruncher.model.SpStatistic;
+import org.surfnet.cruncher.model.SpStatisticPage;
 import org.surfnet.cruncher.model.VersStatistic;
 
 public interface StatisticsRepository {
@@ -42,15 +47,47 @@ public interface StatisticsRepository {
    */
   List<LoginData> getLogins(final LocalDate start, final LocalDate end, final String idpEntityId, final String spEntityId);
 
+  /**
+   * Return aggregated logins based on IDP or SP per day, week or month. Weeks
+   * and months are read from the rollups; the first and last data point cover
+   * the whole week or month the start and end date are in.
+   * @param start start date
+   * @param end end date
+   * @param spEntityId (optional) sp entity ID
+   * @param idpEntityId (optional) idpEntity ID
+   * @param interval the period of a single data point
+   * @return a list of LoginData
+   */
+  List<LoginData> getLogins(final LocalDate start, final LocalDate end, final String idpEntityId, final String spEntityId,
+      final LoginInterval interval);
+
+  /**
+   * Like {@link #getLogins(LocalDate, LocalDate, String, String, LoginInterval)},
+   * but hands every LoginData to the handler as soon as its series is read,
+   * without holding the whole result in memory. The series come in order of
+   * the entity keys, not of the entityIds.
+   * @param start start date
+   * @param end end date
+   * @param spEntityId (optional) sp entity ID
+   * @param idpEntityId (optional) idpEntity ID
+   * @param interval the period of a single data point
+   * @param handler called for every (idp, sp) pair with logins
+   */
+  void streamLogins(final LocalDate start, final LocalDate end, final String idpEntityId, final String spEntityId,
+      final LoginInterval interval, final LoginDataHandler handler);
+
   /**
    * retrieve a list of service for which the user has been active (a login
    * record must exist for this user)
    * 
    * @param userid the user for the user
    * @param idpEntityId the idp for which the user is currently logged in
-   * @return a list of SPs for which the user has been logged in
+   * @param cursor the cursor of the page to return, null for the first page
+   * @param limit the max nr of logins on the page
+   * @return a page of logins of the user, most recent first
+   * @throws IllegalArgumentException if the cursor is not one of a previous page
    */
-  List<SpStatistic> getActiveServices(String userid, String idpEntityId);
+  SpStatisticPage getActiveServices(String userid, String idpEntityId, String cursor, int limit);
   
   /**
    * Get a list of records that have to be aggregated yet.
@@ -58,21 +95,188 @@ public interface StatisticsRepository {
    */
   List<LoginEntry> getUnprocessedLoginEntries(int nrOfRecords);
 
+  /**
+   * Get a page of login-log entries, ordered by id.
+   * @param startingPoint only entries with an id above this one are returned
+   * @param nrOfRecords the number to get
+   */
+  List<LoginEntry> getLoginEntries(long startingPoint, int nrOfRecords);
+
+  /**
+   * Stream a page of login-log entries, ordered by id, to the given handler. The
+   * rows are read with a forward-only cursor, so they are not all held in memory.
+   * @param startingPoint only entries with an id above this one are streamed
+   * @param nrOfRecords the maximum number to stream
+   * @param handler the handler called for every entry
+   * @return the number of entries streamed
+   */
+  int streamLoginEntries(long startingPoint, int nrOfRecords, LoginEntryHandler handler);
+
+  /**
+   * @return the id up to which all login-log entries have been aggregated, the
+   *         lowest checkpoint of the shards
+   */
+  long getAggregatePoint();
+
+  /**
+   * @return the highest id in the login-log, 0 if it is empty
+   */
+  long getLastLoginEntryId();
+
+  /**
+   * Estimate the number of login-log entries that have not been aggregated yet,
+   * based on the difference between the highest id and the aggregation point.
+   */
+  long getAggregationLag();
+
   /**
    * Mark login-log entries as processed by aggregation
    * @param entries the entries to mark
    */
   void setLoginEntriesProcessed(List<LoginEntry> entries);
 
+  /**
+   * Mark all login-log entries up to and including the given id as processed,
+   * for logins that are aggregated outside of the shards
+   * @param lastId the id of the last processed entry
+   */
+  void setLoginEntriesProcessed(long lastId);
+
   void updateAggregated(String idpEntityId, String spEntityId, Date loginDate);
 
   void insertAggregated(LoginEntry le);
 
   boolean aggregatedExists(String idpEntityId, String spEntityId, Date loginDate);
 
-  boolean lockForCrunching();
+  /**
+   * Add the given count deltas to the aggregated logins, inserting the records
+   * that do not exist yet. Uses batch statements instead of a query per record.
+   * @param dailyLogins the count deltas per (day, idp, sp)
+   * @return the number of records inserted
+   */
+  int upsertAggregated(Collection<DailyLogins> dailyLogins);
+
+  /**
+   * Add the given count deltas to the week and month rollups, inserting the
+   * records that do not exist yet.
+   * @param dailyLogins the count deltas per (day, idp, sp)
+   * @return the number of records inserted
+   */
+  int upsertRollups(Collection<DailyLogins> dailyLogins);
+
+  /**
+   * Set the last login per (user, sp), inserting the records that do not exist
+   * yet. A last login is only replaced by a later one.
+   * @param lastLogins the last logins per (user, sp)
+   * @return the number of records inserted
+   */
+  int upsertLastLogins(Collection<LastLogin> lastLogins);
+
+  /**
+   * Insert the unique logins in the cache, skipping the ones already present.
+   * @param uniqueLogins the distinct (user, sp, idp, month) tuples
+   * @return the number of records inserted
+   */
+  int insertUniqueLoginsInCache(Collection<UniqueLogin> uniqueLogins);
 
-  void unlockForCrunching();
+  /**
+   * Add the unique logins to the HyperLogLog sketches of their (sp, idp,
+   * month), only the sketches that changed are written.
+   * @param uniqueLogins the distinct (user, sp, idp, month) tuples
+   * @return the number of sketches written
+   */
+  int updateUniqueLoginSketches(Collection<UniqueLogin> uniqueLogins);
+
+  /**
+   * Whether the unique logins of the month are only kept in sketches. The
+   * first batch of a month aggregated with estimated unique logins decides: if
+   * the month has no exact unique logins yet its sketches are complete and the
+   * month is recorded as sketched, otherwise the month stays exact as well.
+   * @return true if the sketches of the month are complete
+   */
+  boolean startUniqueLoginSketches(int year, int month);
+
+  /**
+   * Estimate the number of distinct users from the sketches, see
+   * {@link HyperLogLog} for the error bounds. A user logging in on multiple
+   * SPs, IdPs or months in the range is counted once.
+   * @param firstMonth (a day in) the first month
+   * @param lastMonth (a day in) the last month
+   * @param spEntityId (optional) sp entity ID
+   * @param idpEntityId (optional) idp entity ID
+   */
+  long getUniqueLoginsEstimate(LocalDate firstMonth, LocalDate lastMonth, String spEntityId, String idpEntityId);
+
+  /**
+   * Get the shards of the login-log, they are created (all starting at the
+   * aggregation point) when there are none yet. Once created the nr of shards
+   * does not change, as the logins already aggregated per shard depend on it.
+   * @param shards the nr of shards to create
+   * @return the shards, ordered by index
+   */
+  List<AggregationShard> getAggregationShards(int shards);
+
+  /**
+   * Lease the shard, or extend the lease this node already has. A shard is
+   * free when nobody holds it, or the lease has expired.
+   * @param owner the node that wants the shard
+   * @param leaseDuration how long the shard stays leased, milliseconds
+   * @return whether the shard is leased to the owner
+   */
+  boolean acquireShardLease(int shard, String owner, long leaseDuration);
+
+  void releaseShardLease(int shard, String owner);
+
+  /**
+   * @return the id of the last login-log entry aggregated for the shard
+   */
+  long getShardCheckpoint(int shard);
+
+  /**
+   * Mark the login-log entries of the shard up to and including the given id
+   * as processed, to be done in the transaction that writes them.
+   * @param owner the node that holds the lease of the shard
+   * @param checkpoint the current checkpoint of the shard
+   * @param newCheckpoint the id of the last processed entry
+   * @param newCheckpointStamp the login time of the last processed entry, the
+   *          live logins of the shard up to and including its minute are
+   *          removed as the aggregated logins count them
+   * @throws org.springframework.dao.OptimisticLockingFailureException if the
+   *           owner no longer holds the lease or the checkpoint has moved
+   */
+  void moveShardCheckpoint(int shard, String owner, long checkpoint, long newCheckpoint, Date newCheckpointStamp);
+
+  /**
+   * Set the aggregation point to the lowest checkpoint of the shards, with the
+   * time of the login at that point.
+   */
+  void updateAggregatePoint();
+
+  /**
+   * Lock the shards until the end of the transaction, so the aggregator does
+   * not write to any of them meanwhile.
+   */
+  void lockAggregationShards();
+
+  /**
+   * The watermarks of the shards, indexed by shard: the start of the minute of
+   * the login at the checkpoint of the shard. The live logins of an SP are only
+   * not aggregated yet in the minutes after the watermark of its shard. When
+   * the login time at a checkpoint is not known the watermark is
+   * Long.MAX_VALUE, so no live login of that shard is used. Before the shards
+   * exist there is a single one, at the aggregation point.
+   * @return the watermark per shard, one at least
+   */
+  long[] getLiveWatermarks();
+
+  /**
+   * Add the given count deltas to the live logins, inserting the records that
+   * do not exist yet.
+   * @param minuteLogins the count deltas per (minute, idp, sp)
+   * @param shards the nr of shards the SPs are divided over
+   * @return the number of records inserted
+   */
+  int upsertLiveLogins(Collection<MinuteLogins> minuteLogins, int shards);
 
   boolean lastLogonExists(String userId, String idpEntityId);
 
@@ -80,7 +284,18 @@ public interface StatisticsRepository {
 
   void updateLastLogin(String userId, String spEntityId, Date loginDate);
 
-  void cleanTables(int retention);
+  /**
+   * @return the ids of the next (at most chunkSize) records of the table that
+   *         are past the retention time, in id order
+   */
+  List<Long> findExpiredRecords(RetentionTable table, Date retentionTime, long afterId, int chunkSize);
+
+  /**
+   * Delete the given records, as far as they are (still) past the retention
+   * time.
+   * @return the nr of records deleted
+   */
+  int deleteExpiredRecords(RetentionTable table, Date retentionTime, List<Long> ids);
 
   VersStatistic getVersStats(LocalDate startDate, LocalDate endDate, String spEntityId);
 
@@ -88,7 +303,47 @@ public interface StatisticsRepository {
 
   boolean uniqueUserLogonExists(String userId, Date loginDate, String spEntityId, String idpEntityId);
 
-  void aggregateUniqueLoginsIfNeeded();
+  /**
+   * @return the first day of the month the aggregation is in (that of the
+   *         checkpoint of the slowest aggregation shard), or null if a shard
+   *         has not aggregated anything yet
+   */
+  LocalDate getCurrentAggregationMonth();
+
+  /**
+   * @return the first day of every month before the given one that still has
+   *         rows in the unique login cache, oldest first
+   */
+  List<LocalDate> getClosedUniqueLoginMonths(LocalDate currentMonth);
+
+  /**
+   * Move the next chunk of rows of a closed month from the unique login cache to
+   * the unique logins per month, and record how far the month got. Each chunk is
+   * meant to be run in a transaction of its own.
+   * @param month the first day of the month
+   * @param chunkSize the maximum nr of rows to move
+   * @return the nr of rows moved, 0 once the month is done
+   */
+  int rollOverUniqueLogins(LocalDate month, int chunkSize);
 
+  /**
+   * @return the number of unique users of the SP in the month. When unique
+   *         logins are estimated this comes from the sketches (if there are any
+   *         for the month), otherwise it is the sum of the exact counts per IdP.
+   */
   long getTotalUniqueLogins(String spEntityId, Integer month, Integer year);
+
+  /**
+   * Hand the statistics of every (sp, month) with logins in the given range to
+   * the handler, each one with its spEntityId, month and year set. All months
+   * are read with a single query on the monthly rollups and a single query on
+   * the unique logins. The statistics come in order of the sp entity key and
+   * the month.
+   * @param firstMonth (a day in) the first month
+   * @param lastMonth (a day in) the last month
+   * @param spEntityIds the SPs, all SPs if empty
+   * @param handler called for every (sp, month) with logins
+   */
+  void streamVersStats(LocalDate firstMonth, LocalDate lastMonth, Collection<String> spEntityIds,
+      VersStatisticHandler handler);
 }
@@ -21,37 +21,71 @@ package org.surfnet.cruncher.repository;
 import static java.util.Calendar.MONTH;
 import static java.util.Calendar.YEAR;
 import static org.surfnet.cruncher.message.Aggregator.aggregationRecordHash;
+import static org.surfnet.cruncher.message.Aggregator.entityHash;
 
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.text.SimpleDateFormat;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 
+import org.apache.commons.codec.binary.Base64;
 import org.joda.time.LocalDate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowCountCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.surfnet.cruncher.message.LiveLogins.MinuteLogins;
+import org.surfnet.cruncher.message.LoginBatch.DailyLogins;
+import org.surfnet.cruncher.message.LoginBatch.LastLogin;
+import org.surfnet.cruncher.message.LoginBatch.UniqueLogin;
 import org.surfnet.cruncher.model.LoginData;
 import org.surfnet.cruncher.model.LoginEntry;
 import org.surfnet.cruncher.model.SpStatistic;
+import org.surfnet.cruncher.model.SpStatisticPage;
 import org.surfnet.cruncher.model.VersStatistic;
 
 @Named
 public class StatisticsRepositoryImpl implements StatisticsRepository {
 
   private static final Logger LOG = LoggerFactory.getLogger(StatisticsRepositoryImpl.class);
-  private static final long POINT_INTERVAL = 24L * 60L * 60L * 1000L;
+  /**
+   * Maximum number of values in a single 'in (...)' clause
+   */
+  private static final int IN_CLAUSE_SIZE = 500;
+  private static final long MINUTE = 60 * 1000L;
   
   /**
    * This simple enum is used to identify different timespan 'types' in the unique
@@ -68,6 +102,35 @@ public class StatisticsRepositoryImpl implements StatisticsRepository {
     public int getCode() {
       return this.code;
     }
+    private static TimeSpan of(LoginInterval interval) {
+      return interval == LoginInterval.MONTH ? MONTH : WEEK;
+    }
+  }
+
+  /**
+   * The variants of the logins query. Each one only filters on the given
+   * entities, so the database can use the matching (idp_id, sp_id, entryday)
+   * or (sp_id, idp_id, entryday) index instead of scanning the date range. A
+   * generic "(:param IS NULL OR col = :param)" filter would prevent that.
+   */
+  private enum LoginsQueryPlan {
+    IDP_AND_SP("idp_id = :idpEntityId AND sp_id = :spEntityId AND "),
+    IDP("idp_id = :idpEntityId AND "),
+    SP("sp_id = :spEntityId AND "),
+    UNFILTERED("");
+    private final String condition;
+    private LoginsQueryPlan(String condition) {
+      this.condition = condition;
+    }
+    public String getCondition() {
+      return condition;
+    }
+    private static LoginsQueryPlan choose(Integer idpKey, Integer spKey) {
+      if (idpKey != null) {
+        return spKey != null ? IDP_AND_SP : IDP;
+      }
+      return spKey != null ? SP : UNFILTERED;
+    }
   }
 
   @Inject
@@ -76,132 +139,338 @@ public class StatisticsRepositoryImpl implements StatisticsRepository {
   @Inject
   private JdbcTemplate cruncherJdbcTemplate;
 
+  @Inject
+  private AggregateKeyCache aggregateKeyCache;
+
+  @Inject
+  private UniqueLoginFilter uniqueLoginFilter;
+
+  /**
+   * Fetch size used when streaming the login-log, Integer.MIN_VALUE makes the
+   * MySQL driver stream the result set row by row
+   */
+  @Value("${aggregation.fetch-size}")
+  private int fetchSize;
+
+  /**
+   * Whether unique logins are counted with sketches instead of exactly
+   */
+  @Value("${unique-logins.estimated}")
+  private boolean uniqueLoginsEstimated;
+
+  /**
+   * Whether the logins pushed by EngineBlock are added to the aggregated logins
+   */
+  @Value("${live.enabled}")
+  private boolean liveEnabled;
+
+  /**
+   * Dictionary of the sp and idp entityIds, the cruncher tables refer to them
+   * by their id in the entity table. Entities are never removed, so both
+   * directions only grow and are filled on demand.
+   */
+  private final ConcurrentMap<String, Integer> entityKeys = new ConcurrentHashMap<String, Integer>();
+  private final ConcurrentMap<Integer, String> entityIds = new ConcurrentHashMap<Integer, String>();
+  private final Object pendingEntitiesKey = new Object();
+
   /**
    * {@inheritDoc}
    */
   @Override
   public List<LoginData> getLogins(final LocalDate start, final LocalDate end, final String idpEntityId, final String spEntityId) {
+    return getLogins(start, end, idpEntityId, spEntityId, LoginInterval.DAY);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public List<LoginData> getLogins(final LocalDate start, final LocalDate end, final String idpEntityId, final String spEntityId,
+      final LoginInterval interval) {
     final List<LoginData> result = new ArrayList<LoginData>();
-    
+    streamLogins(start, end, idpEntityId, spEntityId, interval, new LoginDataHandler() {
+      @Override
+      public void handle(LoginData loginData) {
+        result.add(loginData);
+      }
+    });
+    /* the entity keys say nothing about the order of the entityIds */
+    Collections.sort(result, new Comparator<LoginData>() {
+      @Override
+      public int compare(LoginData l1, LoginData l2) {
+        int idpOrder = compareEntityIds(l1.getIdpEntityId(), l2.getIdpEntityId());
+        return idpOrder != 0 ? idpOrder : compareEntityIds(l1.getSpEntityId(), l2.getSpEntityId());
+      }
+    });
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void streamLogins(final LocalDate start, final LocalDate end, final String idpEntityId, final String spEntityId,
+      final LoginInterval interval, final LoginDataHandler handler) {
     NamedParameterJdbcTemplate namedJdbcTemplate = new NamedParameterJdbcTemplate(cruncherJdbcTemplate);
+
+    Integer spKey = findEntityKey(spEntityId);
+    Integer idpKey = findEntityKey(idpEntityId);
+    if ((spEntityId != null && spKey == null) || (idpEntityId != null && idpKey == null)) {
+      // never seen, so there are no logins
+      return;
+    }
     
-    String query = "select * from aggregated_log_logins " +
+    final LocalDate firstPeriod = interval.periodStart(start);
+    LoginsQueryPlan plan = LoginsQueryPlan.choose(idpKey, spKey);
+    String query = "select * from " + (interval == LoginInterval.DAY ? "aggregated_log_logins " : "aggregated_log_logins_rollup ") +
         "where " +
+        (interval == LoginInterval.DAY ? "" : "timespan = :timespan AND ") +
+        plan.getCondition() +
         "entryday >= :startDate AND " +
-        "entryday <= :endDate AND " +
-        "(:spEntityId IS NULL OR spentityid = :spEntityId) AND " +
-        "(:idpEntityId IS NULL OR idpentityid = :idpEntityId) " +
-        "order by idpentityid, spentityid, entryday ";
+        "entryday <= :endDate " +
+        "order by idp_id, sp_id, entryday ";
+    LOG.debug("Querying logins per {} from {} to {} with plan {}", new Object[] {interval, firstPeriod, end, plan});
 
-    Map<String, Object> parameterMap = getParameterMap(start, end, idpEntityId, spEntityId);
+    Map<String, Object> parameterMap = getParameterMap(firstPeriod, end, idpKey, spKey);
+    if (interval != LoginInterval.DAY) {
+      parameterMap.put("timespan", TimeSpan.of(interval).getCode());
+    }
     
-    namedJdbcTemplate.query(query, parameterMap , new RowMapper<Object>() {
-      private Map<LocalDate, Integer> queryResult = new HashMap<LocalDate, Integer>();
-      private LoginData currentAggregate = null;
-      
+    final LiveSeries live = liveEnabled ? getLiveLogins(plan, parameterMap, interval, firstPeriod, end) : null;
+    /* holds the series currently being read, and its (idp, sp) */
+    final LoginSeries[] currentSeries = new LoginSeries[1];
+    final int[] currentPair = new int[2];
+    namedJdbcTemplate.query(query, parameterMap, new RowCallbackHandler() {
       @Override
-      public Object mapRow(ResultSet rs, int row) throws SQLException {
-        LoginData currentRow = getLoginDataFromRow(rs);
-        
-        /*
-         * aggregate if sp/idp entityid differs from previous record
-         * do not aggregate if on first record
-         * if on last record, aggregate last entries
-         */
-        if (!currentRow.equals(currentAggregate) && !rs.isFirst()) {
-          //record is different, aggregate previous one and start fresh
-          result.add(aggregateCurrentEntry(currentAggregate, start, end));
-          queryResult = new HashMap<LocalDate, Integer>();
-          
+      public void processRow(ResultSet rs) throws SQLException {
+        int idp = rs.getInt("idp_id");
+        int sp = rs.getInt("sp_id");
+        // rows are ordered per (idp, sp), the series is complete when the pair changes
+        if (currentSeries[0] == null || idp != currentPair[0] || sp != currentPair[1]) {
+          if (currentSeries[0] != null) {
+            if (live != null) {
+              live.addTo(currentPair[0], currentPair[1], currentSeries[0]);
+            }
+            handler.handle(currentSeries[0].build());
+          }
+          if (live != null) {
+            live.handleBefore(idp, sp, handler);
+          }
+          currentPair[0] = idp;
+          currentPair[1] = sp;
+          LoginData loginData = new LoginData();
+          loginData.setIdpEntityId(getEntityId(idp));
+          loginData.setIdpname(rs.getString("idpentityname"));
+          loginData.setSpEntityId(getEntityId(sp));
+          loginData.setSpName(rs.getString("spentityname"));
+          currentSeries[0] = new LoginSeries(loginData, interval, firstPeriod, end);
         }
-        queryResult.put(new LocalDate(rs.getDate("entryday")), rs.getInt("entrycount"));
-        currentAggregate = currentRow;
-        
-       if (rs.isLast()) {
-         // aggregate last set
-         result.add(aggregateCurrentEntry(currentAggregate, start, end));
-       }
-
-       /*
-        * This is kinda weird, but single row results are stored in 
-        * queryResult (hashmap) or aggregated in result (List<loginData)
-        */
-       return null;
-     }
-
-     private LoginData aggregateCurrentEntry(final LoginData loginData, final LocalDate start, final LocalDate end) {
-       LocalDate current = start;
-        
-       int total = 0;
-       while (current.isBefore(end.plusDays(1))) {
-         Integer count = queryResult.get(current);
-         if (count == null) {
-           loginData.getData().add(0);
-         } else {
-           loginData.getData().add(count);
-           total += count;
-         }
-         current = current.plusDays(1);
-       }
-       loginData.setTotal(total);
-       loginData.setPointStart(start.toDate().getTime());
-       loginData.setPointEnd(end.toDate().getTime());
-       loginData.setPointInterval(POINT_INTERVAL);
-       return loginData;
-     }
-     
-     private LoginData getLoginDataFromRow(ResultSet rs) throws SQLException {
-       LoginData result = new LoginData();
-       result.setIdpEntityId(rs.getString("idpentityid"));
-       result.setIdpname(rs.getString("idpentityname"));
-       result.setSpEntityId(rs.getString("spentityid"));
-       result.setSpName(rs.getString("spentityname"));
-       return result;
-     }
+        currentSeries[0].set(new LocalDate(rs.getDate("entryday")), rs.getInt("entrycount"));
+      }
     });
-    return result;
+    if (currentSeries[0] != null) {
+      if (live != null) {
+        live.addTo(currentPair[0], currentPair[1], currentSeries[0]);
+      }
+      handler.handle(currentSeries[0].build());
+    }
+    if (live != null) {
+      live.handleRest(handler);
+    }
+  }
+
+  /*
+   * The live logins after the watermark of their shard, they are not in the
+   * aggregated logins yet. Shards that are ahead of others have aggregated
+   * later minutes already.
+   */
+  private LiveSeries getLiveLogins(LoginsQueryPlan plan, Map<String, Object> parameterMap, LoginInterval interval,
+      LocalDate firstPeriod, LocalDate end) {
+    final long[] watermarks = getLiveWatermarks();
+    long lowest = Long.MAX_VALUE;
+    for (long watermark : watermarks) {
+      lowest = Math.min(lowest, watermark);
+    }
+    final LiveSeries live = new LiveSeries(interval, firstPeriod, end);
+    if (lowest == Long.MAX_VALUE) {
+      return live;
+    }
+    Map<String, Object> liveParameters = new HashMap<String, Object>(parameterMap);
+    liveParameters.put("watermark", new Date(lowest));
+    liveParameters.put("startDate", firstPeriod.toDate());
+    liveParameters.put("afterEndDate", end.plusDays(1).toDate());
+    String query = "select * from live_log_logins where " +
+        plan.getCondition() +
+        "loginminute > :watermark AND " +
+        "loginminute >= :startDate AND " +
+        "loginminute < :afterEndDate";
+    new NamedParameterJdbcTemplate(cruncherJdbcTemplate).query(query, liveParameters, new RowCallbackHandler() {
+      @Override
+      public void processRow(ResultSet rs) throws SQLException {
+        int shard = rs.getInt("shard");
+        if (shard >= watermarks.length || rs.getTimestamp("loginminute").getTime() <= watermarks[shard]) {
+          return;
+        }
+        live.add(rs.getInt("idp_id"), rs.getInt("sp_id"), rs.getString("idpentityname"), rs.getString("spentityname"),
+            new LocalDate(rs.getTimestamp("loginminute")), rs.getInt("entrycount"));
+      }
+    });
+    return live;
+  }
+
+  /*
+   * The live logins per (idp, sp) in the order of the aggregated logins query,
+   * each pair is either added to its series of aggregated logins, or handed
+   * over as a series of its own when it has no aggregated logins.
+   */
+  private class LiveSeries {
+    private final LoginInterval interval;
+    private final LocalDate firstPeriod;
+    private final LocalDate end;
+    private final SortedMap<Long, LoginData> pairs = new TreeMap<Long, LoginData>();
+    private final Map<Long, Map<LocalDate, Integer>> counts = new HashMap<Long, Map<LocalDate, Integer>>();
+
+    private LiveSeries(LoginInterval interval, LocalDate firstPeriod, LocalDate end) {
+      this.interval = interval;
+      this.firstPeriod = firstPeriod;
+      this.end = end;
+    }
+
+    /* entity keys are positive, so the pairs sort like the query orders them */
+    private long pair(int idp, int sp) {
+      return ((long) idp << 32) | sp;
+    }
+
+    private void add(int idp, int sp, String idpName, String spName, LocalDate day, int count) {
+      long pair = pair(idp, sp);
+      Map<LocalDate, Integer> days = counts.get(pair);
+      if (days == null) {
+        LoginData loginData = new LoginData();
+        loginData.setIdpEntityId(getEntityId(idp));
+        loginData.setIdpname(idpName);
+        loginData.setSpEntityId(getEntityId(sp));
+        loginData.setSpName(spName);
+        pairs.put(pair, loginData);
+        days = new HashMap<LocalDate, Integer>();
+        counts.put(pair, days);
+      }
+      Integer current = days.get(day);
+      days.put(day, current == null ? count : current + count);
+    }
+
+    private void addTo(int idp, int sp, LoginSeries aggregated) {
+      long pair = pair(idp, sp);
+      if (pairs.remove(pair) != null) {
+        addTo(counts.remove(pair), aggregated);
+      }
+    }
+
+    private void addTo(Map<LocalDate, Integer> days, LoginSeries series) {
+      for (Map.Entry<LocalDate, Integer> day : days.entrySet()) {
+        series.add(day.getKey(), day.getValue());
+      }
+    }
+
+    private void handleBefore(int idp, int sp, LoginDataHandler handler) {
+      handle(pairs.headMap(pair(idp, sp)), handler);
+    }
+
+    private void handleRest(LoginDataHandler handler) {
+      handle(pairs, handler);
+    }
+
+    private void handle(SortedMap<Long, LoginData> liveOnly, LoginDataHandler handler) {
+      for (Map.Entry<Long, LoginData> pair : liveOnly.entrySet()) {
+        LoginSeries series = new LoginSeries(pair.getValue(), interval, firstPeriod, end);
+        addTo(counts.remove(pair.getKey()), series);
+        handler.handle(series.build());
+      }
+      liveOnly.clear();
+    }
   }
 
   @Override
-  public List<SpStatistic> getActiveServices(String userid, String idpEntityId) {
+  public SpStatisticPage getActiveServices(String userid, String idpEntityId, String cursor, int limit) {
     NamedParameterJdbcTemplate namedJdbcTemplate = new NamedParameterJdbcTemplate(cruncherJdbcTemplate);
     
-    String query = "select loginstamp as loginstamp, spentityid as spentityid, " +
-    		"spentityname as spentityname from user_log_logins " +
-        "where " +
-        "userid = :userId AND " +
-        "idpentityid = :idpEntityId ";
-    
+    Integer idpKey = findEntityKey(idpEntityId);
+    if (idpKey == null) {
+      return new SpStatisticPage(new ArrayList<SpStatistic>(), null);
+    }
     Map<String, Object> parameterMap = new HashMap<String, Object>();
     parameterMap.put("userId", userid);
-    parameterMap.put("idpEntityId", idpEntityId);
-    
-    return namedJdbcTemplate.query(query, parameterMap , new RowMapper<SpStatistic>(){
+    parameterMap.put("idpEntityId", idpKey);
+    parameterMap.put("limit", limit + 1);
+    /* keyset pagination: the rows after the last one of the previous page, in the order of the index */
+    String after = "";
+    if (cursor != null) {
+      long[] position = decodeLastLoginCursor(cursor);
+      parameterMap.put("loginstamp", new Date(position[0]));
+      parameterMap.put("id", position[1]);
+      after = "AND (loginstamp < :loginstamp OR (loginstamp = :loginstamp AND id < :id)) ";
+    }
+    String query = "select id, loginstamp, sp_id, spentityname from user_log_logins " +
+        "where " +
+        "userid = :userId AND " +
+        "idp_id = :idpEntityId " +
+        after +
+        "order by loginstamp desc, id desc LIMIT :limit";
+
+    final List<long[]> positions = new ArrayList<long[]>();
+    List<SpStatistic> services = namedJdbcTemplate.query(query, parameterMap , new RowMapper<SpStatistic>(){
 
       @Override
       public SpStatistic mapRow(ResultSet rs, int row) throws SQLException {
         SpStatistic result = new SpStatistic();
         result.setEntryTime(rs.getTimestamp("loginstamp").getTime());
-        result.setSpEntityId(rs.getString("spentityid"));
+        result.setSpEntityId(getEntityId(rs.getInt("sp_id")));
         result.setSpName(rs.getString("spentityname"));
-
+        positions.add(new long[] {result.getEntryTime(), rs.getLong("id")});
         return result;
       }
       
     });
+    if (services.size() <= limit) {
+      return new SpStatisticPage(services, null);
+    }
+    /* the extra row only tells there is a next page */
+    long[] last = positions.get(limit - 1);
+    return new SpStatisticPage(new ArrayList<SpStatistic>(services.subList(0, limit)), encodeLastLoginCursor(last[0], last[1]));
+  }
+
+  /*
+   * The cursor is the loginstamp and id of the last row of a page, it is opaque to clients
+   */
+  private static String encodeLastLoginCursor(long loginstamp, long id) {
+    return Base64.encodeBase64URLSafeString((loginstamp + ":" + id).getBytes(Charset.forName("US-ASCII")));
+  }
+
+  private static long[] decodeLastLoginCursor(String cursor) {
+    String[] parts = new String(Base64.decodeBase64(cursor), Charset.forName("US-ASCII")).split(":");
+    try {
+      if (parts.length == 2) {
+        return new long[] {Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+      }
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    throw new IllegalArgumentException("Invalid cursor " + cursor);
   }
 
   @Override
   public List<LoginEntry> getUnprocessedLoginEntries(int nrOfRecords) {
-    Long aggregateStartingPoint = cruncherJdbcTemplate.queryForLong("select aggregatepoint from aggregate_meta_data");
-    
+    return getLoginEntries(getAggregatePoint(), nrOfRecords);
+  }
+
+  @Override
+  public List<LoginEntry> getLoginEntries(long startingPoint, int nrOfRecords) {
     NamedParameterJdbcTemplate namedJdbcTemplate = new NamedParameterJdbcTemplate(ebJdbcTemplate);
     
     String query = "select * from log_logins where id > :startingPoint order by id LIMIT :batchSize";
     
     Map<String, Object> parameterMap = new HashMap<String, Object>();
     parameterMap.put("batchSize", nrOfRecords);
-    parameterMap.put("startingPoint", aggregateStartingPoint);
+    parameterMap.put("startingPoint", startingPoint);
     
     return namedJdbcTemplate.query(query, parameterMap , new RowMapper<LoginEntry>(){
       @Override
@@ -218,39 +487,614 @@ public class StatisticsRepositoryImpl implements StatisticsRepository {
     });
   }
 
+  @Override
+  public int streamLoginEntries(final long startingPoint, final int nrOfRecords, final LoginEntryHandler handler) {
+    final String query = "select id, idpentityid, idpentityname, loginstamp, spentityid, spentityname, userid " +
+        "from log_logins where id > ? order by id LIMIT ?";
+    RowCountCallbackHandler rowCallbackHandler = new RowCountCallbackHandler() {
+      @Override
+      protected void processRow(ResultSet rs, int rowNum) throws SQLException {
+        handler.handle(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getTimestamp(4).getTime(), rs.getString(5),
+            rs.getString(6), rs.getString(7));
+      }
+    };
+    ebJdbcTemplate.query(new PreparedStatementCreator() {
+      @Override
+      public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+        PreparedStatement ps = con.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        ps.setFetchSize(fetchSize);
+        ps.setLong(1, startingPoint);
+        ps.setInt(2, nrOfRecords);
+        return ps;
+      }
+    }, rowCallbackHandler);
+    return rowCallbackHandler.getRowCount();
+  }
+
+  @Override
+  public long getAggregatePoint() {
+    /* every shard is aggregated up to its checkpoint, so all of them up to the lowest one */
+    Long lowest = cruncherJdbcTemplate.queryForObject("select min(checkpoint) from aggregation_shard", Long.class);
+    return lowest != null ? lowest : cruncherJdbcTemplate.queryForLong("select aggregatepoint from aggregate_meta_data");
+  }
+
+  @Override
+  public long getLastLoginEntryId() {
+    return ebJdbcTemplate.queryForLong("select coalesce(max(id), 0) from log_logins");
+  }
+
+  @Override
+  public long getAggregationLag() {
+    return Math.max(0L, getLastLoginEntryId() - getAggregatePoint());
+  }
+
   @Override
   public void setLoginEntriesProcessed(List<LoginEntry> entries) {
     LoginEntry last = entries.get(entries.size()-1);
-    cruncherJdbcTemplate.update("update aggregate_meta_data set aggregatepoint = ?", last.getId());
+    setLoginEntriesProcessed(last.getId());
+  }
+
+  @Override
+  public void setLoginEntriesProcessed(long lastId) {
+    uniqueLoginFilter.validate(UniqueLoginFilter.UNSHARDED,
+        cruncherJdbcTemplate.queryForLong("select aggregatepoint from aggregate_meta_data"));
+    cruncherJdbcTemplate.update("update aggregate_meta_data set aggregatepoint = ?", lastId);
+    uniqueLoginFilter.expectCheckpoint(UniqueLoginFilter.UNSHARDED, lastId);
   }
 
   @Override
   public void updateAggregated(String idpEntityId, String spEntityId, Date loginDate) {
-    cruncherJdbcTemplate.update("update aggregated_log_logins set entrycount = entrycount + 1 where datespidphash = ?", aggregationRecordHash(idpEntityId, spEntityId, loginDate));
+    cruncherJdbcTemplate.update("update aggregated_log_logins set entrycount = entrycount + 1 where datespidphash = ? AND entryday = ?",
+        aggregationRecordHash(idpEntityId, spEntityId, loginDate), entryDay(loginDate));
   }
 
   @Override
   public void insertAggregated(LoginEntry le) {
-    LOG.debug("Inserting new aggregated record for date {}, record: {}, hash: {}", new Object[] {le.getLoginDate(), le, aggregationRecordHash(le)});
-    cruncherJdbcTemplate.update("insert into aggregated_log_logins (entryday,spentityid,idpentityid,spentityname,idpentityname, datespidphash, entrycount)" +
+    LOG.debug("Inserting new aggregated record for date {}, record: {}", le.getLoginDate(), le);
+    cruncherJdbcTemplate.update("insert into aggregated_log_logins (entryday,sp_id,idp_id,spentityname,idpentityname, datespidphash, entrycount)" +
       " values (?, ?, ?, ?, ?, ?, 1)",
-      le.getLoginDate(), le.getSpEntityId(), le.getIdpEntityId(), le.getSpEntityName(), le.getIdpEntityName(), aggregationRecordHash(le));
+      le.getLoginDate(), getOrCreateEntityKey(le.getSpEntityId()), getOrCreateEntityKey(le.getIdpEntityId()), le.getSpEntityName(),
+      le.getIdpEntityName(), aggregationRecordHash(le));
   }
 
   @Override
   public boolean aggregatedExists(String idpEntityId, String spEntityId, Date loginDate) {
-    return cruncherJdbcTemplate.queryForInt("select count(*) from aggregated_log_logins where datespidphash = ?", aggregationRecordHash(idpEntityId, spEntityId, loginDate)) == 1;
+    return cruncherJdbcTemplate.queryForInt("select count(*) from aggregated_log_logins where datespidphash = ? AND entryday = ?",
+        aggregationRecordHash(idpEntityId, spEntityId, loginDate), entryDay(loginDate)) == 1;
+  }
+
+  @Override
+  public int upsertAggregated(Collection<DailyLogins> dailyLogins) {
+    if (dailyLogins.isEmpty()) {
+      return 0;
+    }
+    List<RecordHash> hashes = new ArrayList<RecordHash>(dailyLogins.size());
+    Set<RecordHash> unknownHashes = new HashSet<RecordHash>();
+    Date firstDay = null;
+    Date lastDay = null;
+    for (DailyLogins daily : dailyLogins) {
+      hashes.add(daily.getHash());
+      if (!aggregateKeyCache.containsAggregated(daily.getHash())) {
+        unknownHashes.add(daily.getHash());
+      }
+      Date day = entryDay(daily.getLoginDate());
+      firstDay = firstDay == null || day.before(firstDay) ? day : firstDay;
+      lastDay = lastDay == null || day.after(lastDay) ? day : lastDay;
+    }
+    /* the day range limits the lookup to the partitions of these days */
+    Map<String, Object> dayRange = new HashMap<String, Object>();
+    dayRange.put("firstDay", firstDay);
+    dayRange.put("lastDay", lastDay);
+    Set<RecordHash> unknownExisting = findExistingHashes("select datespidphash from aggregated_log_logins " +
+        "where entryday >= :firstDay AND entryday <= :lastDay AND datespidphash in (:hashes)", dayRange,
+        new ArrayList<RecordHash>(unknownHashes));
+
+    List<DailyLogins> updates = new ArrayList<DailyLogins>();
+    List<DailyLogins> inserts = new ArrayList<DailyLogins>();
+    for (DailyLogins daily : dailyLogins) {
+      if (unknownExisting.contains(daily.getHash()) || !unknownHashes.contains(daily.getHash())) {
+        updates.add(daily);
+      } else {
+        inserts.add(daily);
+      }
+    }
+    if (!updates.isEmpty()) {
+      List<Object[]> args = new ArrayList<Object[]>(updates.size());
+      for (DailyLogins daily : updates) {
+        args.add(new Object[] {daily.getCount(), daily.getHash().getBytes(), entryDay(daily.getLoginDate())});
+      }
+      int[] rowCounts = cruncherJdbcTemplate.batchUpdate("update aggregated_log_logins set entrycount = entrycount + ? " +
+          "where datespidphash = ? AND entryday = ?", args);
+      /* a cached key may have been removed in the mean time */
+      for (int i = 0; i < rowCounts.length; i++) {
+        if (rowCounts[i] == 0) {
+          inserts.add(updates.get(i));
+        }
+      }
+    }
+    if (!inserts.isEmpty()) {
+      List<Object[]> args = new ArrayList<Object[]>(inserts.size());
+      for (DailyLogins daily : inserts) {
+        args.add(new Object[] {daily.getLoginDate(), getOrCreateEntityKey(daily.getSpEntityId()),
+            getOrCreateEntityKey(daily.getIdpEntityId()), daily.getSpEntityName(), daily.getIdpEntityName(),
+            daily.getHash().getBytes(), daily.getCount()});
+      }
+      cruncherJdbcTemplate.batchUpdate("insert into aggregated_log_logins (entryday,sp_id,idp_id,spentityname,idpentityname, datespidphash, entrycount)" +
+          " values (?, ?, ?, ?, ?, ?, ?)", args);
+    }
+    aggregateKeyCache.addAggregated(hashes);
+    LOG.debug("Updated {} and inserted {} aggregated records", updates.size(), inserts.size());
+    return inserts.size();
+  }
+
+  @Override
+  public int upsertRollups(Collection<DailyLogins> dailyLogins) {
+    /* sum the deltas per (timespan, period, sp, idp), a batch usually touches a single week and month */
+    Map<String, Object[]> deltas = new LinkedHashMap<String, Object[]>();
+    for (DailyLogins daily : dailyLogins) {
+      LocalDate day = new LocalDate(daily.getLoginDate());
+      Integer spKey = getOrCreateEntityKey(daily.getSpEntityId());
+      Integer idpKey = getOrCreateEntityKey(daily.getIdpEntityId());
+      for (LoginInterval interval : new LoginInterval[] {LoginInterval.WEEK, LoginInterval.MONTH}) {
+        int timespan = TimeSpan.of(interval).getCode();
+        Date periodStart = interval.periodStart(day).toDate();
+        String key = timespan + "!" + periodStart.getTime() + "!" + spKey + "!" + idpKey;
+        Object[] delta = deltas.get(key);
+        if (delta == null) {
+          delta = new Object[] {0, timespan, periodStart, spKey, idpKey, daily.getSpEntityName(), daily.getIdpEntityName()};
+          deltas.put(key, delta);
+        }
+        delta[0] = (Integer) delta[0] + daily.getCount();
+      }
+    }
+    if (deltas.isEmpty()) {
+      return 0;
+    }
+    List<Object[]> updates = new ArrayList<Object[]>(deltas.values());
+    List<Object[]> args = new ArrayList<Object[]>(updates.size());
+    for (Object[] delta : updates) {
+      args.add(new Object[] {delta[0], delta[1], delta[2], delta[3], delta[4]});
+    }
+    int[] rowCounts = cruncherJdbcTemplate.batchUpdate("update aggregated_log_logins_rollup set entrycount = entrycount + ? " +
+        "where timespan = ? and entryday = ? and sp_id = ? and idp_id = ?", args);
+    List<Object[]> inserts = new ArrayList<Object[]>();
+    for (int i = 0; i < rowCounts.length; i++) {
+      if (rowCounts[i] == 0) {
+        Object[] delta = updates.get(i);
+        inserts.add(new Object[] {delta[1], delta[2], delta[3], delta[4], delta[5], delta[6], delta[0]});
+      }
+    }
+    if (!inserts.isEmpty()) {
+      cruncherJdbcTemplate.batchUpdate("insert into aggregated_log_logins_rollup (timespan,entryday,sp_id,idp_id,spentityname,idpentityname,entrycount)" +
+          " values (?, ?, ?, ?, ?, ?, ?)", inserts);
+    }
+    LOG.debug("Updated {} and inserted {} rollup records", updates.size() - inserts.size(), inserts.size());
+    return inserts.size();
+  }
+
+  @Override
+  public int upsertLastLogins(Collection<LastLogin> lastLogins) {
+    if (lastLogins.isEmpty()) {
+      return 0;
+    }
+    List<RecordHash> hashes = new ArrayList<RecordHash>(lastLogins.size());
+    Set<RecordHash> unknownHashes = new HashSet<RecordHash>();
+    for (LastLogin last : lastLogins) {
+      hashes.add(last.getHash());
+      if (!aggregateKeyCache.containsUser(last.getHash())) {
+        unknownHashes.add(last.getHash());
+      }
+    }
+    Set<RecordHash> unknownExisting = findExistingHashes("select usersphash from user_log_logins where usersphash in (:hashes)",
+        new ArrayList<RecordHash>(unknownHashes));
+
+    List<LastLogin> updates = new ArrayList<LastLogin>();
+    List<LastLogin> inserts = new ArrayList<LastLogin>();
+    for (LastLogin last : lastLogins) {
+      if (unknownExisting.contains(last.getHash()) || !unknownHashes.contains(last.getHash())) {
+        updates.add(last);
+      } else {
+        inserts.add(last);
+      }
+    }
+    if (!updates.isEmpty()) {
+      List<Object[]> args = new ArrayList<Object[]>(updates.size());
+      for (LastLogin last : updates) {
+        args.add(new Object[] {last.getLoginDate(), last.getLoginDate(), last.getHash().getBytes()});
+      }
+      /* a live login may have set a later one already */
+      int[] rowCounts = cruncherJdbcTemplate.batchUpdate("update user_log_logins set loginstamp = " +
+          "case when loginstamp < ? then ? else loginstamp end where usersphash = ?", args);
+      /* a cached key may have been removed in the mean time */
+      for (int i = 0; i < rowCounts.length; i++) {
+        if (rowCounts[i] == 0) {
+          inserts.add(updates.get(i));
+        }
+      }
+    }
+    if (!inserts.isEmpty()) {
+      List<Object[]> args = new ArrayList<Object[]>(inserts.size());
+      for (LastLogin last : inserts) {
+        args.add(new Object[] {last.getLoginDate(), last.getUserId(), getOrCreateEntityKey(last.getSpEntityId()),
+            last.getSpEntityName(), getOrCreateEntityKey(last.getIdpEntityId()), last.getHash().getBytes()});
+      }
+      cruncherJdbcTemplate.batchUpdate("insert into user_log_logins (loginstamp,userid,sp_id,spentityname,idp_id,usersphash)" +
+          " values (?, ?, ?, ?, ?, ?)", args);
+    }
+    aggregateKeyCache.addUser(hashes);
+    LOG.debug("Updated {} and inserted {} aggregated user records", updates.size(), inserts.size());
+    return inserts.size();
+  }
+
+  @Override
+  public int insertUniqueLoginsInCache(Collection<UniqueLogin> uniqueLogins) {
+    /* keys the filter does not know are certainly new, only the others need a lookup */
+    List<RecordHash> probes = new ArrayList<RecordHash>();
+    for (UniqueLogin unique : uniqueLogins) {
+      if (uniqueLoginFilter.mightContain(unique.getYear(), unique.getMonth(), unique.getHash())) {
+        probes.add(unique.getHash());
+      }
+    }
+    Set<RecordHash> existing = findExistingHashes("select uniquehash from user_unique_logins_cache where uniquehash in (:hashes)",
+        probes);
+
+    List<Object[]> inserts = new ArrayList<Object[]>();
+    for (UniqueLogin unique : uniqueLogins) {
+      if (existing.contains(unique.getHash())) {
+        continue;
+      }
+      inserts.add(new Object[] {unique.getHash().getBytes(), getOrCreateEntityKey(unique.getSpEntityId()),
+          getOrCreateEntityKey(unique.getIdpEntityId()), TimeSpan.MONTH.getCode(), unique.getMonth(), unique.getYear()});
+    }
+    if (!inserts.isEmpty()) {
+      cruncherJdbcTemplate.batchUpdate("insert into user_unique_logins_cache (uniquehash,sp_id,idp_id,timespan,month,year)" +
+          " values (?, ?, ?, ?, ?, ?)", inserts);
+    }
+    for (UniqueLogin unique : uniqueLogins) {
+      uniqueLoginFilter.add(unique.getYear(), unique.getMonth(), unique.getHash());
+    }
+    for (int i = existing.size(); i < probes.size(); i++) {
+      uniqueLoginFilter.falsePositive();
+    }
+    LOG.debug("Inserted {} unique user records, looked up {} of {} keys", new Object[] {inserts.size(), probes.size(),
+        uniqueLogins.size()});
+    return inserts.size();
+  }
+
+  @Override
+  public int updateUniqueLoginSketches(Collection<UniqueLogin> uniqueLogins) {
+    /* the sketches touched by this batch, per month */
+    Map<SketchMonth, Map<EntityPair, HyperLogLog>> perMonth = new LinkedHashMap<SketchMonth, Map<EntityPair, HyperLogLog>>();
+    for (UniqueLogin unique : uniqueLogins) {
+      SketchMonth sketchMonth = new SketchMonth(unique.getYear(), unique.getMonth());
+      Map<EntityPair, HyperLogLog> sketches = perMonth.get(sketchMonth);
+      if (sketches == null) {
+        sketches = new HashMap<EntityPair, HyperLogLog>();
+        perMonth.put(sketchMonth, sketches);
+      }
+      EntityPair pair = new EntityPair(getOrCreateEntityKey(unique.getSpEntityId()), getOrCreateEntityKey(unique.getIdpEntityId()));
+      HyperLogLog sketch = sketches.get(pair);
+      if (sketch == null) {
+        sketch = new HyperLogLog();
+        sketches.put(pair, sketch);
+      }
+      sketch.add(unique.getUserId());
+    }
+
+    NamedParameterJdbcTemplate namedTemplate = new NamedParameterJdbcTemplate(cruncherJdbcTemplate);
+    List<Object[]> updates = new ArrayList<Object[]>();
+    List<Object[]> inserts = new ArrayList<Object[]>();
+    for (Map.Entry<SketchMonth, Map<EntityPair, HyperLogLog>> month : perMonth.entrySet()) {
+      SketchMonth sketchMonth = month.getKey();
+      final Map<EntityPair, HyperLogLog> batchSketches = month.getValue();
+      Set<Integer> spKeys = new HashSet<Integer>();
+      for (EntityPair pair : batchSketches.keySet()) {
+        spKeys.add(pair.spKey);
+      }
+      Map<String, Object> parameterMap = new HashMap<String, Object>();
+      parameterMap.put("year", sketchMonth.year);
+      parameterMap.put("month", sketchMonth.month);
+      final Map<EntityPair, HyperLogLog> stored = new HashMap<EntityPair, HyperLogLog>();
+      for (List<Integer> chunk : chunk(new ArrayList<Integer>(spKeys))) {
+        parameterMap.put("spKeys", chunk);
+        namedTemplate.query("select sp_id, idp_id, sketch from user_unique_sketches " +
+            "where year = :year AND month = :month AND sp_id in (:spKeys)", parameterMap, new RowCallbackHandler() {
+          @Override
+          public void processRow(ResultSet rs) throws SQLException {
+            EntityPair pair = new EntityPair(rs.getInt("sp_id"), rs.getInt("idp_id"));
+            if (batchSketches.containsKey(pair)) {
+              stored.put(pair, HyperLogLog.fromBytes(rs.getBytes("sketch")));
+            }
+          }
+        });
+      }
+      for (Map.Entry<EntityPair, HyperLogLog> sketch : batchSketches.entrySet()) {
+        EntityPair pair = sketch.getKey();
+        HyperLogLog existing = stored.get(pair);
+        if (existing == null) {
+          inserts.add(new Object[] {sketchMonth.year, sketchMonth.month, pair.spKey, pair.idpKey, sketch.getValue().toBytes()});
+        } else {
+          existing.merge(sketch.getValue());
+          if (existing.isChanged()) {
+            updates.add(new Object[] {existing.toBytes(), sketchMonth.year, sketchMonth.month, pair.spKey, pair.idpKey});
+          }
+        }
+      }
+    }
+    if (!updates.isEmpty()) {
+      cruncherJdbcTemplate.batchUpdate("update user_unique_sketches set sketch = ? " +
+          "where year = ? AND month = ? AND sp_id = ? AND idp_id = ?", updates);
+    }
+    if (!inserts.isEmpty()) {
+      cruncherJdbcTemplate.batchUpdate("insert into user_unique_sketches (year, month, sp_id, idp_id, sketch)" +
+          " values (?, ?, ?, ?, ?)", inserts);
+    }
+    LOG.debug("Updated {} and inserted {} unique login sketches", updates.size(), inserts.size());
+    return updates.size() + inserts.size();
   }
 
   @Override
-  public boolean lockForCrunching() {
-    int rowCount = cruncherJdbcTemplate.update("update aggregate_meta_data set active=1 where active=0");
+  public boolean startUniqueLoginSketches(int year, int month) {
+    if (isSketchedMonth(year, month)) {
+      return true;
+    }
+    boolean exact = !cruncherJdbcTemplate.queryForList("select id from user_unique_logins_cache " +
+        "where year = ? AND month = ? LIMIT 1", Long.class, year, month).isEmpty() ||
+        !cruncherJdbcTemplate.queryForList("select sp_id from user_unique_logins " +
+        "where timespan = ? AND year = ? AND month = ? LIMIT 1", Integer.class, TimeSpan.MONTH.getCode(), year, month).isEmpty();
+    if (exact) {
+      return false;
+    }
+    try {
+      cruncherJdbcTemplate.update("insert into unique_logins_sketch_month (year, month) values (?, ?)", year, month);
+      LOG.info("Unique logins of {}-{} are only kept in sketches", year, month);
+    } catch (DuplicateKeyException e) {
+      LOG.debug("Sketches of {}-{} started by another node", year, month);
+    }
+    return true;
+  }
+
+  private boolean isSketchedMonth(int year, int month) {
+    return cruncherJdbcTemplate.queryForInt("select count(*) from unique_logins_sketch_month where year = ? AND month = ?",
+        year, month) > 0;
+  }
+
+  @Override
+  public long getUniqueLoginsEstimate(LocalDate firstMonth, LocalDate lastMonth, String spEntityId, String idpEntityId) {
+    HyperLogLog merged = mergeSketches(firstMonth, lastMonth, spEntityId, idpEntityId);
+    return merged == null ? 0L : merged.estimate();
+  }
+
+  /*
+   * The union of the sketches in the range, null if there are none
+   */
+  private HyperLogLog mergeSketches(LocalDate firstMonth, LocalDate lastMonth, String spEntityId, String idpEntityId) {
+    Integer spKey = findEntityKey(spEntityId);
+    Integer idpKey = findEntityKey(idpEntityId);
+    if ((spEntityId != null && spKey == null) || (idpEntityId != null && idpKey == null)) {
+      // never seen, so there are no logins
+      return null;
+    }
+    Map<String, Object> parameterMap = getMonthRangeParameters(firstMonth, lastMonth);
+    parameterMap.put("spKey", spKey);
+    parameterMap.put("idpKey", idpKey);
+    final HyperLogLog[] merged = new HyperLogLog[1];
+    new NamedParameterJdbcTemplate(cruncherJdbcTemplate).query("select sketch from user_unique_sketches " +
+        "where " +
+        MONTH_RANGE_CONDITION +
+        (spKey == null ? "" : "AND sp_id = :spKey ") +
+        (idpKey == null ? "" : "AND idp_id = :idpKey "), parameterMap, new RowCallbackHandler() {
+      @Override
+      public void processRow(ResultSet rs) throws SQLException {
+        HyperLogLog sketch = HyperLogLog.fromBytes(rs.getBytes("sketch"));
+        if (merged[0] == null) {
+          merged[0] = sketch;
+        } else {
+          merged[0].merge(sketch);
+        }
+      }
+    });
+    return merged[0];
+  }
+
+  /*
+   * Return the subset of the given hashes that is present in the database. The
+   * query must have a single ':hashes' parameter and return the hash column.
+   */
+  private Set<RecordHash> findExistingHashes(String query, List<RecordHash> hashes) {
+    return findExistingHashes(query, Collections.<String, Object>emptyMap(), hashes);
+  }
+
+  /*
+   * As above, for a query with more parameters than the hashes
+   */
+  private Set<RecordHash> findExistingHashes(String query, Map<String, Object> parameters, List<RecordHash> hashes) {
+    NamedParameterJdbcTemplate namedTemplate = new NamedParameterJdbcTemplate(cruncherJdbcTemplate);
+    Set<RecordHash> result = new HashSet<RecordHash>();
+    if (hashes.isEmpty()) {
+      return result;
+    }
+    Map<String, Object> parameterMap = new HashMap<String, Object>(parameters);
+    for (List<RecordHash> chunk : chunk(hashes)) {
+      List<byte[]> values = new ArrayList<byte[]>(chunk.size());
+      for (RecordHash hash : chunk) {
+        values.add(hash.getBytes());
+      }
+      parameterMap.put("hashes", values);
+      for (byte[] existing : namedTemplate.queryForList(query, parameterMap, byte[].class)) {
+        result.add(new RecordHash(existing));
+      }
+    }
+    return result;
+  }
+
+  /*
+   * The day of a login, as stored in the entryday column
+   */
+  private static Date entryDay(Date loginDate) {
+    return new LocalDate(loginDate).toDate();
+  }
+
+  private <T> List<List<T>> chunk(List<T> values) {
+    List<List<T>> result = new ArrayList<List<T>>();
+    for (int i = 0; i < values.size(); i += IN_CLAUSE_SIZE) {
+      result.add(values.subList(i, Math.min(i + IN_CLAUSE_SIZE, values.size())));
+    }
+    return result;
+  }
+
+  @Override
+  public List<AggregationShard> getAggregationShards(int shards) {
+    List<AggregationShard> result = findAggregationShards();
+    if (result.isEmpty()) {
+      /* all shards start where the aggregation of the whole login-log was */
+      try {
+        for (int shard = 0; shard < shards; shard++) {
+          cruncherJdbcTemplate.update("insert into aggregation_shard (shard, shards, checkpoint, checkpointstamp) " +
+              "select ?, ?, aggregatepoint, aggregatestamp from aggregate_meta_data", shard, shards);
+        }
+        /* live logins counted before there were shards have no shard, the aggregator counts them */
+        cruncherJdbcTemplate.update("delete from live_log_logins");
+        LOG.info("Created {} aggregation shards", shards);
+      } catch (DuplicateKeyException e) {
+        LOG.info("Aggregation shards created by another node");
+      }
+      result = findAggregationShards();
+    }
+    if (!result.isEmpty() && result.get(0).getShards() != shards) {
+      LOG.warn("The login-log is split in {} aggregation shards, not the configured {}", result.get(0).getShards(), shards);
+    }
+    return result;
+  }
+
+  private List<AggregationShard> findAggregationShards() {
+    return cruncherJdbcTemplate.query("select shard, shards, checkpoint, owner, leaseuntil from aggregation_shard " +
+        "order by shard", new RowMapper<AggregationShard>() {
+      @Override
+      public AggregationShard mapRow(ResultSet rs, int rowNum) throws SQLException {
+        return new AggregationShard(rs.getInt("shard"), rs.getInt("shards"), rs.getLong("checkpoint"), rs.getString("owner"),
+            rs.getTimestamp("leaseuntil"));
+      }
+    });
+  }
+
+  @Override
+  public boolean acquireShardLease(int shard, String owner, long leaseDuration) {
+    Date now = new Date();
+    int rowCount = cruncherJdbcTemplate.update("update aggregation_shard set owner = ?, leaseuntil = ? " +
+        "where shard = ? AND (owner IS NULL OR owner = ? OR leaseuntil < ?)",
+        owner, new Date(now.getTime() + leaseDuration), shard, owner, now);
     return rowCount != 0;
   }
 
   @Override
-  public void unlockForCrunching() {
-    cruncherJdbcTemplate.update("update aggregate_meta_data set active=0");
+  public void releaseShardLease(int shard, String owner) {
+    cruncherJdbcTemplate.update("update aggregation_shard set owner = NULL, leaseuntil = NULL where shard = ? AND owner = ?",
+        shard, owner);
+  }
+
+  @Override
+  public long getShardCheckpoint(int shard) {
+    return cruncherJdbcTemplate.queryForLong("select checkpoint from aggregation_shard where shard = ?", shard);
+  }
+
+  @Override
+  public void moveShardCheckpoint(int shard, String owner, long checkpoint, long newCheckpoint, Date newCheckpointStamp) {
+    /*
+     * only the owner can move the checkpoint, and only from where it started:
+     * a node that lost its lease rolls back instead of counting the logins twice
+     */
+    int rowCount = cruncherJdbcTemplate.update("update aggregation_shard set checkpoint = ?, checkpointstamp = ? " +
+        "where shard = ? AND owner = ? AND checkpoint = ?", newCheckpoint, newCheckpointStamp, shard, owner, checkpoint);
+    if (rowCount == 0) {
+      throw new OptimisticLockingFailureException("Lost the lease of aggregation shard " + shard + " at " + checkpoint);
+    }
+    uniqueLoginFilter.validate(shard, checkpoint);
+    uniqueLoginFilter.expectCheckpoint(shard, newCheckpoint);
+    int removed = cruncherJdbcTemplate.update("delete from live_log_logins where shard = ? AND loginminute <= ?",
+        shard, newCheckpointStamp);
+    LOG.debug("Removed {} live login counts of shard {} up to {}", new Object[] {removed, shard, newCheckpointStamp});
+  }
+
+  @Override
+  public void updateAggregatePoint() {
+    cruncherJdbcTemplate.update("update aggregate_meta_data set aggregatepoint = " +
+        "(select min(checkpoint) from aggregation_shard) where exists (select shard from aggregation_shard)");
+    long aggregatePoint = cruncherJdbcTemplate.queryForLong("select aggregatepoint from aggregate_meta_data");
+    List<Date> stamps = ebJdbcTemplate.queryForList("select loginstamp from log_logins where id <= ? order by id desc LIMIT 1",
+        Date.class, aggregatePoint);
+    if (!stamps.isEmpty()) {
+      cruncherJdbcTemplate.update("update aggregate_meta_data set aggregatestamp = ?", stamps.get(0));
+    }
+  }
+
+  @Override
+  public void lockAggregationShards() {
+    cruncherJdbcTemplate.queryForList("select shard from aggregation_shard order by shard FOR UPDATE", Integer.class);
+  }
+
+  @Override
+  public long[] getLiveWatermarks() {
+    RowMapper<Long> watermarkMapper = new RowMapper<Long>() {
+      @Override
+      public Long mapRow(ResultSet rs, int rowNum) throws SQLException {
+        return liveWatermark(rs.getLong(1), rs.getTimestamp(2));
+      }
+    };
+    List<Long> watermarks = cruncherJdbcTemplate.query("select checkpoint, checkpointstamp from aggregation_shard " +
+        "order by shard", watermarkMapper);
+    if (watermarks.isEmpty()) {
+      watermarks = cruncherJdbcTemplate.query("select aggregatepoint, aggregatestamp from aggregate_meta_data", watermarkMapper);
+    }
+    long[] result = new long[Math.max(1, watermarks.size())];
+    for (int i = 0; i < watermarks.size(); i++) {
+      result[i] = watermarks.get(i);
+    }
+    return result;
+  }
+
+  /*
+   * Nothing is aggregated before the first login, after that the minute of the
+   * login at the checkpoint must be known
+   */
+  private static long liveWatermark(long checkpoint, Date stamp) {
+    if (checkpoint == 0L) {
+      return 0L;
+    }
+    if (stamp == null) {
+      return Long.MAX_VALUE;
+    }
+    return stamp.getTime() - stamp.getTime() % MINUTE;
+  }
+
+  @Override
+  public int upsertLiveLogins(Collection<MinuteLogins> minuteLogins, int shards) {
+    if (minuteLogins.isEmpty()) {
+      return 0;
+    }
+    List<MinuteLogins> updates = new ArrayList<MinuteLogins>(minuteLogins);
+    List<Object[]> args = new ArrayList<Object[]>(updates.size());
+    for (MinuteLogins minute : updates) {
+      args.add(new Object[] {minute.getCount(), minute.getLoginDate(), getOrCreateEntityKey(minute.getIdpEntityId()),
+          getOrCreateEntityKey(minute.getSpEntityId())});
+    }
+    int[] rowCounts = cruncherJdbcTemplate.batchUpdate("update live_log_logins set entrycount = entrycount + ? " +
+        "where loginminute = ? and idp_id = ? and sp_id = ?", args);
+    List<Object[]> inserts = new ArrayList<Object[]>();
+    for (int i = 0; i < rowCounts.length; i++) {
+      if (rowCounts[i] == 0) {
+        MinuteLogins minute = updates.get(i);
+        Object[] update = args.get(i);
+        inserts.add(new Object[] {minute.getLoginDate(), update[2], update[3], minute.getIdpEntityName(),
+            minute.getSpEntityName(), minute.getCount(), AggregationShard.indexOf(minute.getSpEntityId(), shards)});
+      }
+    }
+    if (!inserts.isEmpty()) {
+      cruncherJdbcTemplate.batchUpdate("insert into live_log_logins (loginminute,idp_id,sp_id,idpentityname,spentityname," +
+          "entrycount,shard) values (?, ?, ?, ?, ?, ?, ?)", inserts);
+    }
+    LOG.debug("Updated {} and inserted {} live login records", updates.size() - inserts.size(), inserts.size());
+    return inserts.size();
   }
 
   @Override
@@ -261,9 +1105,10 @@ public class StatisticsRepositoryImpl implements StatisticsRepository {
   @Override
   public void insertLastLogin(LoginEntry le) {
     LOG.debug("Inserting new aggregated user record for last login on date {}, record: {}", new Object[] {le.getLoginDate(), le});
-    cruncherJdbcTemplate.update("insert into user_log_logins (loginstamp,userid,spentityid,spentityname,idpentityid,usersphash)" +
+    cruncherJdbcTemplate.update("insert into user_log_logins (loginstamp,userid,sp_id,spentityname,idp_id,usersphash)" +
       " values (?, ?, ?, ?, ?, ?)",
-      le.getLoginDate(), le.getUserId(), le.getSpEntityId(), le.getSpEntityName(), le.getIdpEntityId(), aggregationRecordHash(le.getUserId(), le.getSpEntityId()));
+      le.getLoginDate(), le.getUserId(), getOrCreateEntityKey(le.getSpEntityId()), le.getSpEntityName(),
+      getOrCreateEntityKey(le.getIdpEntityId()), aggregationRecordHash(le.getUserId(), le.getSpEntityId()));
   }
 
   @Override
@@ -271,7 +1116,7 @@ public class StatisticsRepositoryImpl implements StatisticsRepository {
     cruncherJdbcTemplate.update("update user_log_logins set loginstamp = ? where usersphash = ?", loginDate, aggregationRecordHash(userId, spEntityId));
   }
 
-  private Map<String, Object> getParameterMap(LocalDate start, LocalDate end, String idpEntityId, String spEntityId) {
+  private Map<String, Object> getParameterMap(LocalDate start, LocalDate end, Integer idpEntityId, Integer spEntityId) {
     Map<String, Object> parameterMap = new HashMap<String, Object>();
     parameterMap.put("startDate", new Date(start.toDateMidnight().getMillis()));
     parameterMap.put("endDate", new Date(end.toDateMidnight().getMillis()));
@@ -281,30 +1126,38 @@ public class StatisticsRepositoryImpl implements StatisticsRepository {
   }
 
   @Override
-  public void cleanTables(int retention) {
-    Calendar retentionTime = createRetentionTime(retention);
-    int logins_cleaned = cleanAggregatedLogins(retentionTime.getTime());
-    int users_cleaned = cleanUserLogins(retentionTime.getTime());
-    LOG.info("removed {} logins records and {} user records", logins_cleaned, users_cleaned);
+  public List<Long> findExpiredRecords(RetentionTable table, Date retentionTime, long afterId, int chunkSize) {
+    Map<String, Object> parameterMap = getRetentionParameters(retentionTime);
+    parameterMap.put("afterId", afterId);
+    parameterMap.put("chunkSize", chunkSize);
+    return new NamedParameterJdbcTemplate(cruncherJdbcTemplate).queryForList("select id from " + table.getTableName() +
+        " where id > :afterId AND " + table.getExpiredCondition() + " order by id LIMIT :chunkSize", parameterMap, Long.class);
   }
 
-  private Calendar createRetentionTime(int retention) {
-    SimpleDateFormat sdf = new SimpleDateFormat("dd-MM-yyyy");
-    Calendar retentionTime = new GregorianCalendar();
-    retentionTime.setLenient(true);
-    retentionTime.add(Calendar.MONTH, -retention);
-    LOG.debug("Cleaning tables to date " + sdf.format(retentionTime.getTime()));
-    return retentionTime;
-  }
-  
-  private int cleanAggregatedLogins(Date retentionTime) {
-    String sql = "delete from aggregated_log_logins where entryday <= ?";
-    return cruncherJdbcTemplate.update(sql, retentionTime);
+  @Override
+  public int deleteExpiredRecords(RetentionTable table, Date retentionTime, List<Long> ids) {
+    /* the condition is checked again, a user may have logged in since the ids were read */
+    NamedParameterJdbcTemplate namedTemplate = new NamedParameterJdbcTemplate(cruncherJdbcTemplate);
+    Map<String, Object> parameterMap = getRetentionParameters(retentionTime);
+    int result = 0;
+    for (List<Long> chunk : chunk(ids)) {
+      parameterMap.put("ids", chunk);
+      result += namedTemplate.update("delete from " + table.getTableName() + " where id in (:ids) AND " +
+          table.getExpiredCondition(), parameterMap);
+    }
+    return result;
   }
-  
-  private int cleanUserLogins(Date retentionTime) {
-    String sql = "delete from user_log_logins where loginstamp <= ?";
-    return cruncherJdbcTemplate.update(sql, retentionTime);
+
+  private Map<String, Object> getRetentionParameters(Date retentionTime) {
+    LocalDate retentionDate = new LocalDate(retentionTime);
+    LocalDate lastMonth = retentionDate.minusMonths(1);
+    Map<String, Object> result = new HashMap<String, Object>();
+    result.put("retentionTime", retentionTime);
+    result.put("lastWeek", retentionDate.minusWeeks(1).toDate());
+    result.put("lastMonth", lastMonth.toDate());
+    result.put("lastMonthYear", lastMonth.getYear());
+    result.put("lastMonthOfYear", lastMonth.getMonthOfYear());
+    return result;
   }
 
   @Override
@@ -313,24 +1166,23 @@ public class StatisticsRepositoryImpl implements StatisticsRepository {
     
     NamedParameterJdbcTemplate namedJdbcTemplate = new NamedParameterJdbcTemplate(cruncherJdbcTemplate);
     String query =
-        "select idpentityid, sum(entrycount) as loginCount from aggregated_log_logins " +
+        "select idp_id, sum(entrycount) as loginCount from aggregated_log_logins " +
         "where " +
         "entryday >= :startDate AND " +
-        "entryday <= :endDate AND " +
-        "spentityid = :spEntityId " +
-        "group by idpentityid " +
-        "order by idpentityid";
+        "entryday < :endDate AND " +
+        "sp_id = :spEntityId " +
+        "group by idp_id";
     
     Map<String, Object> parameterMap = new HashMap<String, Object>();
     parameterMap.put("startDate", new Date(startDate.toDateMidnight().getMillis()));
     parameterMap.put("endDate", new Date(endDate.toDateMidnight().getMillis()));
-    parameterMap.put("spEntityId", spEntityId);
+    parameterMap.put("spEntityId", findEntityKey(spEntityId));
     
     namedJdbcTemplate.query(query, parameterMap , new RowMapper<VersStatistic>() {
       
       @Override
       public VersStatistic mapRow(ResultSet rs, int row) throws SQLException {
-        String idpEntityId = rs.getString("idpEntityId");
+        String idpEntityId = getEntityId(rs.getInt("idp_id"));
         result.addInstitutionLoginCount(idpEntityId, rs.getLong("loginCount"));
         
         // no rowbased result
@@ -349,85 +1201,460 @@ public class StatisticsRepositoryImpl implements StatisticsRepository {
     int year = entryDate.get(YEAR);
     
     LOG.debug("Inserting new unique user record for user {} on date {}, record: {}", new Object[] {le.getUserId(), le.getLoginDate(), le});
-    cruncherJdbcTemplate.update("insert into user_unique_logins_cache (userid,spentityid,idpentityid,timespan,month,year)" +
+    byte[] hash = aggregationRecordHash(le.getUserId(), le.getSpEntityId(), le.getIdpEntityId(), year, month);
+    cruncherJdbcTemplate.update("insert into user_unique_logins_cache (uniquehash,sp_id,idp_id,timespan,month,year)" +
       " values (?, ?, ?, ?, ?, ?)",
-      le.getUserId(), le.getSpEntityId(), le.getIdpEntityId(), TimeSpan.MONTH.getCode(), month, year);
+      hash, getOrCreateEntityKey(le.getSpEntityId()), getOrCreateEntityKey(le.getIdpEntityId()),
+      TimeSpan.MONTH.getCode(), month, year);
+    uniqueLoginFilter.add(year, month, new RecordHash(hash));
   }
 
   @Override
   public boolean uniqueUserLogonExists(String userId, Date loginDate, String spEntityId, String idpEntityId) {
-    NamedParameterJdbcTemplate namedTemplate = new NamedParameterJdbcTemplate(cruncherJdbcTemplate);
-    String query =
-    		"select count(*) from user_unique_logins_cache " +
-    		"where " +
-    		"userId=:userId AND " +
-    		"spEntityId=:spEntityId AND " +
-    		"idpEntityId=:idpEntityId AND " +
-    		"timespan=:timespan AND " +
-    		"month=:month AND " +
-    		"year=:year";
-    
     Calendar entryDate = new GregorianCalendar();
     entryDate.setTime(loginDate);
     int month = entryDate.get(MONTH) + 1; //this stupid thing is 0 based
     int year = entryDate.get(YEAR);
     
-    Map<String, Object> parameterMap = new HashMap<String, Object>();
-    parameterMap.put("userId", userId);
-    parameterMap.put("spEntityId", spEntityId);
-    parameterMap.put("idpEntityId", idpEntityId);
-    parameterMap.put("timespan", TimeSpan.MONTH.getCode());
-    parameterMap.put("month", month);
-    parameterMap.put("year", year);
-    
-    return namedTemplate.queryForInt(query, parameterMap) > 0;
+    return cruncherJdbcTemplate.queryForInt("select count(*) from user_unique_logins_cache where uniquehash = ?",
+        aggregationRecordHash(userId, spEntityId, idpEntityId, year, month)) > 0;
   }
 
   @Override
-  public void aggregateUniqueLoginsIfNeeded() {
-    Calendar cruncherTime = getCurrentCruncherTime();
-    int month = cruncherTime.get(MONTH) + 1; //this stupid thing is 0 based
-    int year = cruncherTime.get(YEAR);
-    
-    /* check whether we have rows to aggregate */
-    int rowCount = cruncherJdbcTemplate.queryForInt("select count(*) from user_unique_logins_cache where month < ? OR year < ?", month, year);
-    if (rowCount > 0) {
-      LOG.debug("found {} rows in the unique user login cache that need to move to the unique user login table", rowCount);
-      aggregateUserUniqueLogins(month, year);
-    } else {
-      LOG.debug("currently no records found to aggregate in the user_unique_logins tables");
+  public LocalDate getCurrentAggregationMonth() {
+    /*
+     * the slowest shard decides, the other shards may already be months ahead;
+     * a shard without a stamp can still be anywhere
+     */
+    List<Date> stamps = cruncherJdbcTemplate.queryForList("select checkpointstamp from aggregation_shard", Date.class);
+    if (stamps.isEmpty()) {
+      stamps = cruncherJdbcTemplate.queryForList("select aggregatestamp from aggregate_meta_data", Date.class);
     }
+    Date oldest = null;
+    for (Date stamp : stamps) {
+      if (stamp == null) {
+        return null;
+      }
+      if (oldest == null || stamp.before(oldest)) {
+        oldest = stamp;
+      }
+    }
+    return oldest == null ? null : new LocalDate(oldest).withDayOfMonth(1);
   }
 
-  private void aggregateUserUniqueLogins(int month, int year) {
-    String query = "insert into user_unique_logins " +
-        "(spentityid, idpentityid, entrycount, timespan, month, year) " +
-        "select " +
-        "spentityid, idpentityid, count(*), timespan, month, year " +
-        "from user_unique_logins_cache  " +
-        "where " +
-        "month < ? OR year < ? " +
-        "group by spentityid, idpentityid, timespan, month, year";
-    cruncherJdbcTemplate.update(query, month, year);
-    
-    /* remove the entries we just aggregated */
-    cruncherJdbcTemplate.update("delete from user_unique_logins_cache where month < ? OR year < ?", month, year);
+  @Override
+  public List<LocalDate> getClosedUniqueLoginMonths(LocalDate currentMonth) {
+    return cruncherJdbcTemplate.query("select distinct year, month from user_unique_logins_cache " +
+        "where year < ? OR (year = ? AND month < ?) order by year, month", new RowMapper<LocalDate>() {
+      @Override
+      public LocalDate mapRow(ResultSet rs, int rowNum) throws SQLException {
+        return new LocalDate(rs.getInt("year"), rs.getInt("month"), 1);
+      }
+    }, currentMonth.getYear(), currentMonth.getYear(), currentMonth.getMonthOfYear());
   }
 
-  private Calendar getCurrentCruncherTime() {
-    /* determine the current point in time where the cruncher works on */
-    Date currentDate = cruncherJdbcTemplate.queryForObject("select entryday from aggregated_log_logins order by id DESC LIMIT 1;", Date.class);
-    Calendar calendar = new GregorianCalendar();
-    calendar.setTime(currentDate);
-    return calendar;
+  @Override
+  public int rollOverUniqueLogins(LocalDate month, int chunkSize) {
+    int year = month.getYear();
+    int monthOfYear = month.getMonthOfYear();
+    List<Long> checkpoint = cruncherJdbcTemplate.queryForList("select lastid from unique_logins_rollover " +
+        "where year = ? and month = ?", Long.class, year, monthOfYear);
+    long lastId = checkpoint.isEmpty() ? 0L : checkpoint.get(0);
+    List<long[]> rows = getUniqueLoginsCacheChunk(year, monthOfYear, lastId, chunkSize);
+    if (rows.isEmpty() && lastId > 0L) {
+      /* rows of late logins may be committed with an id below the checkpoint */
+      rows = getUniqueLoginsCacheChunk(year, monthOfYear, 0L, chunkSize);
+    }
+    if (rows.isEmpty()) {
+      cruncherJdbcTemplate.update("delete from unique_logins_rollover where year = ? and month = ?", year, monthOfYear);
+      return 0;
+    }
+
+    /* count the rows per (sp, idp), adding them to the counts moved by the previous chunks */
+    Map<String, long[]> counts = new LinkedHashMap<String, long[]>();
+    List<Long> ids = new ArrayList<Long>(rows.size());
+    Set<Long> spKeys = new HashSet<Long>();
+    for (long[] row : rows) {
+      ids.add(row[0]);
+      spKeys.add(row[1]);
+      String key = row[1] + "!" + row[2];
+      long[] count = counts.get(key);
+      if (count == null) {
+        count = new long[] {row[1], row[2], 0L};
+        counts.put(key, count);
+      }
+      count[2] += 1;
+    }
+    NamedParameterJdbcTemplate namedTemplate = new NamedParameterJdbcTemplate(cruncherJdbcTemplate);
+    Map<String, Object> parameterMap = new HashMap<String, Object>();
+    parameterMap.put("timespan", TimeSpan.MONTH.getCode());
+    parameterMap.put("year", year);
+    parameterMap.put("month", monthOfYear);
+    final Set<String> existing = new HashSet<String>();
+    for (List<Long> chunk : chunk(new ArrayList<Long>(spKeys))) {
+      parameterMap.put("spIds", chunk);
+      namedTemplate.query("select sp_id, idp_id from user_unique_logins " +
+          "where timespan = :timespan AND year = :year AND month = :month AND sp_id in (:spIds)", parameterMap,
+          new RowCallbackHandler() {
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+          existing.add(rs.getLong("sp_id") + "!" + rs.getLong("idp_id"));
+        }
+      });
+    }
+    List<Object[]> updates = new ArrayList<Object[]>();
+    List<Object[]> inserts = new ArrayList<Object[]>();
+    for (Map.Entry<String, long[]> count : counts.entrySet()) {
+      long[] value = count.getValue();
+      if (existing.contains(count.getKey())) {
+        updates.add(new Object[] {value[2], TimeSpan.MONTH.getCode(), year, monthOfYear, value[0], value[1]});
+      } else {
+        inserts.add(new Object[] {value[0], value[1], value[2], TimeSpan.MONTH.getCode(), monthOfYear, year});
+      }
+    }
+    if (!updates.isEmpty()) {
+      cruncherJdbcTemplate.batchUpdate("update user_unique_logins set entrycount = entrycount + ? " +
+          "where timespan = ? AND year = ? AND month = ? AND sp_id = ? AND idp_id = ?", updates);
+    }
+    if (!inserts.isEmpty()) {
+      cruncherJdbcTemplate.batchUpdate("insert into user_unique_logins (sp_id, idp_id, entrycount, timespan, month, year) " +
+          "values (?, ?, ?, ?, ?, ?)", inserts);
+    }
+
+    /* if another node moved (some of) these rows first, moving them again would count them twice */
+    int deleted = 0;
+    for (List<Long> chunk : chunk(ids)) {
+      deleted += namedTemplate.update("delete from user_unique_logins_cache where id in (:ids)",
+          Collections.singletonMap("ids", chunk));
+    }
+    if (deleted != ids.size()) {
+      throw new OptimisticLockingFailureException("Only " + deleted + " of " + ids.size() +
+          " unique login rows of " + year + "-" + monthOfYear + " were still there, another node is rolling over the month");
+    }
+
+    long chunkLastId = ids.get(ids.size() - 1);
+    Date now = new Date();
+    if (cruncherJdbcTemplate.update("update unique_logins_rollover set lastid = ?, moved = moved + ?, updated = ? " +
+        "where year = ? and month = ?", chunkLastId, ids.size(), now, year, monthOfYear) == 0) {
+      cruncherJdbcTemplate.update("insert into unique_logins_rollover (year, month, lastid, moved, updated) " +
+          "values (?, ?, ?, ?, ?)", year, monthOfYear, chunkLastId, ids.size(), now);
+    }
+    LOG.debug("Moved {} unique login rows of {}-{} up to id {}", new Object[] {ids.size(), year, monthOfYear, chunkLastId});
+    return ids.size();
+  }
+
+  /*
+   * The next rows (id, sp_id, idp_id) of the month in the unique login cache, in id order
+   */
+  private List<long[]> getUniqueLoginsCacheChunk(int year, int month, long afterId, int chunkSize) {
+    return cruncherJdbcTemplate.query("select id, sp_id, idp_id from user_unique_logins_cache " +
+        "where year = ? AND month = ? AND id > ? order by id LIMIT ?", new RowMapper<long[]>() {
+      @Override
+      public long[] mapRow(ResultSet rs, int rowNum) throws SQLException {
+        return new long[] {rs.getLong("id"), rs.getLong("sp_id"), rs.getLong("idp_id")};
+      }
+    }, year, month, afterId, chunkSize);
   }
 
   @Override
   public long getTotalUniqueLogins(String spEntityId, Integer month, Integer year) {
+    // months from before the sketches, or in which they were switched on, have exact counts
+    if (uniqueLoginsEstimated && isSketchedMonth(year, month)) {
+      LocalDate firstDay = new LocalDate(year, month, 1);
+      HyperLogLog merged = mergeSketches(firstDay, firstDay, spEntityId, null);
+      return merged == null ? 0L : merged.estimate();
+    }
     String query = "select SUM(entrycount) " +
     		"from user_unique_logins " +
     		"where " +
-    		"spentityid=? and timespan=? and month=? and year=?";
-    return cruncherJdbcTemplate.queryForLong(query, spEntityId, TimeSpan.MONTH.getCode(), month, year);
+    		"sp_id=? and timespan=? and month=? and year=?";
+    return cruncherJdbcTemplate.queryForLong(query, findEntityKey(spEntityId), TimeSpan.MONTH.getCode(), month, year);
+  }
+
+  @Override
+  public void streamVersStats(LocalDate firstMonth, LocalDate lastMonth, Collection<String> spEntityIds,
+      final VersStatisticHandler handler) {
+    NamedParameterJdbcTemplate namedJdbcTemplate = new NamedParameterJdbcTemplate(cruncherJdbcTemplate);
+    LocalDate start = firstMonth.withDayOfMonth(1);
+    LocalDate end = lastMonth.withDayOfMonth(1);
+
+    Map<String, Object> parameterMap = new HashMap<String, Object>();
+    String spCondition = "";
+    if (!spEntityIds.isEmpty()) {
+      List<Integer> spKeys = new ArrayList<Integer>();
+      for (String spEntityId : spEntityIds) {
+        Integer spKey = findEntityKey(spEntityId);
+        if (spKey != null) {
+          spKeys.add(spKey);
+        }
+      }
+      if (spKeys.isEmpty()) {
+        // none of the SPs was ever seen, so there are no logins
+        return;
+      }
+      spCondition = "sp_id in (:spKeys) AND ";
+      parameterMap.put("spKeys", spKeys);
+    }
+    parameterMap.putAll(getMonthRangeParameters(start, end));
+    parameterMap.put("timespan", TimeSpan.MONTH.getCode());
+    parameterMap.put("startDate", new Date(start.toDateMidnight().getMillis()));
+    parameterMap.put("endDate", new Date(end.toDateMidnight().getMillis()));
+
+    final Map<String, Long> uniqueLogins = new HashMap<String, Long>();
+    namedJdbcTemplate.query("select sp_id, year, month, sum(entrycount) as uniqueCount from user_unique_logins " +
+        "where " +
+        "timespan = :timespan AND " +
+        spCondition +
+        MONTH_RANGE_CONDITION +
+        "group by sp_id, year, month", parameterMap, new RowCallbackHandler() {
+      @Override
+      public void processRow(ResultSet rs) throws SQLException {
+        uniqueLogins.put(rs.getInt("sp_id") + "!" + rs.getInt("year") + "!" + rs.getInt("month"), rs.getLong("uniqueCount"));
+      }
+    });
+    if (uniqueLoginsEstimated) {
+      // the sketches take precedence over the exact counts of the months that are only sketched
+      final Map<String, HyperLogLog> sketches = new HashMap<String, HyperLogLog>();
+      namedJdbcTemplate.query("select sp_id, year, month, sketch from user_unique_sketches " +
+          "where " +
+          spCondition +
+          MONTH_RANGE_CONDITION +
+          "AND EXISTS (select year from unique_logins_sketch_month m where m.year = user_unique_sketches.year " +
+          "AND m.month = user_unique_sketches.month)", parameterMap, new RowCallbackHandler() {
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+          String key = rs.getInt("sp_id") + "!" + rs.getInt("year") + "!" + rs.getInt("month");
+          HyperLogLog sketch = HyperLogLog.fromBytes(rs.getBytes("sketch"));
+          if (sketches.containsKey(key)) {
+            sketches.get(key).merge(sketch);
+          } else {
+            sketches.put(key, sketch);
+          }
+        }
+      });
+      for (Map.Entry<String, HyperLogLog> sketch : sketches.entrySet()) {
+        uniqueLogins.put(sketch.getKey(), sketch.getValue().estimate());
+      }
+    }
+
+    /* holds the statistics currently being read */
+    final VersStatistic[] current = new VersStatistic[1];
+    namedJdbcTemplate.query("select sp_id, idp_id, entryday, entrycount from aggregated_log_logins_rollup " +
+        "where " +
+        "timespan = :timespan AND " +
+        spCondition +
+        "entryday >= :startDate AND " +
+        "entryday <= :endDate " +
+        "order by sp_id, entryday", parameterMap, new RowCallbackHandler() {
+      private int currentSp;
+      private LocalDate currentMonth;
+
+      @Override
+      public void processRow(ResultSet rs) throws SQLException {
+        int sp = rs.getInt("sp_id");
+        LocalDate month = new LocalDate(rs.getDate("entryday"));
+        // rows are ordered per (sp, month), the statistics are complete when either changes
+        if (current[0] == null || sp != currentSp || !month.equals(currentMonth)) {
+          if (current[0] != null) {
+            handler.handle(current[0]);
+          }
+          currentSp = sp;
+          currentMonth = month;
+          current[0] = new VersStatistic();
+          current[0].setSpEntityId(getEntityId(sp));
+          current[0].setMonth(month.getMonthOfYear());
+          current[0].setYear(month.getYear());
+          Long uniqueCount = uniqueLogins.get(sp + "!" + month.getYear() + "!" + month.getMonthOfYear());
+          current[0].setTotalUniqueLogins(uniqueCount == null ? 0L : uniqueCount);
+        }
+        current[0].addInstitutionLoginCount(getEntityId(rs.getInt("idp_id")), rs.getLong("entrycount"));
+      }
+    });
+    if (current[0] != null) {
+      handler.handle(current[0]);
+    }
+  }
+
+  /*
+   * The months from (the month of) start to end, both inclusive. The year range
+   * can use an index, the month range narrows it down.
+   */
+  private static final String MONTH_RANGE_CONDITION =
+      "year >= :startYear AND year <= :endYear AND " +
+      "year * 100 + month >= :startMonth AND year * 100 + month <= :endMonth ";
+
+  private Map<String, Object> getMonthRangeParameters(LocalDate start, LocalDate end) {
+    Map<String, Object> parameterMap = new HashMap<String, Object>();
+    parameterMap.put("startYear", start.getYear());
+    parameterMap.put("endYear", end.getYear());
+    parameterMap.put("startMonth", start.getYear() * 100 + start.getMonthOfYear());
+    parameterMap.put("endMonth", end.getYear() * 100 + end.getMonthOfYear());
+    return parameterMap;
+  }
+
+  /*
+   * The (year, month) of a sketch
+   */
+  private static final class SketchMonth {
+    private final int year;
+    private final int month;
+
+    private SketchMonth(int year, int month) {
+      this.year = year;
+      this.month = month;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof SketchMonth && ((SketchMonth) obj).year == year && ((SketchMonth) obj).month == month;
+    }
+
+    @Override
+    public int hashCode() {
+      return year * 100 + month;
+    }
+  }
+
+  /*
+   * The (sp, idp) entity keys of a sketch
+   */
+  private static final class EntityPair {
+    private final int spKey;
+    private final int idpKey;
+
+    private EntityPair(int spKey, int idpKey) {
+      this.spKey = spKey;
+      this.idpKey = idpKey;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof EntityPair && ((EntityPair) obj).spKey == spKey && ((EntityPair) obj).idpKey == idpKey;
+    }
+
+    @Override
+    public int hashCode() {
+      return spKey * 31 + idpKey;
+    }
+  }
+
+  /*
+   * The key of a known entity, or null when the entityId is null or was never seen
+   */
+  private Integer findEntityKey(String entityId) {
+    if (entityId == null) {
+      return null;
+    }
+    Integer key = entityKeys.get(entityId);
+    Map<String, Integer> pending = getPendingEntities();
+    if (key == null && pending != null) {
+      key = pending.get(entityId);
+    }
+    if (key == null) {
+      List<Integer> keys = cruncherJdbcTemplate.queryForList("select id from entity where entityhash = ?", Integer.class,
+          entityHash(entityId));
+      if (!keys.isEmpty()) {
+        key = keys.get(0);
+        rememberEntity(pending, key, entityId);
+      }
+    }
+    return key;
+  }
+
+  /*
+   * The key of the entity, registered in the entity table when never seen before
+   */
+  private Integer getOrCreateEntityKey(final String entityId) {
+    Integer key = findEntityKey(entityId);
+    if (key != null || entityId == null) {
+      return key;
+    }
+    final byte[] hash = entityHash(entityId);
+    KeyHolder keyHolder = new GeneratedKeyHolder();
+    try {
+      cruncherJdbcTemplate.update(new PreparedStatementCreator() {
+        @Override
+        public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+          PreparedStatement ps = con.prepareStatement("insert into entity (entityid, entityhash) values (?, ?)",
+              Statement.RETURN_GENERATED_KEYS);
+          ps.setString(1, entityId);
+          ps.setBytes(2, hash);
+          return ps;
+        }
+      }, keyHolder);
+    } catch (DuplicateKeyException e) {
+      /*
+       * registered by another transaction, which the unique key waited for. A
+       * locking read of that one row sees it even when the snapshot of this
+       * transaction is older
+       */
+      key = cruncherJdbcTemplate.queryForInt("select id from entity where entityhash = ? FOR UPDATE", hash);
+      LOG.debug("Entity {} was registered concurrently with key {}", entityId, key);
+      rememberEntity(getPendingEntities(), key, entityId);
+      return key;
+    }
+    key = keyHolder.getKey().intValue();
+    LOG.debug("Registered entity {} with key {}", entityId, key);
+    rememberEntity(getPendingEntities(), key, entityId);
+    return key;
+  }
+
+  private String getEntityId(int key) {
+    String entityId = entityIds.get(key);
+    if (entityId == null) {
+      entityId = cruncherJdbcTemplate.queryForObject("select entityid from entity where id = ?", String.class, key);
+      rememberEntity(getPendingEntities(), key, entityId);
+    }
+    return entityId;
+  }
+
+  /*
+   * Entities seen within a transaction only end up in the dictionary once it
+   * is committed, a rolled back entity must not be remembered
+   */
+  private void rememberEntity(Map<String, Integer> pending, Integer key, String entityId) {
+    if (pending != null) {
+      pending.put(entityId, key);
+    } else {
+      entityKeys.putIfAbsent(entityId, key);
+      entityIds.putIfAbsent(key, entityId);
+    }
+  }
+
+  /*
+   * The entities seen in the current transaction, null when there is none
+   */
+  @SuppressWarnings("unchecked")
+  private Map<String, Integer> getPendingEntities() {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      return null;
+    }
+    Map<String, Integer> pending = (Map<String, Integer>) TransactionSynchronizationManager.getResource(pendingEntitiesKey);
+    if (pending == null) {
+      final Map<String, Integer> newPending = new HashMap<String, Integer>();
+      TransactionSynchronizationManager.bindResource(pendingEntitiesKey, newPending);
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+        @Override
+        public void afterCommit() {
+          for (Map.Entry<String, Integer> entity : newPending.entrySet()) {
+            rememberEntity(null, entity.getValue(), entity.getKey());
+          }
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+          TransactionSynchronizationManager.unbindResourceIfPossible(pendingEntitiesKey);
+        }
+      });
+      pending = newPending;
+    }
+    return pending;
+  }
+
+  private static int compareEntityIds(String entityId1, String entityId2) {
+    if (entityId1 == null || entityId2 == null) {
+      return entityId1 == null ? (entityId2 == null ? 0 : -1) : 1;
+    }
+    return entityId1.compareTo(entityId2);
   }
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.repository;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * In memory Bloom filter (one per month) of the uniquehash keys in
+ * user_unique_logins_cache. A key the filter does not contain is certainly not
+ * in the table and is inserted without querying for it first, only the keys the
+ * filter might contain (seen before, or a false positive) are looked up.
+ * <p>
+ * The filter of a month is loaded from the table the first time it is needed.
+ * Keys are added as soon as they are written: if the transaction is rolled back
+ * they merely become false positives. When another node has aggregated in the
+ * meantime (the checkpoint of the shard is not the one this node left behind)
+ * all filters are dropped and reloaded, as they may miss the keys it wrote.
+ * </p>
+ */
+@Named
+@ManagedResource(objectName = "org.surfnet.cruncher:name=UniqueLoginFilter")
+public class UniqueLoginFilter {
+  private static final Logger LOG = LoggerFactory.getLogger(UniqueLoginFilter.class);
+
+  /**
+   * Nr of months kept in memory, the current one and a few that may still get
+   * late logins
+   */
+  private static final int MONTHS = 3;
+
+  /**
+   * The 'shard' of logins aggregated outside of the shards, checkpointed by
+   * the aggregation point
+   */
+  public static final int UNSHARDED = -1;
+
+  @Inject
+  private JdbcTemplate cruncherJdbcTemplate;
+
+  @Value("${unique-logins.filter.expected-insertions}")
+  private int expectedInsertions;
+
+  @Value("${unique-logins.filter.false-positive-rate}")
+  private double falsePositiveRate;
+
+  private final AtomicLong skippedProbes = new AtomicLong();
+  private final AtomicLong probes = new AtomicLong();
+  private final AtomicLong falsePositives = new AtomicLong();
+
+  private final Map<String, BloomFilter> filters = new LinkedHashMap<String, BloomFilter>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, BloomFilter> eldest) {
+      return size() > MONTHS;
+    }
+  };
+
+  /**
+   * The checkpoint this node left behind per shard
+   */
+  private final Map<Integer, Long> expectedCheckpoints = new HashMap<Integer, Long>();
+
+  public UniqueLoginFilter() {
+  }
+
+  UniqueLoginFilter(JdbcTemplate cruncherJdbcTemplate, int expectedInsertions, double falsePositiveRate) {
+    this.cruncherJdbcTemplate = cruncherJdbcTemplate;
+    this.expectedInsertions = expectedInsertions;
+    this.falsePositiveRate = falsePositiveRate;
+  }
+
+  /**
+   * Drop all filters unless the checkpoint of the shard is the one this node
+   * left behind after its last batch of it.
+   * @param shard the shard, or {@link #UNSHARDED} for the aggregation point
+   */
+  public synchronized void validate(int shard, long checkpoint) {
+    Long expected = expectedCheckpoints.get(shard);
+    if ((expected == null || expected != checkpoint) && !filters.isEmpty()) {
+      LOG.info("Checkpoint {} of shard {} is not the expected {}, reloading the unique login filters",
+          new Object[] {checkpoint, shard, expected});
+      filters.clear();
+    }
+  }
+
+  /**
+   * Remember the checkpoint this node has moved the shard to.
+   */
+  public synchronized void expectCheckpoint(int shard, long checkpoint) {
+    expectedCheckpoints.put(shard, checkpoint);
+  }
+
+  /**
+   * @return false if the key is certainly not in user_unique_logins_cache, true
+   *         if it might be
+   */
+  public synchronized boolean mightContain(int year, int month, RecordHash hash) {
+    boolean result = filter(year, month).mightContain(hash);
+    if (result) {
+      probes.incrementAndGet();
+    } else {
+      skippedProbes.incrementAndGet();
+    }
+    return result;
+  }
+
+  /**
+   * Count a key the filter claimed, but the table did not contain.
+   */
+  public void falsePositive() {
+    falsePositives.incrementAndGet();
+  }
+
+  public synchronized void add(int year, int month, RecordHash hash) {
+    filter(year, month).add(hash);
+  }
+
+  @ManagedOperation(description = "Drop the filters, they are reloaded when needed")
+  public synchronized void invalidate() {
+    filters.clear();
+    LOG.debug("Invalidated the unique login filters");
+  }
+
+  @ManagedAttribute
+  public long getSkippedProbes() {
+    return skippedProbes.get();
+  }
+
+  @ManagedAttribute
+  public long getProbes() {
+    return probes.get();
+  }
+
+  @ManagedAttribute
+  public long getFalsePositives() {
+    return falsePositives.get();
+  }
+
+  @ManagedAttribute
+  public synchronized int getMonths() {
+    return filters.size();
+  }
+
+  @ManagedAttribute
+  public synchronized long getByteSize() {
+    long result = 0L;
+    for (BloomFilter filter : filters.values()) {
+      result += filter.getByteSize();
+    }
+    return result;
+  }
+
+  private BloomFilter filter(int year, int month) {
+    String key = year + "-" + month;
+    BloomFilter filter = filters.get(key);
+    if (filter == null) {
+      filter = load(year, month);
+      filters.put(key, filter);
+    }
+    return filter;
+  }
+
+  private BloomFilter load(int year, int month) {
+    BloomFilter filter = new BloomFilter(expectedInsertions, falsePositiveRate);
+    List<byte[]> hashes = cruncherJdbcTemplate.queryForList(
+        "select uniquehash from user_unique_logins_cache where year = ? and month = ?", byte[].class, year, month);
+    for (byte[] hash : hashes) {
+      filter.add(new RecordHash(hash));
+    }
+    LOG.debug("Loaded the unique login filter of {}-{} with {} keys", new Object[] {year, month, hashes.size()});
+    return filter;
+  }
+}
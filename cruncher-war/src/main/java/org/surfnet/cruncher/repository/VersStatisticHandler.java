@@ -0,0 +1,31 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.repository;
+
+import org.surfnet.cruncher.model.VersStatistic;
+
+/**
+ * Callback for streaming vers statistics, see
+ * {@link StatisticsRepository#streamVersStats(org.joda.time.LocalDate, org.joda.time.LocalDate, java.util.Collection, VersStatisticHandler)}
+ */
+public interface VersStatisticHandler {
+
+  /**
+   * Handle the completed statistics of a single (sp, month).
+   */
+  void handle(VersStatistic versStatistic);
+}
@@ -18,31 +18,44 @@
  */
 package org.surfnet.cruncher.resource;
 
-import java.util.HashMap;
-import java.util.Iterator;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
-import nl.surfnet.coin.janus.Janus;
-import nl.surfnet.coin.janus.domain.EntityMetadata;
-
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.joda.time.LocalDate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.util.Assert;
+import org.surfnet.cruncher.message.LiveLogins;
 import org.surfnet.cruncher.model.LoginData;
-import org.surfnet.cruncher.model.SpStatistic;
+import org.surfnet.cruncher.model.LoginEvent;
+import org.surfnet.cruncher.model.SpStatisticPage;
 import org.surfnet.cruncher.model.VersStatistic;
+import org.surfnet.cruncher.repository.LoginDataHandler;
+import org.surfnet.cruncher.repository.LoginInterval;
+import org.surfnet.cruncher.repository.QueryResultCache;
 import org.surfnet.cruncher.repository.StatisticsRepository;
+import org.surfnet.cruncher.repository.VersStatisticHandler;
 
 @Named
 @Path("/v1")
@@ -50,71 +63,248 @@ import org.surfnet.cruncher.repository.StatisticsRepository;
 public class CruncherResource {
 
   private static final Logger LOG = LoggerFactory.getLogger(CruncherResource.class);
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
   @Inject
   private StatisticsRepository statisticsRepository;
   
   @Inject
-  private Janus janusRestClient;
+  private InstitutionCache institutionCache;
+
+  @Inject
+  private QueryResultCache queryResultCache;
+
+  @Inject
+  private LiveLogins liveLogins;
+
+  @Value("${lastlogin.max-results}")
+  private int maxResults;
 
+  @Value("${live.max-events}")
+  private int maxEvents;
+
+  /**
+   * The logins of the user at the idp, most recent first. Without limit and
+   * cursor the response is the plain list of (at most lastlogin.max-results)
+   * logins. With either of them it is a page that holds the cursor of the next
+   * page, if any.
+   */
   @GET
   @Path("/lastlogin")
   public Response getRecentLoginsForUser(@QueryParam("userId") String userId,
-      @QueryParam("idpEntityId") String idpEntityId) {
+      @QueryParam("idpEntityId") String idpEntityId, @QueryParam("limit") Integer limit,
+      @QueryParam("cursor") String cursor) {
     invariant(userId, idpEntityId);
+    Assert.isTrue(limit == null || limit > 0, "limit must be a positive number");
+    int pageSize = limit == null ? maxResults : Math.min(limit, maxResults);
     
-    final List<SpStatistic> recentLogins = statisticsRepository.getActiveServices(userId, idpEntityId);
+    List<Object> key = cacheKey("lastlogin", userId, idpEntityId, pageSize, cursor);
+    SpStatisticPage recentLogins = queryResultCache.get(key);
+    if (recentLogins == null) {
+      recentLogins = statisticsRepository.getActiveServices(userId, idpEntityId, cursor, pageSize);
+      queryResultCache.put(key, null, null, recentLogins);
+    }
     LOG.info("returning recent logins for " + userId + " on " + idpEntityId);
+    if (limit == null && cursor == null) {
+      return Response.ok(recentLogins.getSpStatistics()).build();
+    }
     return Response.ok(recentLogins).build();
   }
 
   @GET
   @Path("/logins")
   public Response getLoginsPerInterval(@QueryParam("startDate") Long startDate,
-      @QueryParam("endDate") Long endDate, @QueryParam("idpEntityId") String idpEntityId,
-      @QueryParam("spEntityId") String spEntityId) {
+      @QueryParam("endDate") Long endDate, @QueryParam("idpEntityId") final String idpEntityId,
+      @QueryParam("spEntityId") final String spEntityId, @QueryParam("interval") String interval,
+      @QueryParam("stream") @DefaultValue("false") boolean stream) {
     invariant(startDate, endDate);
+    final LoginInterval loginInterval = LoginInterval.fromParameter(interval);
 
-    List<LoginData> result = statisticsRepository.getLogins(new LocalDate(startDate), new LocalDate(endDate),
-        idpEntityId, spEntityId);
-    LOG.info("returning logins for sp " + spEntityId + " and idp " + idpEntityId);
+    final LocalDate start = new LocalDate(startDate);
+    final LocalDate end = new LocalDate(endDate);
+    if (stream) {
+      LOG.info("streaming logins per " + loginInterval + " for sp " + spEntityId + " and idp " + idpEntityId);
+      return Response.ok(new JsonArrayOutput() {
+        @Override
+        protected void writeElements() {
+          statisticsRepository.streamLogins(start, end, idpEntityId, spEntityId, loginInterval, new LoginDataHandler() {
+            @Override
+            public void handle(LoginData loginData) {
+              writeElement(loginData);
+            }
+          });
+        }
+      }).build();
+    }
+    List<Object> key = cacheKey("logins", start, end, idpEntityId, spEntityId, loginInterval);
+    List<LoginData> result = queryResultCache.get(key);
+    if (result == null) {
+      result = statisticsRepository.getLogins(start, end, idpEntityId, spEntityId, loginInterval);
+      // the periods at both ends may include days outside of the requested range
+      queryResultCache.put(key, loginInterval.periodStart(start),
+          loginInterval.nextPeriod(loginInterval.periodStart(end)).minusDays(1), result);
+    }
+    LOG.info("returning logins per " + loginInterval + " for sp " + spEntityId + " and idp " + idpEntityId);
     return Response.ok(result).build();
   }
   
+  /**
+   * Logins pushed by EngineBlock, they are counted in the logins per interval
+   * and the last logins within seconds. The same logins are still aggregated
+   * from the login-log, which replaces the pushed counts.
+   */
+  @POST
+  @Path("/logins/events")
+  @Consumes(MediaType.APPLICATION_JSON)
+  public Response postLoginEvents(List<LoginEvent> events) {
+    if (!liveLogins.isEnabled()) {
+      return Response.status(Response.Status.NOT_FOUND).build();
+    }
+    Assert.notNull(events, "a list of logins is required");
+    Assert.isTrue(events.size() <= maxEvents, "at most " + maxEvents + " logins can be pushed at once");
+    for (LoginEvent event : events) {
+      Assert.isTrue(event.getLoginTime() > 0, "loginTime is required");
+      Assert.notNull(event.getUserId(), "userId is required");
+      Assert.notNull(event.getIdpEntityId(), "idpEntityId is required");
+      Assert.notNull(event.getSpEntityId(), "spEntityId is required");
+    }
+    for (LoginEvent event : events) {
+      liveLogins.add(event);
+    }
+    LOG.debug("received " + events.size() + " logins");
+    return Response.status(Response.Status.ACCEPTED).build();
+  }
+
   @GET
   @Path("/versstats")
   public Response getVersStatistics(@QueryParam("month") Integer month,
       @QueryParam("year") Integer year, @QueryParam("spEntityId") String spEntityId) {
     invariant(month, year, spEntityId);
-    VersStatistic result = new VersStatistic();
-    
     LocalDate startDate = new LocalDate(year, month, 1);
     LocalDate endDate = startDate.plusMonths(1);
-    VersStatistic queryResult = statisticsRepository.getVersStats(startDate, endDate, spEntityId);
-    Map<String, String> idpInstitutions = getInstitutionIdsFromJanus();
-    Iterator<String> keyIterator = queryResult.getInstitutionLogins().keySet().iterator();
-    while (keyIterator.hasNext()) {
-      String key = keyIterator.next();
-      Long institutionCount = queryResult.getInstitutionLogins().get(key);
-      String institutionId = idpInstitutions.get(key);
-      result.addInstitutionLoginCount(institutionId, institutionCount);
-      result.setTotalLogins(result.getTotalLogins() + institutionCount);
+    List<Object> queryKey = cacheKey("versstats", startDate, spEntityId);
+    VersStatistic queryResult = queryResultCache.get(queryKey);
+    if (queryResult == null) {
+      queryResult = statisticsRepository.getVersStats(startDate, endDate, spEntityId);
+      queryResult.setTotalUniqueLogins(statisticsRepository.getTotalUniqueLogins(spEntityId, month, year));
+      // the unique logins of a month are only counted once the next month has started
+      queryResultCache.put(queryKey, startDate, endDate.plusMonths(1).minusDays(1), queryResult);
     }
-    
-    // add total unique users on this SP
-    result.setTotalUniqueLogins(statisticsRepository.getTotalUniqueLogins(spEntityId, month, year));
+    VersStatistic result = perInstitution(queryResult, institutionCache.getInstitutionIds());
     return Response.ok(result).build();
   }
   
-  private Map<String, String> getInstitutionIdsFromJanus() {
-    Map<String, String> result = new HashMap<String, String>();
-    List<EntityMetadata> idpList = janusRestClient.getIdpList();
-    for (EntityMetadata current : idpList) {
-      result.put(current.getAppEntityId(), current.getInstutionId());
+  /**
+   * The vers statistics of multiple SPs and months at once. All of them are
+   * read with a single query per table and written as they are read.
+   * 
+   * @param spEntityIds the SPs, all SPs when none are given
+   */
+  @GET
+  @Path("/versstats/batch")
+  public Response getVersStatisticsBatch(@QueryParam("startMonth") Integer startMonth,
+      @QueryParam("startYear") Integer startYear, @QueryParam("endMonth") Integer endMonth,
+      @QueryParam("endYear") Integer endYear, @QueryParam("spEntityId") List<String> spEntityIds) {
+    invariant(startMonth, startYear, endMonth, endYear);
+    final LocalDate firstMonth = new LocalDate(startYear, startMonth, 1);
+    final LocalDate lastMonth = new LocalDate(endYear, endMonth, 1);
+    Assert.isTrue(!lastMonth.isBefore(firstMonth), "the end month may not be before the start month");
+    final List<String> sps = spEntityIds == null ? Collections.<String>emptyList() : spEntityIds;
+    final Map<String, String> idpInstitutions = institutionCache.getInstitutionIds();
+
+    LOG.info("streaming vers statistics from " + firstMonth + " to " + lastMonth + " for " + sps.size() + " sp(s)");
+    return Response.ok(new JsonArrayOutput() {
+      @Override
+      protected void writeElements() {
+        statisticsRepository.streamVersStats(firstMonth, lastMonth, sps, new VersStatisticHandler() {
+          @Override
+          public void handle(VersStatistic versStatistic) {
+            writeElement(perInstitution(versStatistic, idpInstitutions));
+          }
+        });
+      }
+    }).build();
+  }
+
+  /*
+   * The logins per institution instead of per IdP. IdPs without an institution
+   * in Janus are kept under their own entity id, a null key can't be written
+   * as JSON.
+   */
+  private VersStatistic perInstitution(VersStatistic queryResult, Map<String, String> idpInstitutions) {
+    VersStatistic result = new VersStatistic();
+    result.setSpEntityId(queryResult.getSpEntityId());
+    result.setMonth(queryResult.getMonth());
+    result.setYear(queryResult.getYear());
+    for (Map.Entry<String, Long> idpLogins : queryResult.getInstitutionLogins().entrySet()) {
+      Long institutionCount = idpLogins.getValue();
+      String institutionId = idpInstitutions.get(idpLogins.getKey());
+      if (institutionId == null) {
+        institutionId = idpLogins.getKey();
+      }
+      result.addInstitutionLoginCount(institutionId, institutionCount);
+      result.setTotalLogins(result.getTotalLogins() + institutionCount);
     }
+
+    // add total unique users on this SP
+    result.setTotalUniqueLogins(queryResult.getTotalUniqueLogins());
     return result;
   }
 
+  /*
+   * Writes a JSON array of which the elements are written as soon as they are
+   * read, so the response is never held in memory as a whole
+   */
+  private abstract static class JsonArrayOutput implements StreamingOutput {
+    private JsonGenerator generator;
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+      generator = OBJECT_MAPPER.getJsonFactory().createJsonGenerator(output, JsonEncoding.UTF8);
+      generator.writeStartArray();
+      try {
+        writeElements();
+      } catch (WriteException e) {
+        throw (IOException) e.getCause();
+      }
+      generator.writeEndArray();
+      generator.close();
+    }
+
+    /**
+     * Write all elements with {@link #writeElement(Object)}
+     */
+    protected abstract void writeElements();
+
+    protected void writeElement(Object element) {
+      try {
+        OBJECT_MAPPER.writeValue(generator, element);
+      } catch (IOException e) {
+        throw new WriteException(e);
+      }
+    }
+  }
+
+  /*
+   * Carries an IOException of the response through the repository callbacks
+   */
+  private static class WriteException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private WriteException(IOException cause) {
+      super(cause);
+    }
+  }
+
+  /*
+   * The parameters themselves, not joined in a string: no separator or empty
+   * value can make two different queries share a key
+   */
+  static List<Object> cacheKey(Object... parameters) {
+    return Arrays.asList(parameters);
+  }
+
+
   private void invariant(Long startDate, Long endDate) {
     Assert.notNull(startDate, "startDate is a required query parameter");
     Assert.notNull(endDate, "endDate is a required query parameter");
@@ -125,6 +315,13 @@ public class CruncherResource {
     Assert.notNull(idpEntityId, "idpEntityId is a required query parameter");
   }
 
+  private void invariant(Integer startMonth, Integer startYear, Integer endMonth, Integer endYear) {
+    Assert.notNull(startMonth, "startMonth is a required query parameter");
+    Assert.notNull(startYear, "startYear is a required query parameter");
+    Assert.notNull(endMonth, "endMonth is a required query parameter");
+    Assert.notNull(endYear, "endYear is a required query parameter");
+  }
+
   private void invariant(Integer month, Integer year, String spEntityId) {
     Assert.notNull(month, "month is a required query parameter");
     Assert.notNull(year, "year is a required query parameter");
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.resource;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import nl.surfnet.coin.janus.Janus;
+import nl.surfnet.coin.janus.domain.EntityMetadata;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * The institution id of every IdP, as registered in Janus. The map is refreshed
+ * in the background (see aggregationScheduling.xml), requests are served from
+ * the last successfully loaded map. Only the very first request waits for
+ * Janus.
+ * <p>
+ * When Janus is slow or down the refresh fails and the previous map keeps being
+ * served. Once that map is older than the refresh interval, requests trigger
+ * another refresh in the background, still without waiting for it.
+ * </p>
+ */
+@Named
+@ManagedResource(objectName = "org.surfnet.cruncher:name=InstitutionCache")
+public class InstitutionCache {
+  private static final Logger LOG = LoggerFactory.getLogger(InstitutionCache.class);
+
+  @Inject
+  private Janus janusRestClient;
+
+  @Value("${janus.cache.refresh-interval}")
+  private long refreshInterval;
+
+  private final ExecutorService refreshExecutor = Executors.newSingleThreadExecutor();
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+  private final AtomicLong refreshFailures = new AtomicLong();
+
+  private volatile Map<String, String> institutionIds;
+  private volatile long lastRefresh;
+
+  public InstitutionCache() {
+  }
+
+  InstitutionCache(Janus janusRestClient, long refreshInterval) {
+    this.janusRestClient = janusRestClient;
+    this.refreshInterval = refreshInterval;
+  }
+
+  /**
+   * @return the institution id per IdP entity id, possibly stale
+   */
+  public Map<String, String> getInstitutionIds() {
+    Map<String, String> current = institutionIds;
+    if (current == null) {
+      synchronized (this) {
+        if (institutionIds == null) {
+          load();
+        }
+        return institutionIds;
+      }
+    }
+    if (now() - lastRefresh > refreshInterval) {
+      refreshInBackground();
+    }
+    return current;
+  }
+
+  /**
+   * Load the institution ids from Janus, keeping the current ones if that fails.
+   */
+  @ManagedOperation(description = "Reload the institution ids from Janus")
+  public void refresh() {
+    try {
+      load();
+    } catch (RuntimeException e) {
+      refreshFailures.incrementAndGet();
+      LOG.warn("Could not refresh the institution ids from Janus, serving the ones of {}", getLastRefresh(), e);
+    }
+  }
+
+  @ManagedAttribute
+  public Date getLastRefresh() {
+    return lastRefresh == 0L ? null : new Date(lastRefresh);
+  }
+
+  @ManagedAttribute
+  public long getRefreshFailures() {
+    return refreshFailures.get();
+  }
+
+  @ManagedAttribute
+  public int getSize() {
+    Map<String, String> current = institutionIds;
+    return current == null ? 0 : current.size();
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    refreshExecutor.shutdownNow();
+  }
+
+  long now() {
+    return System.currentTimeMillis();
+  }
+
+  private void refreshInBackground() {
+    if (refreshing.compareAndSet(false, true)) {
+      refreshExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            refresh();
+          } finally {
+            refreshing.set(false);
+          }
+        }
+      });
+    }
+  }
+
+  private void load() {
+    long start = now();
+    Map<String, String> result = new HashMap<String, String>();
+    List<EntityMetadata> idpList = janusRestClient.getIdpList();
+    for (EntityMetadata current : idpList) {
+      result.put(current.getAppEntityId(), current.getInstutionId());
+    }
+    institutionIds = Collections.unmodifiableMap(result);
+    lastRefresh = now();
+    LOG.debug("Loaded {} institution ids from Janus in {} ms", result.size(), lastRefresh - start);
+  }
+}
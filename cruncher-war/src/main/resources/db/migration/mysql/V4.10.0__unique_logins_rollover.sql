@@ -0,0 +1,13 @@
+-- the rows of a closed month are read in id order
+ALTER TABLE `user_unique_logins_cache`
+  ADD INDEX `year_month_id` (`year`, `month`, `id`);
+
+-- how far the month rollover got, one row per month that is being moved
+CREATE TABLE `unique_logins_rollover` (
+  `year` int(11) NOT NULL,
+  `month` int(11) NOT NULL,
+  `lastid` bigint(20) NOT NULL,
+  `moved` bigint(20) NOT NULL,
+  `updated` datetime NOT NULL,
+  PRIMARY KEY (`year`, `month`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
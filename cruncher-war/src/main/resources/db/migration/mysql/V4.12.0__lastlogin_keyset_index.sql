@@ -0,0 +1,3 @@
+ALTER TABLE `user_log_logins`
+  DROP INDEX `userid`,
+  ADD INDEX `userid_idp_stamp` (`userid`(255), `idp_id`, `loginstamp`, `id`);
@@ -0,0 +1,13 @@
+-- how far every shard of the login-log is aggregated and which node holds it,
+-- the rows are created by the first node that starts aggregating
+CREATE TABLE `aggregation_shard` (
+  `shard` int(11) NOT NULL,
+  `shards` int(11) NOT NULL,
+  `checkpoint` bigint(20) NOT NULL,
+  `owner` varchar(255) DEFAULT NULL,
+  `leaseuntil` datetime DEFAULT NULL,
+  PRIMARY KEY (`shard`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+
+-- replaced by the leases of the shards
+ALTER TABLE `aggregate_meta_data` DROP COLUMN `active`;
@@ -0,0 +1,14 @@
+-- counts of the logins pushed by EngineBlock per minute, only the minutes after
+-- the one of the last aggregated login are counted, older rows are removed
+CREATE TABLE `live_log_logins` (
+  `loginminute` datetime NOT NULL,
+  `idp_id` int(11) NOT NULL,
+  `sp_id` int(11) NOT NULL,
+  `idpentityname` varchar(1000) DEFAULT NULL,
+  `spentityname` varchar(1000) DEFAULT NULL,
+  `entrycount` int(11) NOT NULL,
+  PRIMARY KEY (`loginminute`, `idp_id`, `sp_id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+
+-- the time of the login at the aggregation point
+ALTER TABLE `aggregate_meta_data` ADD COLUMN `aggregatestamp` datetime DEFAULT NULL;
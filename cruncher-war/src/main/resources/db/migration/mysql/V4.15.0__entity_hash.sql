@@ -0,0 +1,80 @@
+-- entities are looked up and kept unique by the SHA-1 of their entityId, the
+-- prefix index on the entityId could not keep concurrent aggregations from
+-- registering the same entity twice
+ALTER TABLE `entity` ADD COLUMN `entityhash` binary(20) DEFAULT NULL;
+UPDATE `entity` SET `entityhash` = UNHEX(SHA1(`entityid`));
+
+-- entities registered more than once are merged into their first registration
+CREATE TABLE `entity_duplicate` (
+  `id` int(11) NOT NULL,
+  `keeper` int(11) NOT NULL,
+  PRIMARY KEY (`id`)
+) ENGINE=InnoDB;
+INSERT INTO `entity_duplicate` (`id`, `keeper`)
+  SELECT e.`id`, k.`keeper` FROM `entity` e
+  JOIN (SELECT `entityhash`, MIN(`id`) AS `keeper` FROM `entity` GROUP BY `entityhash` HAVING COUNT(*) > 1) k
+    ON k.`entityhash` = e.`entityhash`
+  WHERE e.`id` <> k.`keeper`;
+
+-- tables keyed by a hash of the entityIds
+UPDATE `aggregated_log_logins` t JOIN `entity_duplicate` d ON d.`id` = t.`sp_id` SET t.`sp_id` = d.`keeper`;
+UPDATE `aggregated_log_logins` t JOIN `entity_duplicate` d ON d.`id` = t.`idp_id` SET t.`idp_id` = d.`keeper`;
+-- user_log_logins.loginstamp is ON UPDATE CURRENT_TIMESTAMP, it is kept explicitly (not caught by the HSQLDB tests)
+UPDATE `user_log_logins` t JOIN `entity_duplicate` d ON d.`id` = t.`sp_id`
+  SET t.`sp_id` = d.`keeper`, t.`loginstamp` = t.`loginstamp`;
+UPDATE `user_log_logins` t JOIN `entity_duplicate` d ON d.`id` = t.`idp_id`
+  SET t.`idp_id` = d.`keeper`, t.`loginstamp` = t.`loginstamp`;
+UPDATE `user_unique_logins_cache` t JOIN `entity_duplicate` d ON d.`id` = t.`sp_id` SET t.`sp_id` = d.`keeper`;
+UPDATE `user_unique_logins_cache` t JOIN `entity_duplicate` d ON d.`id` = t.`idp_id` SET t.`idp_id` = d.`keeper`;
+
+-- tables keyed by the entity keys, the counts of a duplicate are added to those of the first registration
+INSERT INTO `aggregated_log_logins_rollup` (`timespan`, `entryday`, `sp_id`, `idp_id`, `spentityname`, `idpentityname`, `entrycount`)
+  SELECT r.`timespan`, r.`entryday`, COALESCE(sp.`keeper`, r.`sp_id`), COALESCE(idp.`keeper`, r.`idp_id`),
+    r.`spentityname`, r.`idpentityname`, r.`entrycount`
+  FROM `aggregated_log_logins_rollup` r
+  LEFT JOIN `entity_duplicate` sp ON sp.`id` = r.`sp_id`
+  LEFT JOIN `entity_duplicate` idp ON idp.`id` = r.`idp_id`
+  WHERE sp.`id` IS NOT NULL OR idp.`id` IS NOT NULL
+  ON DUPLICATE KEY UPDATE `entrycount` = `aggregated_log_logins_rollup`.`entrycount` + VALUES(`entrycount`);
+DELETE r FROM `aggregated_log_logins_rollup` r JOIN `entity_duplicate` d ON d.`id` IN (r.`sp_id`, r.`idp_id`);
+
+INSERT INTO `live_log_logins` (`loginminute`, `idp_id`, `sp_id`, `idpentityname`, `spentityname`, `entrycount`)
+  SELECT l.`loginminute`, COALESCE(idp.`keeper`, l.`idp_id`), COALESCE(sp.`keeper`, l.`sp_id`),
+    l.`idpentityname`, l.`spentityname`, l.`entrycount`
+  FROM `live_log_logins` l
+  LEFT JOIN `entity_duplicate` sp ON sp.`id` = l.`sp_id`
+  LEFT JOIN `entity_duplicate` idp ON idp.`id` = l.`idp_id`
+  WHERE sp.`id` IS NOT NULL OR idp.`id` IS NOT NULL
+  ON DUPLICATE KEY UPDATE `entrycount` = `live_log_logins`.`entrycount` + VALUES(`entrycount`);
+DELETE l FROM `live_log_logins` l JOIN `entity_duplicate` d ON d.`id` IN (l.`sp_id`, l.`idp_id`);
+
+-- user_unique_logins has no unique key, its rows are summed per (sp, idp, month)
+CREATE TABLE `user_unique_logins_merged` ENGINE=InnoDB AS
+  SELECT u.`timespan`, u.`year`, u.`month`, COALESCE(sp.`keeper`, u.`sp_id`) AS `sp_id`,
+    COALESCE(idp.`keeper`, u.`idp_id`) AS `idp_id`, SUM(u.`entrycount`) AS `entrycount`
+  FROM `user_unique_logins` u
+  LEFT JOIN `entity_duplicate` sp ON sp.`id` = u.`sp_id`
+  LEFT JOIN `entity_duplicate` idp ON idp.`id` = u.`idp_id`
+  GROUP BY u.`timespan`, u.`year`, u.`month`, COALESCE(sp.`keeper`, u.`sp_id`), COALESCE(idp.`keeper`, u.`idp_id`)
+  HAVING MAX(sp.`id` IS NOT NULL OR idp.`id` IS NOT NULL) = 1;
+DELETE u FROM `user_unique_logins` u
+  LEFT JOIN `entity_duplicate` sp ON sp.`id` = u.`sp_id`
+  LEFT JOIN `entity_duplicate` idp ON idp.`id` = u.`idp_id`
+  JOIN `user_unique_logins_merged` m ON m.`timespan` = u.`timespan` AND m.`year` <=> u.`year` AND m.`month` <=> u.`month`
+    AND m.`sp_id` = COALESCE(sp.`keeper`, u.`sp_id`) AND m.`idp_id` = COALESCE(idp.`keeper`, u.`idp_id`);
+INSERT INTO `user_unique_logins` (`sp_id`, `idp_id`, `entrycount`, `timespan`, `month`, `year`)
+  SELECT `sp_id`, `idp_id`, `entrycount`, `timespan`, `month`, `year` FROM `user_unique_logins_merged`;
+DROP TABLE `user_unique_logins_merged`;
+
+-- sketches can not be merged in SQL, the sketch of the first registration is kept
+UPDATE IGNORE `user_unique_sketches` s JOIN `entity_duplicate` d ON d.`id` = s.`sp_id` SET s.`sp_id` = d.`keeper`;
+UPDATE IGNORE `user_unique_sketches` s JOIN `entity_duplicate` d ON d.`id` = s.`idp_id` SET s.`idp_id` = d.`keeper`;
+DELETE s FROM `user_unique_sketches` s JOIN `entity_duplicate` d ON d.`id` IN (s.`sp_id`, s.`idp_id`);
+
+DELETE e FROM `entity` e JOIN `entity_duplicate` d ON d.`id` = e.`id`;
+DROP TABLE `entity_duplicate`;
+
+ALTER TABLE `entity`
+  DROP INDEX `entityid`,
+  MODIFY `entityhash` binary(20) NOT NULL,
+  ADD UNIQUE KEY `entityhash` (`entityhash`);
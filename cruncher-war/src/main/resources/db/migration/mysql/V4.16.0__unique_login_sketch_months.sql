@@ -0,0 +1,12 @@
+-- the months whose unique logins are only kept in sketches, the sketches of
+-- other months started after the month did and the exact counts are used
+CREATE TABLE `unique_logins_sketch_month` (
+  `year` int(11) NOT NULL,
+  `month` int(11) NOT NULL,
+  PRIMARY KEY (`year`, `month`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+
+INSERT INTO `unique_logins_sketch_month` (`year`, `month`)
+  SELECT DISTINCT s.`year`, s.`month` FROM `user_unique_sketches` s
+  WHERE NOT EXISTS (SELECT c.`id` FROM `user_unique_logins_cache` c WHERE c.`year` = s.`year` AND c.`month` = s.`month`)
+    AND NOT EXISTS (SELECT u.`sp_id` FROM `user_unique_logins` u WHERE u.`year` = s.`year` AND u.`month` = s.`month`);
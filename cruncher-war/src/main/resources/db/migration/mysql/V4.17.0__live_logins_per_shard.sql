@@ -0,0 +1,11 @@
+-- the time of the login at the checkpoint of every shard, the live logins of a
+-- shard are counted from the minute after it on. It is only known for the shards
+-- at the aggregation point, the others get it with their next batch
+ALTER TABLE `aggregation_shard` ADD COLUMN `checkpointstamp` datetime DEFAULT NULL;
+UPDATE `aggregation_shard` s JOIN `aggregate_meta_data` m ON m.`aggregatepoint` = s.`checkpoint`
+  SET s.`checkpointstamp` = m.`aggregatestamp`;
+
+-- the shard of the SP of the live logins, the shard of the existing rows is not
+-- known so they are removed, the aggregator counts those logins
+DELETE FROM `live_log_logins`;
+ALTER TABLE `live_log_logins` ADD COLUMN `shard` int(11) NOT NULL DEFAULT 0;
@@ -0,0 +1,16 @@
+ALTER TABLE `aggregated_log_logins` ADD COLUMN `datespidphash_bin` binary(20) DEFAULT NULL;
+UPDATE `aggregated_log_logins` SET `datespidphash_bin` = UNHEX(`datespidphash`);
+ALTER TABLE `aggregated_log_logins`
+  DROP INDEX `COMPOUND_AGGREGATED_DATA`,
+  DROP COLUMN `datespidphash`,
+  CHANGE `datespidphash_bin` `datespidphash` binary(20) NOT NULL,
+  ADD UNIQUE KEY `COMPOUND_AGGREGATED_DATA` (`datespidphash`);
+
+ALTER TABLE `user_log_logins` ADD COLUMN `usersphash_bin` binary(20) DEFAULT NULL;
+-- loginstamp is ON UPDATE CURRENT_TIMESTAMP, it must be kept explicitly or every last login becomes now
+UPDATE `user_log_logins` SET `usersphash_bin` = UNHEX(`usersphash`), `loginstamp` = `loginstamp`;
+ALTER TABLE `user_log_logins`
+  DROP INDEX `COMPOUND_USER_DATA`,
+  DROP COLUMN `usersphash`,
+  CHANGE `usersphash_bin` `usersphash` binary(20) NOT NULL,
+  ADD UNIQUE KEY `COMPOUND_USER_DATA` (`usersphash`);
@@ -0,0 +1,68 @@
+CREATE TABLE `entity` (
+  `id` int(11) NOT NULL AUTO_INCREMENT,
+  `entityid` varchar(1000) CHARACTER SET utf8 COLLATE utf8_bin NOT NULL,
+  PRIMARY KEY (`id`),
+  KEY `entityid` (`entityid`(255))
+) ENGINE=InnoDB AUTO_INCREMENT=1 DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+
+INSERT INTO `entity` (`entityid`)
+  SELECT `spentityid` COLLATE utf8_bin FROM `aggregated_log_logins`
+  UNION SELECT `idpentityid` COLLATE utf8_bin FROM `aggregated_log_logins`
+  UNION SELECT `spentityid` COLLATE utf8_bin FROM `user_log_logins`
+  UNION SELECT `idpentityid` COLLATE utf8_bin FROM `user_log_logins`
+  UNION SELECT `spentityid` COLLATE utf8_bin FROM `user_unique_logins`
+  UNION SELECT `idpentityid` COLLATE utf8_bin FROM `user_unique_logins`
+  UNION SELECT `spentityid` COLLATE utf8_bin FROM `user_unique_logins_cache`
+  UNION SELECT `idpentityid` COLLATE utf8_bin FROM `user_unique_logins_cache`;
+
+ALTER TABLE `aggregated_log_logins` ADD COLUMN `sp_id` int(11) DEFAULT NULL, ADD COLUMN `idp_id` int(11) DEFAULT NULL;
+UPDATE `aggregated_log_logins` t
+  JOIN `entity` sp ON sp.`entityid` = t.`spentityid` COLLATE utf8_bin
+  JOIN `entity` idp ON idp.`entityid` = t.`idpentityid` COLLATE utf8_bin
+  SET t.`sp_id` = sp.`id`, t.`idp_id` = idp.`id`;
+ALTER TABLE `aggregated_log_logins`
+  DROP INDEX `spentityid`,
+  DROP INDEX `idpentityid`,
+  DROP COLUMN `spentityid`,
+  DROP COLUMN `idpentityid`,
+  MODIFY `sp_id` int(11) NOT NULL,
+  MODIFY `idp_id` int(11) NOT NULL,
+  ADD KEY `sp_id` (`sp_id`),
+  ADD KEY `idp_id` (`idp_id`);
+
+ALTER TABLE `user_log_logins` ADD COLUMN `sp_id` int(11) DEFAULT NULL, ADD COLUMN `idp_id` int(11) DEFAULT NULL;
+-- loginstamp is ON UPDATE CURRENT_TIMESTAMP (V3.5.0), it is kept explicitly or every last login becomes now.
+-- The HSQLDB schema of the tests has no ON UPDATE clause, so the tests can't catch this
+UPDATE `user_log_logins` t
+  JOIN `entity` sp ON sp.`entityid` = t.`spentityid` COLLATE utf8_bin
+  JOIN `entity` idp ON idp.`entityid` = t.`idpentityid` COLLATE utf8_bin
+  SET t.`sp_id` = sp.`id`, t.`idp_id` = idp.`id`, t.`loginstamp` = t.`loginstamp`;
+ALTER TABLE `user_log_logins`
+  DROP INDEX `userid`,
+  DROP COLUMN `spentityid`,
+  DROP COLUMN `idpentityid`,
+  MODIFY `sp_id` int(11) NOT NULL,
+  MODIFY `idp_id` int(11) NOT NULL,
+  ADD INDEX `userid` (`userid`(255), `idp_id`);
+
+ALTER TABLE `user_unique_logins` ADD COLUMN `sp_id` int(11) DEFAULT NULL, ADD COLUMN `idp_id` int(11) DEFAULT NULL;
+UPDATE `user_unique_logins` t
+  JOIN `entity` sp ON sp.`entityid` = t.`spentityid` COLLATE utf8_bin
+  JOIN `entity` idp ON idp.`entityid` = t.`idpentityid` COLLATE utf8_bin
+  SET t.`sp_id` = sp.`id`, t.`idp_id` = idp.`id`;
+ALTER TABLE `user_unique_logins`
+  DROP COLUMN `spentityid`,
+  DROP COLUMN `idpentityid`,
+  MODIFY `sp_id` int(11) NOT NULL,
+  MODIFY `idp_id` int(11) NOT NULL;
+
+ALTER TABLE `user_unique_logins_cache` ADD COLUMN `sp_id` int(11) DEFAULT NULL, ADD COLUMN `idp_id` int(11) DEFAULT NULL;
+UPDATE `user_unique_logins_cache` t
+  JOIN `entity` sp ON sp.`entityid` = t.`spentityid` COLLATE utf8_bin
+  JOIN `entity` idp ON idp.`entityid` = t.`idpentityid` COLLATE utf8_bin
+  SET t.`sp_id` = sp.`id`, t.`idp_id` = idp.`id`;
+ALTER TABLE `user_unique_logins_cache`
+  DROP COLUMN `spentityid`,
+  DROP COLUMN `idpentityid`,
+  MODIFY `sp_id` int(11) NOT NULL,
+  MODIFY `idp_id` int(11) NOT NULL;
@@ -0,0 +1,27 @@
+CREATE TABLE `aggregated_log_logins_rollup` (
+  `id` int(11) NOT NULL AUTO_INCREMENT,
+  `timespan` int(11) NOT NULL,
+  `entryday` date NOT NULL,
+  `sp_id` int(11) NOT NULL,
+  `idp_id` int(11) NOT NULL,
+  `spentityname` varchar(1000) DEFAULT NULL,
+  `idpentityname` varchar(1000) DEFAULT NULL,
+  `entrycount` int(11) NOT NULL,
+  PRIMARY KEY (`id`),
+  UNIQUE KEY `COMPOUND_ROLLUP_DATA` (`timespan`, `entryday`, `sp_id`, `idp_id`),
+  KEY `sp_id` (`sp_id`),
+  KEY `idp_id` (`idp_id`)
+) ENGINE=InnoDB AUTO_INCREMENT=1 DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+
+-- weeks start on monday
+INSERT INTO `aggregated_log_logins_rollup` (`timespan`, `entryday`, `sp_id`, `idp_id`, `spentityname`, `idpentityname`, `entrycount`)
+  SELECT 52, DATE_SUB(`entryday`, INTERVAL WEEKDAY(`entryday`) DAY) AS weekstart, `sp_id`, `idp_id`,
+    MAX(`spentityname`), MAX(`idpentityname`), SUM(`entrycount`)
+  FROM `aggregated_log_logins`
+  GROUP BY weekstart, `sp_id`, `idp_id`;
+
+INSERT INTO `aggregated_log_logins_rollup` (`timespan`, `entryday`, `sp_id`, `idp_id`, `spentityname`, `idpentityname`, `entrycount`)
+  SELECT 12, DATE_SUB(`entryday`, INTERVAL DAYOFMONTH(`entryday`) - 1 DAY) AS monthstart, `sp_id`, `idp_id`,
+    MAX(`spentityname`), MAX(`idpentityname`), SUM(`entrycount`)
+  FROM `aggregated_log_logins`
+  GROUP BY monthstart, `sp_id`, `idp_id`;
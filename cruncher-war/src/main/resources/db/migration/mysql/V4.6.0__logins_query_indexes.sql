@@ -0,0 +1,11 @@
+ALTER TABLE `aggregated_log_logins`
+  DROP INDEX `sp_id`,
+  DROP INDEX `idp_id`,
+  ADD INDEX `idp_sp_day` (`idp_id`, `sp_id`, `entryday`),
+  ADD INDEX `sp_idp_day` (`sp_id`, `idp_id`, `entryday`);
+
+ALTER TABLE `aggregated_log_logins_rollup`
+  DROP INDEX `sp_id`,
+  DROP INDEX `idp_id`,
+  ADD INDEX `timespan_idp_sp_day` (`timespan`, `idp_id`, `sp_id`, `entryday`),
+  ADD INDEX `timespan_sp_idp_day` (`timespan`, `sp_id`, `idp_id`, `entryday`);
@@ -0,0 +1,2 @@
+ALTER TABLE `user_unique_logins`
+  ADD INDEX `timespan_year_month_sp` (`timespan`, `year`, `month`, `sp_id`);
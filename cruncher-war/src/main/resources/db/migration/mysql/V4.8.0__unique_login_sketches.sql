@@ -0,0 +1,11 @@
+-- HyperLogLog sketches of the users per (sp, idp, month), see HyperLogLog.java
+CREATE TABLE `user_unique_sketches` (
+  `id` int(11) NOT NULL AUTO_INCREMENT,
+  `year` int(11) NOT NULL,
+  `month` int(11) NOT NULL,
+  `sp_id` int(11) NOT NULL,
+  `idp_id` int(11) NOT NULL,
+  `sketch` blob NOT NULL,
+  PRIMARY KEY (`id`),
+  UNIQUE KEY `year_month_sp_idp` (`year`, `month`, `sp_id`, `idp_id`)
+) ENGINE=InnoDB AUTO_INCREMENT=1 DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
@@ -0,0 +1,23 @@
+-- every (user, sp, idp, month) once, keyed by the SHA-1 of 'yyyy-MM!user!sp!idp'
+CREATE TABLE `user_unique_logins_cache_new` (
+  `id` int(11) NOT NULL AUTO_INCREMENT,
+  `uniquehash` binary(20) NOT NULL,
+  `sp_id` int(11) NOT NULL,
+  `idp_id` int(11) NOT NULL,
+  `timespan` int(11) NOT NULL,
+  `month` int(11) DEFAULT NULL,
+  `year` int(11) DEFAULT NULL,
+  PRIMARY KEY (`id`),
+  UNIQUE KEY `uniquehash` (`uniquehash`)
+) ENGINE=InnoDB AUTO_INCREMENT=1 DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+
+-- duplicates of the former table are dropped by the unique key
+INSERT IGNORE INTO `user_unique_logins_cache_new` (`uniquehash`, `sp_id`, `idp_id`, `timespan`, `month`, `year`)
+  SELECT UNHEX(SHA1(CONCAT(LPAD(c.`year`, 4, '0'), '-', LPAD(c.`month`, 2, '0'), '!', c.`userid`, '!',
+      sp.`entityid`, '!', idp.`entityid`))), c.`sp_id`, c.`idp_id`, c.`timespan`, c.`month`, c.`year`
+  FROM `user_unique_logins_cache` c
+  JOIN `entity` sp ON sp.`id` = c.`sp_id`
+  JOIN `entity` idp ON idp.`id` = c.`idp_id`;
+
+DROP TABLE `user_unique_logins_cache`;
+RENAME TABLE `user_unique_logins_cache_new` TO `user_unique_logins_cache`;
@@ -0,0 +1,436 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.message;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.sql.DataSource;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializationConfig;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.surfnet.cruncher.repository.StatisticsRepository;
+import org.surfnet.cruncher.unittest.config.SpringConfigurationForTest;
+
+/**
+ * Load harness of the aggregation. It fills the login-log with a synthetic
+ * EngineBlock workload, runs the aggregator until it has caught up and writes
+ * a JSON report (throughput, statements, batch latencies and table sizes) that
+ * can be compared between commits. It only runs when asked for:
+ *
+ * <pre>
+ * mvn test -Dtest=AggregationPerformanceTest -Dloadtest=true -Dloadtest.days=90 -Daggregation.batch-size=5000
+ * </pre>
+ *
+ * The workload is set with the loadtest.* system properties below, the
+ * aggregation with the usual properties. The logins go to a separate in-memory
+ * database (loadtest.jdbc.url), so other tests in the same JVM are not
+ * affected; a local database with the EngineBlock and cruncher tables can be
+ * used as well. Every run() handles a single batch, so its duration is the
+ * batch latency.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = {SpringConfigurationForTest.class, AggregationPerformanceTest.StatementCounting.class})
+public class AggregationPerformanceTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AggregationPerformanceTest.class);
+  private static final long DAY = 24L * 60L * 60L * 1000L;
+  private static final String[] TABLES = {"log_logins", "entity", "aggregated_log_logins", "aggregated_log_logins_rollup",
+      "user_log_logins", "user_unique_logins_cache", "user_unique_logins", "user_unique_sketches"};
+
+  private static final boolean ENABLED = Boolean.getBoolean("loadtest");
+  private static final String PREVIOUS_URL = System.getProperty("eb.jdbc.url");
+
+  static {
+    /* the datasource of the test configuration reads the url from the environment */
+    if (ENABLED) {
+      System.setProperty("eb.jdbc.url", System.getProperty("loadtest.jdbc.url", "jdbc:hsqldb:mem:loadtest"));
+    }
+  }
+
+  @Inject
+  private Aggregator aggregator;
+
+  @Inject
+  private StatisticsRepository statisticsRepository;
+
+  @Inject
+  private JdbcTemplate ebJdbcTemplate;
+
+  @Inject
+  private JdbcTemplate cruncherJdbcTemplate;
+
+  @Inject
+  private Environment env;
+
+  @AfterClass
+  public static void restoreUrl() {
+    if (ENABLED) {
+      if (PREVIOUS_URL == null) {
+        System.clearProperty("eb.jdbc.url");
+      } else {
+        System.setProperty("eb.jdbc.url", PREVIOUS_URL);
+      }
+    }
+  }
+
+  @Test
+  public void aggregateSyntheticLoginLog() throws Exception {
+    Assume.assumeTrue(ENABLED);
+    SyntheticLoginLog workload = new SyntheticLoginLog(Integer.getInteger("loadtest.idps", 50),
+        Integer.getInteger("loadtest.sps", 300), Integer.getInteger("loadtest.users", 20000),
+        Integer.getInteger("loadtest.users-per-day", 1000), Double.parseDouble(System.getProperty("loadtest.logins-per-user", "2.0")),
+        Double.parseDouble(System.getProperty("loadtest.skew", "1.1")), Integer.getInteger("loadtest.days", 60),
+        Long.getLong("loadtest.seed", 42L));
+
+    long generationStart = System.currentTimeMillis();
+    long logins = workload.insert(ebJdbcTemplate, System.currentTimeMillis() - workload.days * DAY);
+    long generationTime = System.currentTimeMillis() - generationStart;
+    LOG.info("Generated {} logins in {} ms", logins, generationTime);
+
+    /* one batch per run, so every run is a latency sample */
+    aggregator.setCatchUpThreshold(Long.MAX_VALUE);
+    long toAggregate = ebJdbcTemplate.queryForLong("select count(*) from log_logins where id > ?",
+        statisticsRepository.getAggregatePoint());
+    long countedBefore = aggregatedCount();
+    StatementCounting.reset();
+    List<Long> latencies = new ArrayList<Long>();
+    long aggregationStart = System.currentTimeMillis();
+    long lag = statisticsRepository.getAggregationLag();
+    while (lag > 0) {
+      long runStart = System.nanoTime();
+      aggregator.run();
+      latencies.add((System.nanoTime() - runStart) / 1000000L);
+      long remaining = statisticsRepository.getAggregationLag();
+      if (remaining >= lag) {
+        throw new IllegalStateException("The aggregation does not progress, " + remaining + " logins left");
+      }
+      lag = remaining;
+    }
+    long aggregationTime = Math.max(1L, System.currentTimeMillis() - aggregationStart);
+    Map<String, Long> statements = StatementCounting.snapshot();
+
+    Map<String, Object> report = new LinkedHashMap<String, Object>();
+    report.put("timestamp", new Date());
+    report.put("commit", System.getProperty("loadtest.commit"));
+    report.put("java", System.getProperty("java.version"));
+    report.put("database", env.getProperty("eb.jdbc.url"));
+    report.put("workload", workload.describe(logins));
+    report.put("settings", settings());
+    Map<String, Object> aggregation = new LinkedHashMap<String, Object>();
+    aggregation.put("logins", toAggregate);
+    aggregation.put("runs", latencies.size());
+    aggregation.put("millis", aggregationTime);
+    aggregation.put("loginsPerSecond", toAggregate * 1000L / aggregationTime);
+    aggregation.put("generationMillis", generationTime);
+    aggregation.put("batchLatencyMillis", percentiles(latencies));
+    aggregation.put("statements", statements);
+    aggregation.put("statementsPerLogin", (double) statements.get("executions") / Math.max(1L, toAggregate));
+    report.put("aggregation", aggregation);
+    report.put("tables", tableSizes());
+
+    File file = new File(System.getProperty("loadtest.report", "target/loadtest/aggregation-report.json"));
+    file.getAbsoluteFile().getParentFile().mkdirs();
+    ObjectMapper mapper = new ObjectMapper();
+    mapper.configure(SerializationConfig.Feature.INDENT_OUTPUT, true);
+    mapper.configure(SerializationConfig.Feature.WRITE_DATES_AS_TIMESTAMPS, false);
+    mapper.writeValue(file, report);
+    LOG.info("Aggregated {} logins in {} ms, report in {}", new Object[] {toAggregate, aggregationTime, file.getAbsolutePath()});
+
+    assertEquals("every login is counted once", toAggregate, aggregatedCount() - countedBefore);
+  }
+
+  private long aggregatedCount() {
+    return cruncherJdbcTemplate.queryForLong("select coalesce(sum(entrycount), 0) from aggregated_log_logins");
+  }
+
+  private Map<String, Object> settings() {
+    Map<String, Object> settings = new LinkedHashMap<String, Object>();
+    for (String key : new String[] {"aggregation.batch-size", "aggregation.fetch-size", "aggregation.key-cache.size",
+        "aggregation.pipeline.enabled", "aggregation.shards", "aggregation.workers", "unique-logins.estimated"}) {
+      settings.put(key, env.getProperty(key));
+    }
+    return settings;
+  }
+
+  private Map<String, Long> tableSizes() {
+    Map<String, Long> sizes = new LinkedHashMap<String, Long>();
+    for (String table : TABLES) {
+      sizes.put(table, cruncherJdbcTemplate.queryForLong("select count(*) from " + table));
+    }
+    return sizes;
+  }
+
+  /*
+   * Nearest-rank percentiles
+   */
+  private static Map<String, Long> percentiles(List<Long> samples) {
+    List<Long> sorted = new ArrayList<Long>(samples);
+    Collections.sort(sorted);
+    Map<String, Long> result = new LinkedHashMap<String, Long>();
+    for (int percentile : new int[] {50, 90, 99}) {
+      int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+      result.put("p" + percentile, sorted.isEmpty() ? 0L : sorted.get(Math.max(0, rank - 1)));
+    }
+    result.put("max", sorted.isEmpty() ? 0L : sorted.get(sorted.size() - 1));
+    return result;
+  }
+
+  /**
+   * A login-log like EngineBlock writes it. Every user belongs to one IdP, and
+   * users, IdPs and SPs are picked from Zipf distributions, so a few of them
+   * have most of the logins. Every day a number of users log in, each a couple
+   * of times, at random times in the day; the logins are written in order of
+   * time.
+   */
+  static class SyntheticLoginLog {
+    private final int idps;
+    private final int sps;
+    private final int users;
+    private final int usersPerDay;
+    private final double loginsPerUser;
+    private final double skew;
+    private final int days;
+    private final long seed;
+
+    SyntheticLoginLog(int idps, int sps, int users, int usersPerDay, double loginsPerUser, double skew, int days, long seed) {
+      this.idps = idps;
+      this.sps = sps;
+      this.users = users;
+      this.usersPerDay = usersPerDay;
+      this.loginsPerUser = loginsPerUser;
+      this.skew = skew;
+      this.days = days;
+      this.seed = seed;
+    }
+
+    /**
+     * @return the nr of logins inserted
+     */
+    long insert(JdbcTemplate ebJdbcTemplate, long start) {
+      Random random = new Random(seed);
+      Zipf idpPopularity = new Zipf(idps, skew);
+      Zipf spPopularity = new Zipf(sps, skew);
+      Zipf userActivity = new Zipf(users, skew);
+      int[] idpOfUser = new int[users];
+      for (int i = 0; i < users; i++) {
+        idpOfUser[i] = idpPopularity.next(random);
+      }
+      long inserted = 0;
+      long firstDay = start - start % DAY;
+      for (int day = 0; day < days; day++) {
+        List<Object[]> logins = new ArrayList<Object[]>();
+        for (int i = 0; i < usersPerDay; i++) {
+          int user = userActivity.next(random);
+          /* at least one login, on average loginsPerUser */
+          int count = 1 + (int) (-Math.log(1 - random.nextDouble()) * (loginsPerUser - 1));
+          for (int j = 0; j < count; j++) {
+            int idp = idpOfUser[user];
+            int sp = spPopularity.next(random);
+            logins.add(new Object[] {new Timestamp(firstDay + day * DAY + (long) (random.nextDouble() * DAY)),
+                "urn:collab:person:idp" + idp + ".example.org:user" + user,
+                "https://sp" + sp + ".example.org/metadata", "https://idp" + idp + ".example.org/metadata",
+                "SP " + sp, "IdP " + idp});
+          }
+        }
+        Collections.sort(logins, new java.util.Comparator<Object[]>() {
+          @Override
+          public int compare(Object[] l1, Object[] l2) {
+            return ((Timestamp) l1[0]).compareTo((Timestamp) l2[0]);
+          }
+        });
+        for (int from = 0; from < logins.size(); from += 1000) {
+          ebJdbcTemplate.batchUpdate("insert into log_logins (loginstamp, userid, spentityid, idpentityid, spentityname, " +
+              "idpentityname) values (?, ?, ?, ?, ?, ?)", logins.subList(from, Math.min(logins.size(), from + 1000)));
+        }
+        inserted += logins.size();
+      }
+      return inserted;
+    }
+
+    Map<String, Object> describe(long logins) {
+      Map<String, Object> description = new LinkedHashMap<String, Object>();
+      description.put("idps", idps);
+      description.put("sps", sps);
+      description.put("users", users);
+      description.put("usersPerDay", usersPerDay);
+      description.put("loginsPerUser", loginsPerUser);
+      description.put("skew", skew);
+      description.put("days", days);
+      description.put("seed", seed);
+      description.put("logins", logins);
+      return description;
+    }
+  }
+
+  /*
+   * Draws ranks 0 (most frequent) to n - 1 with a probability proportional to
+   * 1 / (rank + 1)^skew
+   */
+  static class Zipf {
+    private final double[] cumulative;
+
+    Zipf(int n, double skew) {
+      cumulative = new double[Math.max(1, n)];
+      double sum = 0;
+      for (int i = 0; i < cumulative.length; i++) {
+        sum += 1 / Math.pow(i + 1, skew);
+        cumulative[i] = sum;
+      }
+      for (int i = 0; i < cumulative.length; i++) {
+        cumulative[i] /= sum;
+      }
+    }
+
+    int next(Random random) {
+      double p = random.nextDouble();
+      int low = 0;
+      int high = cumulative.length - 1;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (cumulative[mid] < p) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+  }
+
+  /**
+   * Counts the statements executed on the datasource, by kind. Wraps the
+   * datasource bean, so the templates and the transaction manager all use the
+   * counting one. Not a @Configuration, so the component scan of the other
+   * tests does not pick it up.
+   */
+  public static class StatementCounting {
+    private static final Map<String, AtomicLong> COUNTS = new LinkedHashMap<String, AtomicLong>();
+
+    static {
+      for (String kind : new String[] {"executions", "select", "insert", "update", "delete", "other", "batchedRows"}) {
+        COUNTS.put(kind, new AtomicLong());
+      }
+    }
+
+    static void reset() {
+      for (AtomicLong count : COUNTS.values()) {
+        count.set(0L);
+      }
+    }
+
+    static Map<String, Long> snapshot() {
+      Map<String, Long> result = new LinkedHashMap<String, Long>();
+      for (Map.Entry<String, AtomicLong> count : COUNTS.entrySet()) {
+        result.put(count.getKey(), count.getValue().get());
+      }
+      return result;
+    }
+
+    @Bean
+    public static BeanPostProcessor countingDataSource() {
+      return new BeanPostProcessor() {
+        @Override
+        public Object postProcessBeforeInitialization(Object bean, String beanName) {
+          return bean;
+        }
+
+        @Override
+        public Object postProcessAfterInitialization(Object bean, String beanName) {
+          if (bean instanceof DataSource) {
+            return proxy(DataSource.class, bean, null);
+          }
+          return bean;
+        }
+      };
+    }
+
+    private static <T> T proxy(final Class<T> type, final Object target, final String sql) {
+      return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+          String name = method.getName();
+          if (name.equals("addBatch")) {
+            COUNTS.get("batchedRows").incrementAndGet();
+          } else if (name.startsWith("execute")) {
+            COUNTS.get("executions").incrementAndGet();
+            String statement = sql != null ? sql : args != null && args.length > 0 ? String.valueOf(args[0]) : "";
+            COUNTS.get(kind(statement)).incrementAndGet();
+          }
+          Object result;
+          try {
+            result = method.invoke(target, args);
+          } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+          }
+          if (result instanceof Connection && name.equals("getConnection")) {
+            return proxy(Connection.class, result, null);
+          }
+          if (result instanceof Statement && type == Connection.class) {
+            String prepared = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+            return proxy(returnedInterface(method), result, prepared);
+          }
+          return result;
+        }
+      }));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<Statement> returnedInterface(Method method) {
+      return (Class<Statement>) method.getReturnType();
+    }
+
+    private static String kind(String sql) {
+      String statement = sql.trim().toLowerCase();
+      for (String kind : new String[] {"select", "insert", "update", "delete"}) {
+        if (statement.startsWith(kind)) {
+          return kind;
+        }
+      }
+      return "other";
+    }
+  }
+}
@@ -21,6 +21,9 @@ import static java.util.Calendar.*;
 import static java.util.Calendar.MONDAY;
 import static java.util.Calendar.YEAR;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.surfnet.cruncher.message.Aggregator.aggregationRecordHash;
 
 import java.sql.ResultSet;
@@ -32,21 +35,30 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 
+import org.joda.time.LocalDate;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.transaction.TransactionConfiguration;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.transaction.annotation.Transactional;
+import org.surfnet.cruncher.model.LoginData;
 import org.surfnet.cruncher.model.LoginEntry;
+import org.surfnet.cruncher.model.LoginEvent;
+import org.surfnet.cruncher.repository.AggregationShard;
+import org.surfnet.cruncher.repository.StatisticsRepository;
 import org.surfnet.cruncher.unittest.config.SpringConfigurationForTest;
 
 
@@ -63,6 +75,15 @@ public class AggregatorTest {
   @Inject
   private JdbcTemplate cruncherJdbcTemplate;
 
+  @Inject
+  private StatisticsRepository statisticsRepository;
+
+  @Inject
+  private UniqueLoginsRollover uniqueLoginsRollover;
+
+  @Inject
+  private LiveLogins liveLogins;
+
   private String sqlRowCountAggregated = "select count(*) from aggregated_log_logins";
 
   @Test(expected=IllegalArgumentException.class)
@@ -75,22 +96,22 @@ public class AggregatorTest {
     aggregator.run();
     Calendar instance = Calendar.getInstance();
     instance.set(2012, 3, 21);
-    String hash = aggregationRecordHash("idp2", "sp1", instance.getTime());
+    byte[] hash = aggregationRecordHash("idp2", "sp1", instance.getTime());
  
     long entryCount = cruncherJdbcTemplate.queryForLong("select entrycount from aggregated_log_logins where datespidphash = ?", hash);
     assertEquals(2, entryCount);
     long timestamp = cruncherJdbcTemplate.queryForLong("select aggregatepoint from aggregate_meta_data");
     assertEquals(20009L, timestamp);
     
-    String userHash = aggregationRecordHash("idp2:user_1","sp1");
-    long lastlogin = cruncherJdbcTemplate.queryForObject("select loginstamp from user_log_logins where usersphash = '" + userHash+"'", new RowMapper<Long>() {
+    byte[] userHash = aggregationRecordHash("idp2:user_1","sp1");
+    long lastlogin = cruncherJdbcTemplate.queryForObject("select loginstamp from user_log_logins where usersphash = ?", new RowMapper<Long>() {
 
       @Override
       public Long mapRow(ResultSet rs, int rowNum) throws SQLException {
         return rs.getTimestamp(1).getTime();
       }
       
-    });
+    }, userHash);
     instance.setTimeInMillis(lastlogin);
     
     //2012-02-20 11:48:42
@@ -99,6 +120,165 @@ public class AggregatorTest {
     assertEquals(2012, instance.get(YEAR));
   }
 
+  @Test
+  public void testRunCatchUp() {
+    aggregator.setBatchSize(2);
+    aggregator.setCatchUpThreshold(0L);
+    try {
+      aggregator.run();
+    } finally {
+      aggregator.setBatchSize(100);
+      aggregator.setCatchUpThreshold(10000L);
+    }
+    /* all 10 records in one run, in batches of 2, 4 and 4 */
+    long timestamp = cruncherJdbcTemplate.queryForLong("select aggregatepoint from aggregate_meta_data");
+    assertEquals(20009L, timestamp);
+    long total = cruncherJdbcTemplate.queryForLong("select sum(entrycount) from aggregated_log_logins where entryday < '2013-01-01'");
+    assertEquals(10L, total);
+  }
+
+  @Test
+  public void testRunPipelined() {
+    aggregator.setBatchSize(2);
+    aggregator.setCatchUpThreshold(0L);
+    aggregator.setPipelineEnabled(true);
+    try {
+      aggregator.run();
+    } finally {
+      aggregator.setBatchSize(100);
+      aggregator.setCatchUpThreshold(10000L);
+      aggregator.setPipelineEnabled(false);
+    }
+    long timestamp = cruncherJdbcTemplate.queryForLong("select aggregatepoint from aggregate_meta_data");
+    assertEquals(20009L, timestamp);
+    long total = cruncherJdbcTemplate.queryForLong("select sum(entrycount) from aggregated_log_logins where entryday < '2013-01-01'");
+    assertEquals(10L, total);
+  }
+
+  @Test
+  public void testRunSharded() {
+    aggregator.setShards(3);
+    try {
+      aggregator.run();
+    } finally {
+      aggregator.setShards(1);
+    }
+    for (AggregationShard shard : statisticsRepository.getAggregationShards(3)) {
+      assertEquals(20009L, shard.getCheckpoint());
+      assertNull(shard.getOwner());
+    }
+    long total = cruncherJdbcTemplate.queryForLong("select sum(entrycount) from aggregated_log_logins where entryday < '2013-01-01'");
+    assertEquals(10L, total);
+    assertEquals(20009L, cruncherJdbcTemplate.queryForLong("select aggregatepoint from aggregate_meta_data"));
+  }
+
+  @Test
+  public void testRunParallel() {
+    /* the test transaction holds the locks, so the workers run on the calling thread */
+    aggregator.setWorkerExecutor(new CallerRunsExecutorService());
+    aggregator.setShards(3);
+    try {
+      aggregator.run();
+    } finally {
+      aggregator.setShards(1);
+      aggregator.setWorkerExecutor(null);
+    }
+    for (AggregationShard shard : statisticsRepository.getAggregationShards(3)) {
+      assertEquals(20009L, shard.getCheckpoint());
+      assertNull(shard.getOwner());
+    }
+    long total = cruncherJdbcTemplate.queryForLong("select sum(entrycount) from aggregated_log_logins where entryday < '2013-01-01'");
+    assertEquals(10L, total);
+    assertEquals(20009L, cruncherJdbcTemplate.queryForLong("select aggregatepoint from aggregate_meta_data"));
+  }
+
+  @Test
+  public void testRunSkipsShardLeasedByOtherNode() {
+    /* sp1 and sp3 are in shard 0, sp2 in shard 1 */
+    statisticsRepository.getAggregationShards(2);
+    assertTrue(statisticsRepository.acquireShardLease(1, "other-node", 60000L));
+    aggregator.setShards(2);
+    try {
+      aggregator.run();
+      assertEquals(20009L, statisticsRepository.getShardCheckpoint(0));
+      assertEquals(0L, statisticsRepository.getShardCheckpoint(1));
+      assertEquals(0L, statisticsRepository.getAggregatePoint());
+      long total = cruncherJdbcTemplate.queryForLong("select sum(entrycount) from aggregated_log_logins where entryday < '2013-01-01'");
+      assertEquals(7L, total);
+
+      /* the other node died, its lease expires */
+      cruncherJdbcTemplate.update("update aggregation_shard set leaseuntil = ? where shard = 1", new Date(0L));
+      aggregator.run();
+    } finally {
+      aggregator.setShards(1);
+    }
+    assertEquals(20009L, statisticsRepository.getShardCheckpoint(1));
+    long total = cruncherJdbcTemplate.queryForLong("select sum(entrycount) from aggregated_log_logins where entryday < '2013-01-01'");
+    assertEquals(10L, total);
+  }
+
+  @Test
+  public void testLiveLoginsOfShardsWithDifferentCheckpoints() {
+    /* sp1 is in shard 0, sp2 in shard 1 */
+    statisticsRepository.getAggregationShards(2);
+    LocalDate day = new LocalDate(2013, 3, 6);
+    long first = new GregorianCalendar(2013, 2, 6, 10, 15, 20).getTimeInMillis();
+    long second = new GregorianCalendar(2013, 2, 6, 10, 20, 5).getTimeInMillis();
+    for (long loginTime : new long[] {first, second}) {
+      for (String sp : new String[] {"sp1", "sp2"}) {
+        liveLogins.add(new LoginEvent(loginTime, "live-user", "liveIdp", "Live IdP", sp, sp));
+        cruncherJdbcTemplate.update("insert into log_logins (loginstamp, userid, spentityid, idpentityid, spentityname, " +
+            "idpentityname) values (?, 'live-user', ?, 'liveIdp', ?, 'Live IdP')", new Date(loginTime), sp, sp);
+      }
+    }
+    liveLogins.flush();
+    assertEquals(2, liveTotal(day, "sp1"));
+    assertEquals(2, liveTotal(day, "sp2"));
+
+    /* shard 0 aggregates the logins of sp1, shard 1 is leased by a node that is behind */
+    assertTrue(statisticsRepository.acquireShardLease(1, "other-node", 60000L));
+    aggregator.setShards(2);
+    try {
+      aggregator.run();
+      assertEquals(0L, statisticsRepository.getShardCheckpoint(1));
+      assertEquals(2, liveTotal(day, "sp1"));
+      assertEquals(2, liveTotal(day, "sp2"));
+      assertEquals(2, cruncherJdbcTemplate.queryForInt("select count(*) from live_log_logins where shard = 1"));
+      assertEquals(0, cruncherJdbcTemplate.queryForInt("select count(*) from live_log_logins where shard = 0"));
+
+      /* pushed after shard 0 aggregated their minute, only the login of sp2 counts */
+      liveLogins.add(new LoginEvent(second, "live-user-2", "liveIdp", "Live IdP", "sp1", "sp1"));
+      liveLogins.add(new LoginEvent(second, "live-user-2", "liveIdp", "Live IdP", "sp2", "sp2"));
+      liveLogins.flush();
+      assertEquals(2, liveTotal(day, "sp1"));
+      assertEquals(3, liveTotal(day, "sp2"));
+
+      cruncherJdbcTemplate.update("update aggregation_shard set leaseuntil = ? where shard = 1", new Date(0L));
+      aggregator.run();
+    } finally {
+      aggregator.setShards(1);
+    }
+    /* the login of live-user-2 was never logged */
+    assertEquals(2, liveTotal(day, "sp2"));
+    assertEquals(0, cruncherJdbcTemplate.queryForInt("select count(*) from live_log_logins"));
+  }
+
+  private int liveTotal(LocalDate day, String sp) {
+    List<LoginData> logins = statisticsRepository.getLogins(day, day, "liveIdp", sp);
+    assertEquals(1, logins.size());
+    return logins.get(0).getTotal();
+  }
+
+  @Test(expected = OptimisticLockingFailureException.class)
+  public void testCheckpointOfLostLease() {
+    statisticsRepository.getAggregationShards(1);
+    assertTrue(statisticsRepository.acquireShardLease(0, "node-1", -1L));
+    /* the lease of node-1 has expired, node-2 takes over */
+    assertTrue(statisticsRepository.acquireShardLease(0, "node-2", 60000L));
+    assertFalse(statisticsRepository.acquireShardLease(0, "node-1", 60000L));
+    statisticsRepository.moveShardCheckpoint(0, "node-1", 0L, 20009L, new Date());
+  }
+
   @Test
   public void aggregateEmptyList() {
     aggregator.aggregateLogin(Collections.<LoginEntry>emptyList());
@@ -150,6 +330,25 @@ public class AggregatorTest {
     assertEquals("Aggregation of 3 records should result in 2 added rows for the unique user table", 2, rowCount);
   }
   
+  @Test
+  public void testUniqueLoginInsertedByOtherNode() {
+    Date today = new Date();
+    Calendar calendar = new GregorianCalendar();
+    aggregator.aggregateLogin(Arrays.asList(new LoginEntry(0L, "someIdp", "", today, "someSp", "", "user-1")));
+
+    /* another node aggregates a login of user-2 and moves the aggregation point */
+    byte[] hash = aggregationRecordHash("user-2", "someSp", "someIdp", calendar.get(YEAR), calendar.get(MONTH) + 1);
+    cruncherJdbcTemplate.update("insert into user_unique_logins_cache (uniquehash,sp_id,idp_id,timespan,month,year) " +
+        "select ?, sp.id, idp.id, 12, ?, ? from entity sp, entity idp where sp.entityid = 'someSp' and idp.entityid = 'someIdp'",
+        hash, calendar.get(MONTH) + 1, calendar.get(YEAR));
+    cruncherJdbcTemplate.update("update aggregate_meta_data set aggregatepoint = 2");
+
+    aggregator.aggregateLogin(Arrays.asList(new LoginEntry(3L, "someIdp", "", today, "someSp", "", "user-2")));
+
+    int rowCount = cruncherJdbcTemplate.queryForInt("select count(*) from user_unique_logins_cache;");
+    assertEquals(2, rowCount);
+  }
+
   @Test
   public void testUniqueLoginUpdateFromCache() {
     Calendar now = new GregorianCalendar();
@@ -169,11 +368,110 @@ public class AggregatorTest {
     LoginEntry loginEntry4 = new LoginEntry(3L, "someIdp", "marker0", now.getTime(), "someSp", "", "user-2");
     
     aggregator.aggregateLogin(Arrays.asList(loginEntry4));
+    rowCount = cruncherJdbcTemplate.queryForInt("select count(*) from user_unique_logins;");
+    assertEquals("the rollover of closed months is not part of the aggregation", 0, rowCount);
+    /* aggregateLogin leaves the checkpoint where it is, the aggregation run moves it */
+    cruncherJdbcTemplate.update("update aggregate_meta_data set aggregatestamp = ?", now.getTime());
+    uniqueLoginsRollover.run();
     
     /* now the original set of logins should be aggregated in the unique users login table */
     rowCount = cruncherJdbcTemplate.queryForInt("select count(*) from user_unique_logins;");
     assertEquals("unique user cache should have been updated to unique users table", 1, rowCount);
-    int entrycount  = cruncherJdbcTemplate.queryForInt("select entrycount from user_unique_logins where spentityid='someSp' and idpentityid='someIdp'");
+    int entrycount  = cruncherJdbcTemplate.queryForInt("select entrycount from user_unique_logins u " +
+        "join entity sp on sp.id = u.sp_id join entity idp on idp.id = u.idp_id where sp.entityid='someSp' and idp.entityid='someIdp'");
     assertEquals("entry count for unique users should be 2", 2, entrycount);
   }
+
+  @Test
+  public void testUniqueLoginSketches() {
+    Date january = new GregorianCalendar(2013, 0, 10).getTime();
+    Date february = new GregorianCalendar(2013, 1, 10).getTime();
+    aggregator.setUniqueLoginsEstimated(true);
+    try {
+      aggregator.aggregateLogin(Arrays.asList(
+          new LoginEntry(0L, "someIdp", "", january, "someSp", "", "user-1"),
+          new LoginEntry(1L, "someIdp", "", january, "someSp", "", "user-2"),
+          new LoginEntry(2L, "otherIdp", "", january, "someSp", "", "user-2"),
+          new LoginEntry(3L, "someIdp", "", february, "someSp", "", "user-3"),
+          new LoginEntry(4L, "someIdp", "", february, "otherSp", "", "user-1")));
+      // the same logins again change none of the sketches
+      assertEquals(0, statisticsRepository.updateUniqueLoginSketches(LoginBatch.reduce(Arrays.asList(
+          new LoginEntry(5L, "someIdp", "", january, "someSp", "", "user-1"))).getUniqueLogins()));
+    } finally {
+      aggregator.setUniqueLoginsEstimated(false);
+    }
+
+    int rowCount = cruncherJdbcTemplate.queryForInt("select count(*) from user_unique_logins_cache;");
+    assertEquals("no unique login rows are kept when estimating", 0, rowCount);
+    LocalDate firstMonth = new LocalDate(january);
+    LocalDate lastMonth = new LocalDate(february);
+    assertEquals(2, statisticsRepository.getUniqueLoginsEstimate(firstMonth, firstMonth, "someSp", null));
+    assertEquals(2, statisticsRepository.getUniqueLoginsEstimate(firstMonth, firstMonth, "someSp", "someIdp"));
+    assertEquals(3, statisticsRepository.getUniqueLoginsEstimate(firstMonth, lastMonth, "someSp", null));
+    assertEquals(3, statisticsRepository.getUniqueLoginsEstimate(firstMonth, lastMonth, null, null));
+    assertEquals(0, statisticsRepository.getUniqueLoginsEstimate(firstMonth, lastMonth, "unknownSp", null));
+  }
+
+  @Test
+  public void testUniqueLoginSketchesSwitchedOnMidMonth() {
+    Date march = new GregorianCalendar(2014, 2, 1).getTime();
+    Date lateMarch = new GregorianCalendar(2014, 2, 20).getTime();
+    Date april = new GregorianCalendar(2014, 3, 10).getTime();
+    aggregator.aggregateLogin(Arrays.asList(new LoginEntry(0L, "someIdp", "", march, "someSp", "", "user-1")));
+    aggregator.setUniqueLoginsEstimated(true);
+    ReflectionTestUtils.setField(statisticsRepository, "uniqueLoginsEstimated", true);
+    try {
+      aggregator.aggregateLogin(Arrays.asList(
+          new LoginEntry(1L, "someIdp", "", lateMarch, "someSp", "", "user-2"),
+          new LoginEntry(2L, "someIdp", "", april, "someSp", "", "user-1")));
+      cruncherJdbcTemplate.update("update aggregate_meta_data set aggregatestamp = ?", april);
+      uniqueLoginsRollover.run();
+
+      // march was counted exactly before the switch, so it stays exact
+      assertEquals(2, statisticsRepository.getTotalUniqueLogins("someSp", 3, 2014));
+      assertEquals(1, statisticsRepository.getUniqueLoginsEstimate(new LocalDate(march), new LocalDate(march), "someSp", null));
+      // april only has a sketch
+      int rowCount = cruncherJdbcTemplate.queryForInt("select count(*) from user_unique_logins_cache where year = 2014 and month = 4");
+      assertEquals(0, rowCount);
+      assertEquals(1, statisticsRepository.getTotalUniqueLogins("someSp", 4, 2014));
+    } finally {
+      aggregator.setUniqueLoginsEstimated(false);
+      ReflectionTestUtils.setField(statisticsRepository, "uniqueLoginsEstimated", false);
+    }
+  }
+
+  private static class CallerRunsExecutorService extends AbstractExecutorService {
+    private boolean shutdown;
+
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+
+    @Override
+    public void shutdown() {
+      shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      shutdown = true;
+      return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return shutdown;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+      return true;
+    }
+  }
 }
@@ -1,6 +1,7 @@
 package org.surfnet.cruncher.message;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 
 import java.util.Calendar;
@@ -78,14 +79,44 @@ public class CleanerTest {
     assertTrue(new_userRecords == userRecords+2);
   }
   
+  @Test
+  public void cleanerRemovesDataInChunks() {
+    insertLoginTestData();
+    cleaner.setRetention(24);
+    cleaner.setChunkSize(1);
+    try {
+      cleaner.run();
+    } finally {
+      cleaner.setChunkSize(1000);
+    }
+    assertEquals(0, cruncherJdbcTemplate.queryForInt("select count(*) from aggregated_log_logins where sp_id = 1001"));
+    assertEquals(0, cruncherJdbcTemplate.queryForInt("select count(*) from user_log_logins where sp_id = 1003"));
+    assertTrue(cleaner.isLastRunComplete());
+    assertTrue(cleaner.getLastRunDeleted() >= 4);
+  }
+
+  @Test
+  public void cleanerStopsWhenTimeBudgetIsUsedUp() {
+    insertLoginTestData();
+    cleaner.setRetention(24);
+    cleaner.setMaxDuration(0L);
+    try {
+      cleaner.run();
+    } finally {
+      cleaner.setMaxDuration(3600000L);
+    }
+    assertEquals(2, cruncherJdbcTemplate.queryForInt("select count(*) from aggregated_log_logins where sp_id = 1001"));
+    assertFalse(cleaner.isLastRunComplete());
+  }
+
   private void insertLoginTestData() {
     Calendar history = new GregorianCalendar();
     history.setLenient(true);
     history.add(Calendar.MONTH, -30);
-    cruncherJdbcTemplate.update("insert into aggregated_log_logins (entryday, spentityid, idpentityid, entrycount, datespidphash) VALUES (?, 'tempsp', 'tempidp', 30, 'hash')", history.getTime());
-    cruncherJdbcTemplate.update("insert into user_log_logins (loginstamp, userid, spentityid, idpentityid, usersphash) VALUES (?, 'user1', 'sp1', 'idp1', 'user1hash')", history.getTime());
+    cruncherJdbcTemplate.update("insert into aggregated_log_logins (entryday, sp_id, idp_id, entrycount, datespidphash) VALUES (?, 1001, 1002, 30, X'f1')", history.getTime());
+    cruncherJdbcTemplate.update("insert into user_log_logins (loginstamp, userid, sp_id, idp_id, usersphash) VALUES (?, 'user1', 1003, 1004, X'f2')", history.getTime());
     history.add(Calendar.DAY_OF_WEEK, -2);
-    cruncherJdbcTemplate.update("insert into aggregated_log_logins (entryday, spentityid, idpentityid, entrycount, datespidphash) VALUES (?, 'tempsp', 'tempidp', 40, 'newhash')", history.getTime());
-    cruncherJdbcTemplate.update("insert into user_log_logins (loginstamp, userid, spentityid, idpentityid, usersphash) VALUES (?, 'user2', 'sp1', 'idp1', 'user2hash')", history.getTime());
+    cruncherJdbcTemplate.update("insert into aggregated_log_logins (entryday, sp_id, idp_id, entrycount, datespidphash) VALUES (?, 1001, 1002, 40, X'f3')", history.getTime());
+    cruncherJdbcTemplate.update("insert into user_log_logins (loginstamp, userid, sp_id, idp_id, usersphash) VALUES (?, 'user2', 1003, 1004, X'f4')", history.getTime());
   }
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.message;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import org.joda.time.LocalDate;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.transaction.TransactionConfiguration;
+import org.springframework.transaction.annotation.Transactional;
+import org.surfnet.cruncher.model.LoginData;
+import org.surfnet.cruncher.model.LoginEvent;
+import org.surfnet.cruncher.model.SpStatistic;
+import org.surfnet.cruncher.repository.LoginInterval;
+import org.surfnet.cruncher.repository.StatisticsRepository;
+import org.surfnet.cruncher.unittest.config.SpringConfigurationForTest;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = SpringConfigurationForTest.class)
+@Transactional
+@TransactionConfiguration(defaultRollback=true)
+public class LiveLoginsTest {
+
+  @Inject
+  private LiveLogins liveLogins;
+
+  @Inject
+  private Aggregator aggregator;
+
+  @Inject
+  private StatisticsRepository statisticsRepository;
+
+  @Inject
+  private JdbcTemplate cruncherJdbcTemplate;
+
+  private final LocalDate day = new LocalDate(2013, 3, 5);
+  private final long first = new GregorianCalendar(2013, 2, 5, 10, 15, 20).getTimeInMillis();
+  private final long second = new GregorianCalendar(2013, 2, 5, 10, 16, 5).getTimeInMillis();
+
+  @Test
+  public void pushedLoginsCountUntilAggregated() {
+    liveLogins.add(new LoginEvent(first, "live-user-1", "liveIdp", "Live IdP", "liveSp", "Live SP"));
+    liveLogins.add(new LoginEvent(second, "live-user-1", "liveIdp", "Live IdP", "liveSp", "Live SP"));
+    liveLogins.add(new LoginEvent(first, "live-user-2", "liveIdp", "Live IdP", "liveSp", "Live SP"));
+    liveLogins.flush();
+
+    assertEquals(3, totalLogins(LoginInterval.DAY));
+    assertEquals(3, totalLogins(LoginInterval.MONTH));
+    List<SpStatistic> services = statisticsRepository.getActiveServices("live-user-1", "liveIdp", null, 10).getSpStatistics();
+    assertEquals(1, services.size());
+    assertEquals("liveSp", services.get(0).getSpEntityId());
+    assertEquals(second, services.get(0).getEntryTime());
+
+    /* EngineBlock logged the same logins (in order of time), the aggregator counts them instead */
+    logLogin(first, "live-user-1");
+    logLogin(first, "live-user-2");
+    logLogin(second, "live-user-1");
+    aggregator.run();
+
+    assertEquals(3, totalLogins(LoginInterval.DAY));
+    assertEquals(0, cruncherJdbcTemplate.queryForInt("select count(*) from live_log_logins"));
+    services = statisticsRepository.getActiveServices("live-user-1", "liveIdp", null, 10).getSpStatistics();
+    assertEquals(1, services.size());
+    assertEquals(second, services.get(0).getEntryTime());
+  }
+
+  @Test
+  public void loginsOfAggregatedMinutesAreIgnored() {
+    aggregator.run();
+    liveLogins.flush();
+    long aggregatedAlready = liveLogins.getAggregatedAlready();
+
+    liveLogins.add(new LoginEvent(new GregorianCalendar(2012, 3, 18, 11, 48, 41).getTimeInMillis(), "idp1:user_1",
+        "idp1", "", "sp1", ""));
+    liveLogins.flush();
+
+    assertEquals(aggregatedAlready + 1, liveLogins.getAggregatedAlready());
+    assertEquals(0, cruncherJdbcTemplate.queryForInt("select count(*) from live_log_logins"));
+  }
+
+  private int totalLogins(LoginInterval interval) {
+    List<LoginData> logins = statisticsRepository.getLogins(day, day, "liveIdp", "liveSp", interval);
+    assertEquals(1, logins.size());
+    return logins.get(0).getTotal();
+  }
+
+  private void logLogin(long loginTime, String userId) {
+    cruncherJdbcTemplate.update("insert into log_logins (loginstamp, userid, spentityid, idpentityid, spentityname, " +
+        "idpentityname) values (?, ?, 'liveSp', 'liveIdp', 'Live SP', 'Live IdP')", new Date(loginTime), userId);
+  }
+}
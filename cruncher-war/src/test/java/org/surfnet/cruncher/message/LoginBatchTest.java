@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import org.junit.Test;
+import org.surfnet.cruncher.message.LoginBatch.DailyLogins;
+import org.surfnet.cruncher.message.LoginBatch.LastLogin;
+import org.surfnet.cruncher.model.LoginEntry;
+import org.surfnet.cruncher.repository.AggregationShard;
+import org.surfnet.cruncher.repository.RecordHash;
+
+public class LoginBatchTest {
+
+  @Test
+  public void emptyBatch() {
+    LoginBatch batch = LoginBatch.reduce(Collections.<LoginEntry>emptyList());
+    assertTrue(batch.isEmpty());
+    assertNull(batch.getLastId());
+    assertTrue(batch.getDailyLogins().isEmpty());
+  }
+
+  @Test
+  public void reduceCountsPerDay() {
+    Date day1 = new GregorianCalendar(2013, 0, 1, 10, 0).getTime();
+    Date day2 = new GregorianCalendar(2013, 0, 2, 10, 0).getTime();
+    LoginBatch batch = LoginBatch.reduce(Arrays.asList(
+        new LoginEntry(1L, "idp1", "idp1_name", day1, "sp1", "sp1_name", "user1"),
+        new LoginEntry(2L, "idp1", "idp1_name", day1, "sp1", "sp1_name", "user2"),
+        new LoginEntry(3L, "idp1", "idp1_name", day2, "sp1", "sp1_name", "user1"),
+        new LoginEntry(4L, "idp2", "idp2_name", day2, "sp1", "sp1_name", "user3")));
+
+    assertEquals(4, batch.getSize());
+    assertEquals(Long.valueOf(4L), batch.getLastId());
+    assertEquals(3, batch.getDailyLogins().size());
+    DailyLogins first = batch.getDailyLogins().iterator().next();
+    assertEquals(2, first.getCount());
+    assertEquals(new RecordHash(Aggregator.aggregationRecordHash("idp1", "sp1", day1)), first.getHash());
+  }
+
+  @Test
+  public void shardSkipsLoginsOfOtherShards() {
+    Date day = new GregorianCalendar(2013, 0, 1, 10, 0).getTime();
+    AggregationShard shard = new AggregationShard(AggregationShard.indexOf("sp1", 2), 2, 0L, null, null);
+    assertFalse(shard.contains("sp2"));
+    LoginBatch batch = new LoginBatch(shard);
+    batch.add(new LoginEntry(1L, "idp1", "idp1_name", day, "sp1", "sp1_name", "user1"));
+    batch.add(new LoginEntry(2L, "idp1", "idp1_name", day, "sp2", "sp2_name", "user1"));
+
+    assertEquals(2, batch.getSize());
+    assertEquals(1, batch.getSkipped());
+    assertEquals(Long.valueOf(2L), batch.getLastId());
+    assertEquals(1, batch.getDailyLogins().size());
+    assertEquals("sp1", batch.getDailyLogins().iterator().next().getSpEntityId());
+    assertEquals(1, batch.getLastLogins().size());
+    assertEquals(1, batch.getUniqueLogins().size());
+  }
+
+  @Test
+  public void lastProcessedLoginWins() {
+    Date april = new GregorianCalendar(2012, 3, 20).getTime();
+    Date february = new GregorianCalendar(2012, 1, 20).getTime();
+    LoginBatch batch = LoginBatch.reduce(Arrays.asList(
+        new LoginEntry(1L, "idp2", "", april, "sp1", "", "user1"),
+        new LoginEntry(2L, "idp2", "", february, "sp1", "", "user1")));
+
+    assertEquals(1, batch.getLastLogins().size());
+    LastLogin last = batch.getLastLogins().iterator().next();
+    assertEquals(february, last.getLoginDate());
+  }
+
+  @Test
+  public void uniqueLoginsPerMonth() {
+    Date january = new GregorianCalendar(2013, 0, 1).getTime();
+    Date january2 = new GregorianCalendar(2013, 0, 31).getTime();
+    Date february = new GregorianCalendar(2013, 1, 1).getTime();
+    LoginBatch batch = LoginBatch.reduce(Arrays.asList(
+        new LoginEntry(1L, "idp1", "", january, "sp1", "", "user1"),
+        new LoginEntry(2L, "idp1", "", january2, "sp1", "", "user1"),
+        new LoginEntry(3L, "idp1", "", february, "sp1", "", "user1"),
+        new LoginEntry(4L, "idp1", "", february, "sp1", "", "user2")));
+
+    assertEquals(3, batch.getUniqueLogins().size());
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.message;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.GregorianCalendar;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+/**
+ * The binary keys must be the unhexed former keys, existing rows are migrated
+ * with UNHEX.
+ */
+public class RecordHasherTest {
+
+  @Test
+  public void sameAsHexKeys() {
+    long loginTime = new GregorianCalendar(2013, 0, 5, 23, 59).getTimeInMillis();
+    assertArrayEquals(DigestUtils.sha1("2013-01-05!idp1!sp1"), Aggregator.aggregationRecordHash("idp1", "sp1", loginTime));
+    assertArrayEquals(DigestUtils.sha1("user1!sp1"), Aggregator.aggregationRecordHash("user1", "sp1"));
+  }
+
+  @Test
+  public void uniqueLoginKey() {
+    assertArrayEquals(DigestUtils.sha1("2013-03!user1!sp1!idp1"), Aggregator.aggregationRecordHash("user1", "sp1", "idp1", 2013, 3));
+  }
+
+  @Test
+  public void entityKey() {
+    String entityId = "https://sp1.example.org/\u00e9t\u00e9";
+    assertArrayEquals(DigestUtils.sha1(entityId), Aggregator.entityHash(entityId));
+  }
+
+  @Test
+  public void multiByteAndNull() {
+    String userId = "\u00e9t\u00e9\u20ac\ud83d\ude00\ud83d";
+    assertArrayEquals(DigestUtils.sha1(userId + "!null"), Aggregator.aggregationRecordHash(userId, null));
+  }
+
+  @Test
+  public void longValues() {
+    StringBuilder userId = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      userId.append("urn:collab:person:example.org:user").append(i);
+    }
+    assertArrayEquals(DigestUtils.sha1(userId + "!sp1"), Aggregator.aggregationRecordHash(userId.toString(), "sp1"));
+  }
+}
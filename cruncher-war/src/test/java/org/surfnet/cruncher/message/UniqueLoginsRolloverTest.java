@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.message;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import javax.inject.Inject;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.transaction.TransactionConfiguration;
+import org.springframework.transaction.annotation.Transactional;
+import org.surfnet.cruncher.model.LoginEntry;
+import org.surfnet.cruncher.unittest.config.SpringConfigurationForTest;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = SpringConfigurationForTest.class)
+@Transactional
+@TransactionConfiguration(defaultRollback=true)
+public class UniqueLoginsRolloverTest {
+
+  @Inject
+  private Aggregator aggregator;
+
+  @Inject
+  private UniqueLoginsRollover uniqueLoginsRollover;
+
+  @Inject
+  private JdbcTemplate cruncherJdbcTemplate;
+
+  private final Date december = new GregorianCalendar(2012, 11, 31).getTime();
+  private final Date january = new GregorianCalendar(2013, 0, 2).getTime();
+
+  @After
+  public void resetChunkSize() {
+    uniqueLoginsRollover.setChunkSize(5000);
+  }
+
+  @Test
+  public void movesClosedMonthsInChunks() {
+    aggregator.aggregateLogin(Arrays.asList(
+        new LoginEntry(0L, "rolloverIdp1", "", december, "rolloverSp", "", "user-1"),
+        new LoginEntry(1L, "rolloverIdp1", "", december, "rolloverSp", "", "user-2"),
+        new LoginEntry(2L, "rolloverIdp1", "", december, "rolloverSp", "", "user-3"),
+        new LoginEntry(3L, "rolloverIdp2", "", december, "rolloverSp", "", "user-1"),
+        new LoginEntry(4L, "rolloverIdp1", "", january, "rolloverSp", "", "user-1")));
+    aggregatedUpTo(january, january);
+
+    uniqueLoginsRollover.setChunkSize(2);
+    uniqueLoginsRollover.run();
+
+    assertEquals(3, uniqueLogins("rolloverIdp1", 12, 2012));
+    assertEquals(1, uniqueLogins("rolloverIdp2", 12, 2012));
+    assertEquals("the current month stays in the cache", 1, cacheRows(1, 2013));
+    assertEquals(0, cacheRows(12, 2012));
+    assertEquals("no checkpoint is left for a finished month", 0,
+        cruncherJdbcTemplate.queryForInt("select count(*) from unique_logins_rollover"));
+  }
+
+  @Test
+  public void addsLateLoginsToMovedMonth() {
+    aggregator.aggregateLogin(Arrays.asList(
+        new LoginEntry(0L, "rolloverIdp1", "", december, "rolloverSp", "", "user-1"),
+        new LoginEntry(1L, "rolloverIdp1", "", january, "rolloverSp", "", "user-1")));
+    aggregatedUpTo(january, january);
+    uniqueLoginsRollover.run();
+    aggregator.aggregateLogin(Arrays.asList(
+        new LoginEntry(2L, "rolloverIdp1", "", december, "rolloverSp", "", "user-2")));
+    uniqueLoginsRollover.run();
+
+    assertEquals(2, uniqueLogins("rolloverIdp1", 12, 2012));
+    assertEquals(0, cacheRows(12, 2012));
+  }
+
+  @Test
+  public void waitsForSlowestShard() {
+    aggregator.aggregateLogin(Arrays.asList(
+        new LoginEntry(0L, "rolloverIdp1", "", december, "rolloverSp", "", "user-1"),
+        new LoginEntry(1L, "rolloverIdp1", "", january, "rolloverSp", "", "user-1")));
+    aggregatedUpTo(january, december);
+    uniqueLoginsRollover.run();
+
+    assertEquals("december is not closed for the second shard", 1, cacheRows(12, 2012));
+  }
+
+  @Test
+  public void waitsForShardWithoutCheckpoint() {
+    aggregator.aggregateLogin(Arrays.asList(
+        new LoginEntry(0L, "rolloverIdp1", "", december, "rolloverSp", "", "user-1"),
+        new LoginEntry(1L, "rolloverIdp1", "", january, "rolloverSp", "", "user-1")));
+    aggregatedUpTo(january, null);
+    uniqueLoginsRollover.run();
+
+    assertEquals(1, cacheRows(12, 2012));
+  }
+
+  /*
+   * aggregateLogin leaves the checkpoints where they are, the aggregation run
+   * moves them
+   */
+  private void aggregatedUpTo(Date... checkpointStamps) {
+    for (int shard = 0; shard < checkpointStamps.length; shard++) {
+      cruncherJdbcTemplate.update("insert into aggregation_shard (shard, shards, checkpoint, checkpointstamp) " +
+          "values (?, ?, ?, ?)", shard, checkpointStamps.length, checkpointStamps[shard] == null ? 0L : 2L,
+          checkpointStamps[shard]);
+    }
+  }
+
+  private int uniqueLogins(String idpEntityId, int month, int year) {
+    return cruncherJdbcTemplate.queryForInt("select entrycount from user_unique_logins u " +
+        "join entity sp on sp.id = u.sp_id join entity idp on idp.id = u.idp_id " +
+        "where sp.entityid = 'rolloverSp' and idp.entityid = ? and u.month = ? and u.year = ?", idpEntityId, month, year);
+  }
+
+  private int cacheRows(int month, int year) {
+    return cruncherJdbcTemplate.queryForInt("select count(*) from user_unique_logins_cache where month = ? and year = ?",
+        month, year);
+  }
+}
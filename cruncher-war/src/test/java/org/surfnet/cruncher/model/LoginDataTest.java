@@ -26,6 +26,8 @@ import java.io.IOException;
 import java.util.List;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
 
 public class LoginDataTest {
 
@@ -42,4 +44,21 @@ public class LoginDataTest {
     assertEquals(loginData.getTotal(), totalFromData);
   }
 
+  @Test
+  public void testDataPointsRoundTrip() throws IOException {
+    LoginData loginData = new LoginData();
+    loginData.getData().add(3);
+    loginData.getData().add(0);
+    loginData.getData().add(5);
+    loginData.getData().set(1, 4);
+
+    String json = mapper.writeValueAsString(loginData);
+    assertTrue(json.contains("\"data\":[3,4,5]"));
+    assertFalse(json.contains("dataPoints"));
+
+    LoginData copy = mapper.readValue(json, LoginData.class);
+    assertEquals(3, copy.getData().size());
+    assertEquals(4, (int) copy.getData().get(1));
+  }
+
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class AggregateKeyCacheTest {
+  private final RecordHash a = new RecordHash(new byte[] {1});
+  private final RecordHash b = new RecordHash(new byte[] {2});
+  private final RecordHash c = new RecordHash(new byte[] {3});
+
+  @Test
+  public void countsHitsAndMisses() {
+    AggregateKeyCache cache = new AggregateKeyCache(10);
+    cache.addAggregated(Arrays.asList(a, b));
+
+    assertTrue(cache.containsAggregated(a));
+    assertFalse(cache.containsAggregated(c));
+    assertFalse(cache.containsUser(a));
+    assertEquals(1, cache.getAggregatedHits());
+    assertEquals(1, cache.getAggregatedMisses());
+    assertEquals(1, cache.getUserMisses());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    AggregateKeyCache cache = new AggregateKeyCache(2);
+    cache.addUser(Arrays.asList(a, b));
+    cache.containsUser(a);
+    cache.addUser(Arrays.asList(c));
+
+    assertEquals(2, cache.getUserSize());
+    assertTrue(cache.containsUser(a));
+    assertFalse(cache.containsUser(b));
+  }
+
+  @Test
+  public void invalidate() {
+    AggregateKeyCache cache = new AggregateKeyCache(10);
+    cache.addAggregated(Arrays.asList(a));
+    cache.addUser(Arrays.asList(b));
+    cache.invalidate();
+
+    assertEquals(0, cache.getAggregatedSize());
+    assertEquals(0, cache.getUserSize());
+  }
+}
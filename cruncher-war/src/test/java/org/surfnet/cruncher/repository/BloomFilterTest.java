@@ -0,0 +1,55 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.repository;
+
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+public class BloomFilterTest {
+
+  @Test
+  public void containsEveryAddedHash() {
+    BloomFilter filter = new BloomFilter(1000, 0.01);
+    for (int i = 0; i < 2000; i++) {
+      filter.add(hash("user" + i));
+    }
+    for (int i = 0; i < 2000; i++) {
+      assertTrue(filter.mightContain(hash("user" + i)));
+    }
+  }
+
+  @Test
+  public void falsePositiveRate() {
+    BloomFilter filter = new BloomFilter(10000, 0.01);
+    for (int i = 0; i < 10000; i++) {
+      filter.add(hash("user" + i));
+    }
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (filter.mightContain(hash("other" + i))) {
+        falsePositives += 1;
+      }
+    }
+    assertTrue("false positives: " + falsePositives, falsePositives < 200);
+  }
+
+  private RecordHash hash(String value) {
+    return new RecordHash(DigestUtils.sha1(value));
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HyperLogLogTest {
+
+  @Test
+  public void smallCountsAreExact() {
+    HyperLogLog sketch = new HyperLogLog();
+    assertEquals(0, sketch.estimate());
+    for (int i = 0; i < 100; i++) {
+      sketch.add("user-" + i);
+      sketch.add("user-" + i);
+    }
+    assertEquals(100, sketch.estimate());
+  }
+
+  @Test
+  public void largeCountsWithinErrorBounds() {
+    HyperLogLog sketch = new HyperLogLog();
+    int users = 200000;
+    for (int i = 0; i < users; i++) {
+      sketch.add("urn:collab:person:example.org:user" + i);
+    }
+    // three times the standard error
+    assertEquals(users, sketch.estimate(), users * 0.049d);
+  }
+
+  @Test
+  public void mergeCountsUnion() {
+    HyperLogLog first = new HyperLogLog();
+    HyperLogLog second = new HyperLogLog();
+    for (int i = 0; i < 3000; i++) {
+      first.add("user-" + i);
+      second.add("user-" + (i + 1000));
+    }
+    first.merge(second);
+    assertEquals(4000, first.estimate(), 4000 * 0.049d);
+  }
+
+  @Test
+  public void serializeSparseAndDense() {
+    HyperLogLog sparse = new HyperLogLog();
+    sparse.add("user-1");
+    sparse.add("user-2");
+    byte[] bytes = sparse.toBytes();
+    assertEquals(2 + 2 * 3, bytes.length);
+    assertEquals(sparse, HyperLogLog.fromBytes(bytes));
+
+    HyperLogLog dense = new HyperLogLog();
+    for (int i = 0; i < 10000; i++) {
+      dense.add("user-" + i);
+    }
+    bytes = dense.toBytes();
+    assertEquals(2 + (1 << HyperLogLog.PRECISION), bytes.length);
+    assertEquals(dense, HyperLogLog.fromBytes(bytes));
+  }
+
+  @Test
+  public void tracksChanges() {
+    HyperLogLog stored = new HyperLogLog();
+    stored.add("user-1");
+    HyperLogLog read = HyperLogLog.fromBytes(stored.toBytes());
+    assertFalse(read.isChanged());
+    read.merge(stored);
+    assertFalse(read.isChanged());
+    read.add("user-2");
+    assertTrue(read.isChanged());
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.LocalDate;
+import org.junit.Test;
+import org.surfnet.cruncher.repository.PartitionManager.Partition;
+
+public class PartitionManagerTest {
+
+  @Test
+  public void reorganizeStatement() {
+    assertEquals("ALTER TABLE aggregated_log_logins REORGANIZE PARTITION pmax INTO (" +
+        "PARTITION p201312 VALUES LESS THAN ('2014-01-01'), " +
+        "PARTITION p201401 VALUES LESS THAN ('2014-02-01'), " +
+        "PARTITION pmax VALUES LESS THAN (MAXVALUE))",
+        PartitionManager.reorganizeStatement("aggregated_log_logins", new LocalDate(2013, 12, 1), new LocalDate(2014, 2, 1)));
+  }
+
+  @Test
+  public void parseBound() {
+    assertEquals(new LocalDate(2013, 2, 1), PartitionManager.parseBound("'2013-02-01'"));
+    assertNull(PartitionManager.parseBound("MAXVALUE"));
+  }
+
+  @Test
+  public void partitionStatement() {
+    assertEquals("ALTER TABLE aggregated_log_logins PARTITION BY RANGE COLUMNS(entryday) (" +
+        "PARTITION p_start VALUES LESS THAN ('2013-12-01'), " +
+        "PARTITION p201312 VALUES LESS THAN ('2014-01-01'), " +
+        "PARTITION pmax VALUES LESS THAN (MAXVALUE))",
+        PartitionManager.partitionStatement("aggregated_log_logins", new LocalDate(2013, 12, 1), new LocalDate(2014, 1, 1)));
+  }
+
+  @Test
+  public void createPartitions() {
+    List<Partition> partitions = initialPartitions(new LocalDate(2012, 11, 1), new LocalDate(2013, 2, 1));
+    List<Partition> missing = PartitionManager.missingPartitions(partitions, new LocalDate(2013, 5, 1));
+    assertEquals(3, missing.size());
+    partitions.addAll(partitions.size() - 1, missing);
+
+    assertMonthly(partitions, new LocalDate(2012, 11, 1), new LocalDate(2013, 5, 1));
+    assertTrue("nothing is missing once the partitions exist",
+        PartitionManager.missingPartitions(partitions, new LocalDate(2013, 5, 1)).isEmpty());
+    assertTrue("the bound of a table that is not partitioned is unknown",
+        PartitionManager.missingPartitions(new ArrayList<Partition>(), new LocalDate(2013, 5, 1)).isEmpty());
+  }
+
+  @Test
+  public void dropPartitions() {
+    List<Partition> partitions = initialPartitions(new LocalDate(2012, 11, 1), new LocalDate(2013, 5, 1));
+    LocalDate before = new LocalDate(2013, 2, 1);
+    List<Partition> expired = PartitionManager.expiredPartitions(partitions, before);
+    assertEquals(4, expired.size());
+    for (Partition partition : expired) {
+      assertFalse("only days before " + before + " are dropped", partition.bound.isAfter(before));
+    }
+    partitions.removeAll(expired);
+
+    assertEquals("p201302", partitions.get(0).name);
+    assertMonthly(partitions, before, new LocalDate(2013, 5, 1));
+    assertTrue(PartitionManager.expiredPartitions(partitions, before).isEmpty());
+  }
+
+  /*
+   * The partitions the migration creates
+   */
+  private List<Partition> initialPartitions(LocalDate firstMonth, LocalDate bound) {
+    List<Partition> result = new ArrayList<Partition>();
+    result.add(new Partition("p_start", firstMonth));
+    result.addAll(PartitionManager.monthPartitions(firstMonth, bound));
+    result.add(new Partition(PartitionManager.MAX_PARTITION, null));
+    return result;
+  }
+
+  /*
+   * Every day from the first month up to the bound is in the partition of its month, the
+   * days after it in the max partition
+   */
+  private void assertMonthly(List<Partition> partitions, LocalDate firstMonth, LocalDate bound) {
+    for (LocalDate day = firstMonth; day.isBefore(bound.plusMonths(1)); day = day.plusDays(1)) {
+      String expected = day.isBefore(bound) ? "p" + day.toString("yyyyMM") : PartitionManager.MAX_PARTITION;
+      assertEquals(day.toString(), expected, partitionOf(partitions, day));
+    }
+  }
+
+  private String partitionOf(List<Partition> partitions, LocalDate day) {
+    for (Partition partition : partitions) {
+      if (partition.bound == null || day.isBefore(partition.bound)) {
+        return partition.name;
+      }
+    }
+    return null;
+  }
+}
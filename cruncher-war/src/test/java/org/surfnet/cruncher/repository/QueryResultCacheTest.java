@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.joda.time.LocalDate;
+import org.junit.Test;
+
+public class QueryResultCacheTest {
+  private final LocalDate today = new LocalDate();
+  private final LocalDate january = new LocalDate(2013, 1, 1);
+  private final LocalDate february = new LocalDate(2013, 2, 1);
+
+  private long now = System.currentTimeMillis();
+
+  private final QueryResultCache cache = new QueryResultCache(10, 1000L, 10000L) {
+    @Override
+    long now() {
+      return now;
+    }
+  };
+
+  @Test
+  public void countsHitsAndMisses() {
+    cache.put("a", january, january, "result");
+
+    assertEquals("result", cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(0.5d, cache.getHitRatio(), 0d);
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    QueryResultCache cache = new QueryResultCache(2, 1000L, 10000L);
+    cache.put("a", january, january, "a");
+    cache.put("b", january, january, "b");
+    cache.get("a");
+    cache.put("c", january, january, "c");
+
+    assertEquals(2, cache.getSize());
+    assertEquals(1, cache.getEvictions());
+    assertEquals("a", cache.get("a"));
+    assertNull(cache.get("b"));
+  }
+
+  @Test
+  public void closedPeriodsExpireLater() {
+    cache.put("closed", january, january, "closed");
+    cache.put("open", january, today, "open");
+    cache.put("any", null, null, "any");
+    now += 1000L;
+
+    assertEquals("closed", cache.get("closed"));
+    assertNull(cache.get("open"));
+    assertNull(cache.get("any"));
+    assertEquals(2, cache.getExpirations());
+
+    now += 9000L;
+    assertNull(cache.get("closed"));
+    assertEquals(3, cache.getExpirations());
+  }
+
+  @Test
+  public void invalidateOverlappingDays() {
+    cache.put("january", january, january.plusMonths(1).minusDays(1), "january");
+    cache.put("february", february, february.plusMonths(1).minusDays(1), "february");
+    cache.invalidate(january.plusDays(10), january.plusDays(12));
+
+    assertNull(cache.get("january"));
+    assertEquals("february", cache.get("february"));
+    assertEquals(1, cache.getInvalidations());
+  }
+
+  @Test
+  public void invalidateResultsWithoutRange() {
+    cache.put("any", null, null, "any");
+    cache.invalidate(february, february);
+
+    assertNull(cache.get("any"));
+  }
+
+  @Test
+  public void disabled() {
+    QueryResultCache disabled = new QueryResultCache(0, 1000L, 10000L);
+    disabled.put("a", january, january, "a");
+
+    assertNull(disabled.get("a"));
+  }
+}
@@ -17,22 +17,32 @@
 package org.surfnet.cruncher.resource;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.inject.Inject;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import junit.framework.Assert;
 
+import org.codehaus.jackson.map.ObjectMapper;
 import org.joda.time.LocalDate;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -42,8 +52,11 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.transaction.TransactionConfiguration;
 import org.springframework.transaction.annotation.Transactional;
 import org.surfnet.cruncher.message.Aggregator;
+import org.surfnet.cruncher.message.LiveLogins;
 import org.surfnet.cruncher.model.LoginData;
+import org.surfnet.cruncher.model.LoginEvent;
 import org.surfnet.cruncher.model.SpStatistic;
+import org.surfnet.cruncher.model.SpStatisticPage;
 import org.surfnet.cruncher.model.VersStatistic;
 import org.surfnet.cruncher.unittest.config.SpringConfigurationForTest;
 
@@ -60,6 +73,9 @@ public class CruncherResourceTest {
   @Inject
   private Aggregator aggregator;
 
+  @Inject
+  private LiveLogins liveLogins;
+
   @Inject
   private JdbcTemplate cruncherJdbcTemplate;
 
@@ -67,7 +83,7 @@ public class CruncherResourceTest {
   public void getLogins() {
     LocalDate start = new LocalDate(2013, 1, 1);
     LocalDate end = new LocalDate(2013, 1, 12);
-    Response response = cruncherResource.getLoginsPerInterval(start.toDate().getTime(), end.toDate().getTime(), "idp1", "sp1");
+    Response response = cruncherResource.getLoginsPerInterval(start.toDate().getTime(), end.toDate().getTime(), "idp1", "sp1", null, false);
     List<LoginData> result = (List<LoginData>) response.getEntity();
     assertNotNull(result);
     assertEquals(1, result.size());
@@ -79,7 +95,7 @@ public class CruncherResourceTest {
   public void getMultipleLogins() {
     LocalDate start = new LocalDate(2013, 1, 1);
     LocalDate end = new LocalDate(2013, 1, 12);
-    Response response = cruncherResource.getLoginsPerInterval(start.toDate().getTime(), end.toDate().getTime(), "idp1", null);
+    Response response = cruncherResource.getLoginsPerInterval(start.toDate().getTime(), end.toDate().getTime(), "idp1", null, null, false);
     List<LoginData> result = (List<LoginData>) response.getEntity();
     assertNotNull(result);
     assertEquals(2, result.size());
@@ -92,6 +108,17 @@ public class CruncherResourceTest {
     }
   }
 
+  @Test
+  public void getLoginsForSp() {
+    LocalDate start = new LocalDate(2013, 1, 1);
+    LocalDate end = new LocalDate(2013, 1, 12);
+    Response response = cruncherResource.getLoginsPerInterval(start.toDate().getTime(), end.toDate().getTime(), null, "sp1", null, false);
+    List<LoginData> result = (List<LoginData>) response.getEntity();
+    assertEquals(2, result.size());
+    checkSp1Entry(result.get(0));
+    assertEquals("idp2", result.get(1).getIdpEntityId());
+  }
+
   private void checkSp1Entry(LoginData data) {
     assertEquals("idp1", data.getIdpEntityId());
     assertEquals("idp1_name", data.getIdpname());
@@ -106,9 +133,9 @@ public class CruncherResourceTest {
 
   @Test
   public void testIllegalArguments() {
-    cruncherResource.getLoginsPerInterval(0L, 0L, null, null).getEntity();
+    cruncherResource.getLoginsPerInterval(0L, 0L, null, null, null, false).getEntity();
     try {
-      cruncherResource.getLoginsPerInterval(null, null, null, null).getEntity();
+      cruncherResource.getLoginsPerInterval(null, null, null, null, null, false).getEntity();
       fail("illegal start and end date may not be null");
     } catch (IllegalArgumentException e) {
       //expected
@@ -119,7 +146,7 @@ public class CruncherResourceTest {
   public void testResponseWithZeros() {
     LocalDate start = new LocalDate(2013, 1, 10);
     LocalDate end = new LocalDate(2013, 1, 20);
-    Response response = cruncherResource.getLoginsPerInterval(start.toDate().getTime(), end.toDate().getTime(), "idp1", "sp1");
+    Response response = cruncherResource.getLoginsPerInterval(start.toDate().getTime(), end.toDate().getTime(), "idp1", "sp1", null, false);
     List<LoginData> result = (List<LoginData>) response.getEntity();
 
     assertNotNull(result);
@@ -132,10 +159,59 @@ public class CruncherResourceTest {
     assertEquals(0, (int) loginData.getData().get(10));
   }
 
+  @Test
+  public void getLoginsPerWeek() {
+    LocalDate start = new LocalDate(2013, 1, 1);
+    LocalDate end = new LocalDate(2013, 1, 12);
+    Response response = cruncherResource.getLoginsPerInterval(start.toDate().getTime(), end.toDate().getTime(), "idp1", "sp1", "week", false);
+    List<LoginData> result = (List<LoginData>) response.getEntity();
+
+    assertEquals(1, result.size());
+    LoginData loginData = result.get(0);
+    // 2013-01-01 is a tuesday, its week starts on 2012-12-31
+    assertEquals(new LocalDate(2012, 12, 31).toDate().getTime(), loginData.getPointStart());
+    assertEquals(7L * 24L * 60L * 60L * 1000L, loginData.getPointInterval());
+    assertEquals(2, loginData.getData().size());
+    assertEquals(120, (int) loginData.getData().get(0));
+    assertEquals(120, (int) loginData.getData().get(1));
+    assertEquals(240, loginData.getTotal());
+  }
+
+  @Test
+  public void getLoginsPerMonth() {
+    LocalDate start = new LocalDate(2012, 12, 15);
+    LocalDate end = new LocalDate(2013, 1, 12);
+    Response response = cruncherResource.getLoginsPerInterval(start.toDate().getTime(), end.toDate().getTime(), "idp1", "sp1", "month", false);
+    List<LoginData> result = (List<LoginData>) response.getEntity();
+
+    assertEquals(1, result.size());
+    LoginData loginData = result.get(0);
+    assertEquals(new LocalDate(2012, 12, 1).toDate().getTime(), loginData.getPointStart());
+    assertEquals(2, loginData.getData().size());
+    assertEquals(0, (int) loginData.getData().get(0));
+    assertEquals(240, (int) loginData.getData().get(1));
+  }
+
+  @Test
+  public void aggregatorMaintainsRollups() {
+    aggregator.run();
+    LocalDate start = new LocalDate(2012, 4, 1);
+    Response response = cruncherResource.getLoginsPerInterval(start.toDate().getTime(), start.toDate().getTime(), "idp2", "sp1", "month", false);
+    List<LoginData> result = (List<LoginData>) response.getEntity();
+
+    assertEquals(1, result.size());
+    assertEquals(3, result.get(0).getTotal());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testIllegalInterval() {
+    cruncherResource.getLoginsPerInterval(0L, 0L, null, null, "year", false);
+  }
+
   @Test
   public void getActiveServices() {
     aggregator.run();
-    Response response = cruncherResource.getRecentLoginsForUser("idp2:user_1", "idp2");
+    Response response = cruncherResource.getRecentLoginsForUser("idp2:user_1", "idp2", null, null);
     List<SpStatistic> result = (List<SpStatistic>) response.getEntity();
     assertNotNull(result);
     assertEquals(2, result.size());
@@ -147,13 +223,49 @@ public class CruncherResourceTest {
     }
   }
 
+  @Test
+  public void getActiveServicesPerPage() {
+    aggregator.run();
+    Response response = cruncherResource.getRecentLoginsForUser("idp2:user_1", "idp2", 1, null);
+    SpStatisticPage first = (SpStatisticPage) response.getEntity();
+    assertEquals(1, first.getSpStatistics().size());
+    assertNotNull(first.getNextCursor());
+
+    response = cruncherResource.getRecentLoginsForUser("idp2:user_1", "idp2", 1, first.getNextCursor());
+    SpStatisticPage second = (SpStatisticPage) response.getEntity();
+    assertEquals(1, second.getSpStatistics().size());
+    assertNull(second.getNextCursor());
+    assertTrue(first.getSpStatistics().get(0).getEntryTime() >= second.getSpStatistics().get(0).getEntryTime());
+    assertFalse(first.getSpStatistics().get(0).getSpEntityId().equals(second.getSpStatistics().get(0).getSpEntityId()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void getActiveServicesWithInvalidCursor() {
+    cruncherResource.getRecentLoginsForUser("idp2:user_1", "idp2", 1, "not-a-cursor");
+  }
+
+  @Test
+  public void postLoginEvents() {
+    Response response = cruncherResource.postLoginEvents(Arrays.asList(
+        new LoginEvent(System.currentTimeMillis(), "pushed-user", "idp1", "idp1_name", "sp1", "sp1_name")));
+    assertEquals(Response.Status.ACCEPTED.getStatusCode(), response.getStatus());
+    liveLogins.flush();
+    assertEquals(1, cruncherJdbcTemplate.queryForInt("select count(*) from live_log_logins"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void postLoginEventsWithoutUser() {
+    cruncherResource.postLoginEvents(Arrays.asList(
+        new LoginEvent(System.currentTimeMillis(), null, "idp1", "idp1_name", "sp1", "sp1_name")));
+  }
+
   @Test
   public void testDifferentResultsForSameSpWhenRetrievedWithExplcitSpParameterAndNot() throws IOException {
     LocalDate start = new LocalDate(1999, 1, 10);
     LocalDate end = new LocalDate(2999, 1, 20);
 
     Response response = cruncherResource.getLoginsPerInterval(start.toDate().getTime(),
-            end.toDate().getTime(), null, null);
+            end.toDate().getTime(), null, null, null, false);
 
     List<LoginData> loginData = (List<LoginData>) response.getEntity();
 
@@ -166,6 +278,33 @@ public class CruncherResourceTest {
     }
   }
 
+  @Test
+  public void streamLogins() throws IOException {
+    LocalDate start = new LocalDate(1999, 1, 10);
+    LocalDate end = new LocalDate(2999, 1, 20);
+
+    List<LoginData> expected = (List<LoginData>) cruncherResource.getLoginsPerInterval(start.toDate().getTime(),
+        end.toDate().getTime(), null, null, null, false).getEntity();
+    StreamingOutput output = (StreamingOutput) cruncherResource.getLoginsPerInterval(start.toDate().getTime(),
+        end.toDate().getTime(), null, null, null, true).getEntity();
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+    output.write(json);
+    LoginData[] streamed = new ObjectMapper().readValue(json.toByteArray(), LoginData[].class);
+
+    assertEquals(expected.size(), streamed.length);
+    Map<String, LoginData> expectedBySeries = new HashMap<String, LoginData>();
+    for (LoginData data : expected) {
+      expectedBySeries.put(data.getIdpEntityId() + "!" + data.getSpEntityId(), data);
+    }
+    for (LoginData data : streamed) {
+      LoginData match = expectedBySeries.get(data.getIdpEntityId() + "!" + data.getSpEntityId());
+      assertNotNull(match);
+      assertEquals(match.getTotal(), data.getTotal());
+      assertEquals(match.getData(), data.getData());
+      assertEquals(match.getPointStart(), data.getPointStart());
+    }
+  }
+
   private List<LoginData> sPsPerIdp(String iDP, List<LoginData> loginData) {
     List<LoginData> result = new ArrayList<LoginData>();
     for (LoginData data : loginData) {
@@ -188,7 +327,7 @@ public class CruncherResourceTest {
     String spId = loginData.getSpEntityId();
 
     Response response = cruncherResource.getLoginsPerInterval(start.toDate().getTime(),
-            end.toDate().getTime(), idp, spId);
+            end.toDate().getTime(), idp, spId, null, false);
 
     List<LoginData> result = (List<LoginData>) response.getEntity();
     Assert.assertEquals(1, result.size());
@@ -218,4 +357,52 @@ public class CruncherResourceTest {
     assertEquals(120, stats.getTotalLogins());
     assertEquals(new Long(120), stats.getInstitutionLogins().get("mock-institution-id"));    
   }
+
+  @Test
+  public void getVersStatisticsBatch() throws IOException {
+    cruncherJdbcTemplate.update("insert into user_unique_logins (sp_id, idp_id, entrycount, timespan, month, year) " +
+        "select sp.id, idp.id, 7, 12, 1, 2013 from entity sp, entity idp where sp.entityid = 'sp1' and idp.entityid = 'idp1'");
+    StreamingOutput output = (StreamingOutput) cruncherResource.getVersStatisticsBatch(12, 2012, 2, 2013,
+        Arrays.asList("sp1", "sp2", "unknown-sp")).getEntity();
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+    output.write(json);
+    VersStatistic[] result = new ObjectMapper().readValue(json.toByteArray(), VersStatistic[].class);
+
+    assertEquals(2, result.length);
+    for (VersStatistic stats : result) {
+      assertEquals(Integer.valueOf(1), stats.getMonth());
+      assertEquals(Integer.valueOf(2013), stats.getYear());
+      VersStatistic single = (VersStatistic) cruncherResource.getVersStatistics(1, 2013, stats.getSpEntityId()).getEntity();
+      assertEquals(single.getTotalLogins(), stats.getTotalLogins());
+      assertEquals(single.getInstitutionLogins(), stats.getInstitutionLogins());
+      assertEquals(single.getTotalUniqueLogins(), stats.getTotalUniqueLogins());
+      assertEquals(stats.getSpEntityId().equals("sp1") ? 7 : 0, stats.getTotalUniqueLogins());
+    }
+  }
+
+  @Test
+  public void getVersStatisticsBatchForAllSps() throws IOException {
+    StreamingOutput output = (StreamingOutput) cruncherResource.getVersStatisticsBatch(1, 2013, 1, 2013,
+        Collections.<String>emptyList()).getEntity();
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+    output.write(json);
+    VersStatistic[] result = new ObjectMapper().readValue(json.toByteArray(), VersStatistic[].class);
+
+    assertEquals(2, result.length);
+    for (VersStatistic stats : result) {
+      VersStatistic single = (VersStatistic) cruncherResource.getVersStatistics(1, 2013, stats.getSpEntityId()).getEntity();
+      assertEquals(single.getTotalLogins(), stats.getTotalLogins());
+    }
+  }
+
+  @Test
+  public void cacheKeysOfDifferentQueriesDiffer() {
+    LocalDate day = new LocalDate(2013, 1, 1);
+    assertFalse(CruncherResource.cacheKey("logins", day, day, "idp1!", "sp1").equals(
+        CruncherResource.cacheKey("logins", day, day, "idp1", "!sp1")));
+    assertFalse(CruncherResource.cacheKey("logins", day, day, "idp1", null).equals(
+        CruncherResource.cacheKey("logins", day, day, "idp1", "")));
+    assertEquals(CruncherResource.cacheKey("logins", day, day, "idp1", null),
+        CruncherResource.cacheKey("logins", new LocalDate(2013, 1, 1), day, "idp1", null));
+  }
 }
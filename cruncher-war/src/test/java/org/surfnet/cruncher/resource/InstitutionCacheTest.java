@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+import java.util.Map;
+
+import nl.surfnet.coin.janus.domain.EntityMetadata;
+
+import org.junit.Test;
+import org.surfnet.cruncher.util.JanusRestClientMock;
+
+public class InstitutionCacheTest {
+
+  private final UnreliableJanus janus = new UnreliableJanus();
+
+  @Test
+  public void loadsOnFirstUse() {
+    InstitutionCache cache = new InstitutionCache(janus, 60000L);
+    Map<String, String> institutionIds = cache.getInstitutionIds();
+
+    assertFalse(institutionIds.isEmpty());
+    assertEquals(1, janus.calls);
+    assertSame(institutionIds, cache.getInstitutionIds());
+    assertEquals(1, janus.calls);
+    assertNotNull(cache.getLastRefresh());
+  }
+
+  @Test
+  public void servesStaleWhenJanusIsDown() {
+    InstitutionCache cache = new InstitutionCache(janus, 60000L);
+    Map<String, String> institutionIds = cache.getInstitutionIds();
+    janus.down = true;
+    cache.refresh();
+
+    assertSame(institutionIds, cache.getInstitutionIds());
+    assertEquals(1, cache.getRefreshFailures());
+  }
+
+  @Test
+  public void manualRefresh() {
+    InstitutionCache cache = new InstitutionCache(janus, 60000L);
+    Map<String, String> institutionIds = cache.getInstitutionIds();
+    cache.refresh();
+
+    assertEquals(2, janus.calls);
+    assertEquals(institutionIds, cache.getInstitutionIds());
+  }
+
+  @Test
+  public void revalidatesInBackground() throws InterruptedException {
+    InstitutionCache cache = new InstitutionCache(janus, 0L);
+    Map<String, String> institutionIds = cache.getInstitutionIds();
+    Thread.sleep(5L);
+    janus.down = true;
+
+    assertSame(institutionIds, cache.getInstitutionIds());
+    cache.shutdown();
+  }
+
+  private static class UnreliableJanus extends JanusRestClientMock {
+    private volatile boolean down;
+    private volatile int calls;
+
+    @Override
+    public List<EntityMetadata> getIdpList() {
+      calls += 1;
+      if (down) {
+        throw new RuntimeException("janus is down");
+      }
+      return super.getIdpList();
+    }
+  }
+}
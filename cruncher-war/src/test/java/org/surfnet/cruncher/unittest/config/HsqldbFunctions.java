@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.surfnet.cruncher.unittest.config;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Java routines of the test database, for the functions HSQLDB lacks and the
+ * MySQL migrations use. Registered with CREATE FUNCTION in the migrations.
+ */
+public final class HsqldbFunctions {
+
+  private HsqldbFunctions() {
+  }
+
+  /**
+   * The SHA-1 of the UTF-8 bytes, like UNHEX(SHA1(value)) in MySQL
+   */
+  public static byte[] sha1(String value) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+    return value == null ? null : MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+  }
+}
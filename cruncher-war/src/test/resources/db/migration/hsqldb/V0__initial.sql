@@ -94,66 +94,66 @@ INSERT INTO log_logins (loginstamp, userid, spentityid, idpentityid)
   
 
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-01', 'sp1', 'sp1_name', 'idp1', 'idp1_name', 20, 1);
+  VALUES('2013-01-01', 'sp1', 'sp1_name', 'idp1', 'idp1_name', 20, '01');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-02', 'sp1', 'sp1_name','idp1','idp1_name', 20, 2);
+  VALUES('2013-01-02', 'sp1', 'sp1_name','idp1','idp1_name', 20, '02');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-03', 'sp1', 'sp1_name','idp1','idp1_name', 20, 3);
+  VALUES('2013-01-03', 'sp1', 'sp1_name','idp1','idp1_name', 20, '03');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-04', 'sp1', 'sp1_name','idp1','idp1_name', 20, 4);
+  VALUES('2013-01-04', 'sp1', 'sp1_name','idp1','idp1_name', 20, '04');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-05', 'sp1', 'sp1_name','idp1','idp1_name', 20, 5);
+  VALUES('2013-01-05', 'sp1', 'sp1_name','idp1','idp1_name', 20, '05');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-06', 'sp1', 'sp1_name','idp1','idp1_name', 20, 6);
+  VALUES('2013-01-06', 'sp1', 'sp1_name','idp1','idp1_name', 20, '06');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-07', 'sp1', 'sp1_name','idp1','idp1_name', 20, 7);
+  VALUES('2013-01-07', 'sp1', 'sp1_name','idp1','idp1_name', 20, '07');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-08', 'sp1', 'sp1_name','idp1','idp1_name', 20, 8);
+  VALUES('2013-01-08', 'sp1', 'sp1_name','idp1','idp1_name', 20, '08');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-09', 'sp1', 'sp1_name','idp1','idp1_name', 20, 9);
+  VALUES('2013-01-09', 'sp1', 'sp1_name','idp1','idp1_name', 20, '09');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-10', 'sp1', 'sp1_name','idp1','idp1_name', 20, 10);
+  VALUES('2013-01-10', 'sp1', 'sp1_name','idp1','idp1_name', 20, '10');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-11', 'sp1', 'sp1_name','idp1','idp1_name', 20, 11);
+  VALUES('2013-01-11', 'sp1', 'sp1_name','idp1','idp1_name', 20, '11');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-12', 'sp1', 'sp1_name','idp1','idp1_name', 20, 12);
+  VALUES('2013-01-12', 'sp1', 'sp1_name','idp1','idp1_name', 20, '12');
 
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-01', 'sp2', 'sp2_name','idp1','idp1_name', 20, 13);
+  VALUES('2013-01-01', 'sp2', 'sp2_name','idp1','idp1_name', 20, '13');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-02', 'sp2', 'sp2_name','idp1','idp1_name', 20, 14);
+  VALUES('2013-01-02', 'sp2', 'sp2_name','idp1','idp1_name', 20, '14');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-03', 'sp2', 'sp2_name','idp1','idp1_name', 20, 15);
+  VALUES('2013-01-03', 'sp2', 'sp2_name','idp1','idp1_name', 20, '15');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-04', 'sp2', 'sp2_name','idp1','idp1_name', 20, 16);
+  VALUES('2013-01-04', 'sp2', 'sp2_name','idp1','idp1_name', 20, '16');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-05', 'sp2', 'sp2_name','idp1', 'idp1_name',20, 17);
+  VALUES('2013-01-05', 'sp2', 'sp2_name','idp1', 'idp1_name',20, '17');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-06', 'sp2', 'sp2_name','idp1','idp1_name', 20, 18);
+  VALUES('2013-01-06', 'sp2', 'sp2_name','idp1','idp1_name', 20, '18');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-07', 'sp1', 'sp1_name','idp2','idp2_name', 20, 19);
+  VALUES('2013-01-07', 'sp1', 'sp1_name','idp2','idp2_name', 20, '19');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-08', 'sp1', 'sp1_name','idp2','idp2_name', 20, 20);
+  VALUES('2013-01-08', 'sp1', 'sp1_name','idp2','idp2_name', 20, '20');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-09', 'sp1', 'sp1_name','idp2','idp2_name', 20, 21);
+  VALUES('2013-01-09', 'sp1', 'sp1_name','idp2','idp2_name', 20, '21');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-10', 'sp1', 'sp1_name','idp2','idp2_name', 20, 22);
+  VALUES('2013-01-10', 'sp1', 'sp1_name','idp2','idp2_name', 20, '22');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-11', 'sp1', 'sp1_name','idp2','idp2_name', 20, 23);
+  VALUES('2013-01-11', 'sp1', 'sp1_name','idp2','idp2_name', 20, '23');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-12', 'sp1', 'sp1_name','idp2','idp2_name', 20, 24);
+  VALUES('2013-01-12', 'sp1', 'sp1_name','idp2','idp2_name', 20, '24');
 
 -- This is dirty as we insert rows with the same date, sp and idp (which in real life should not happen)
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-12', 'sp1', 'sp1_name','idp2','idp2_name', 10, 25);
+  VALUES('2013-01-12', 'sp1', 'sp1_name','idp2','idp2_name', 10, '25');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2013-01-12', 'sp1', 'sp1_name','idp2','idp2_name', 15, 26);
+  VALUES('2013-01-12', 'sp1', 'sp1_name','idp2','idp2_name', 15, '26');
 INSERT INTO aggregated_log_logins (entryday, spentityid, spentityname, idpentityid, idpentityname, entrycount, datespidphash)
-  VALUES('2014-01-12', 'sp1', 'sp1_name','idp2','idp2_name', 10, 27);
+  VALUES('2014-01-12', 'sp1', 'sp1_name','idp2','idp2_name', 10, '27');
 
 
 -- insert user log logins
 INSERT INTO user_log_logins (loginstamp, userid, spentityid, idpentityid, usersphash)
-  VALUES ('2012-01-01 01:00:00', 'user1', 'sp1', 'idp1', 'user1sp1idp1');
+  VALUES ('2012-01-01 01:00:00', 'user1', 'sp1', 'idp1', 'a1');
 INSERT INTO user_log_logins (loginstamp, userid, spentityid, idpentityid, usersphash)
-  VALUES ('2012-01-01 01:00:00', 'user2', 'sp1', 'idp1', 'user2sp1idp1');
\ No newline at end of file
+  VALUES ('2012-01-01 01:00:00', 'user2', 'sp1', 'idp1', 'a2');
\ No newline at end of file
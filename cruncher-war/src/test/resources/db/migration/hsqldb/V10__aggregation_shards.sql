@@ -0,0 +1,10 @@
+CREATE TABLE aggregation_shard (
+  shard integer NOT NULL,
+  shards integer NOT NULL,
+  checkpoint bigint NOT NULL,
+  owner varchar(255) DEFAULT NULL,
+  leaseuntil timestamp DEFAULT NULL,
+  PRIMARY KEY (shard)
+);
+
+ALTER TABLE aggregate_meta_data DROP COLUMN active;
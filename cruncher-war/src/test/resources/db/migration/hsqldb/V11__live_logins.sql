@@ -0,0 +1,11 @@
+CREATE TABLE live_log_logins (
+  loginminute timestamp NOT NULL,
+  idp_id integer NOT NULL,
+  sp_id integer NOT NULL,
+  idpentityname varchar(1000) DEFAULT NULL,
+  spentityname varchar(1000) DEFAULT NULL,
+  entrycount integer NOT NULL,
+  PRIMARY KEY (loginminute, idp_id, sp_id)
+);
+
+ALTER TABLE aggregate_meta_data ADD COLUMN aggregatestamp timestamp DEFAULT NULL;
@@ -0,0 +1,8 @@
+CREATE FUNCTION sha1(v varchar(1000)) RETURNS binary(20)
+  LANGUAGE JAVA DETERMINISTIC NO SQL
+  EXTERNAL NAME 'CLASSPATH:org.surfnet.cruncher.unittest.config.HsqldbFunctions.sha1';
+
+ALTER TABLE entity ADD COLUMN entityhash binary(20);
+UPDATE entity SET entityhash = sha1(entityid);
+ALTER TABLE entity ALTER COLUMN entityhash SET NOT NULL;
+ALTER TABLE entity ADD UNIQUE (entityhash);
@@ -0,0 +1,5 @@
+CREATE TABLE unique_logins_sketch_month (
+  year integer NOT NULL,
+  month integer NOT NULL,
+  PRIMARY KEY (year, month)
+);
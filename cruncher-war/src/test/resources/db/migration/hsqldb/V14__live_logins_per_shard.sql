@@ -0,0 +1,4 @@
+ALTER TABLE aggregation_shard ADD COLUMN checkpointstamp timestamp DEFAULT NULL;
+
+DELETE FROM live_log_logins;
+ALTER TABLE live_log_logins ADD COLUMN shard integer DEFAULT 0 NOT NULL;
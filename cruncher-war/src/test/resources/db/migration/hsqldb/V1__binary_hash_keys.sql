@@ -0,0 +1,13 @@
+ALTER TABLE aggregated_log_logins ADD COLUMN datespidphash_bin binary(20);
+UPDATE aggregated_log_logins SET datespidphash_bin = HEXTORAW(datespidphash);
+ALTER TABLE aggregated_log_logins DROP COLUMN datespidphash CASCADE;
+ALTER TABLE aggregated_log_logins ALTER COLUMN datespidphash_bin RENAME TO datespidphash;
+ALTER TABLE aggregated_log_logins ALTER COLUMN datespidphash SET NOT NULL;
+ALTER TABLE aggregated_log_logins ADD UNIQUE (datespidphash);
+
+ALTER TABLE user_log_logins ADD COLUMN usersphash_bin binary(20);
+UPDATE user_log_logins SET usersphash_bin = HEXTORAW(usersphash);
+ALTER TABLE user_log_logins DROP COLUMN usersphash CASCADE;
+ALTER TABLE user_log_logins ALTER COLUMN usersphash_bin RENAME TO usersphash;
+ALTER TABLE user_log_logins ALTER COLUMN usersphash SET NOT NULL;
+ALTER TABLE user_log_logins ADD UNIQUE (usersphash);
@@ -0,0 +1,48 @@
+CREATE TABLE entity (
+  id integer generated by default as identity (start with 1),
+  entityid varchar(1000) NOT NULL,
+  PRIMARY KEY (id),
+  UNIQUE (entityid)
+);
+
+INSERT INTO entity (entityid)
+  SELECT spentityid FROM aggregated_log_logins WHERE spentityid IS NOT NULL
+  UNION SELECT idpentityid FROM aggregated_log_logins WHERE idpentityid IS NOT NULL
+  UNION SELECT spentityid FROM user_log_logins WHERE spentityid IS NOT NULL
+  UNION SELECT idpentityid FROM user_log_logins WHERE idpentityid IS NOT NULL
+  UNION SELECT spentityid FROM user_unique_logins WHERE spentityid IS NOT NULL
+  UNION SELECT idpentityid FROM user_unique_logins WHERE idpentityid IS NOT NULL
+  UNION SELECT spentityid FROM user_unique_logins_cache WHERE spentityid IS NOT NULL
+  UNION SELECT idpentityid FROM user_unique_logins_cache WHERE idpentityid IS NOT NULL;
+
+ALTER TABLE aggregated_log_logins ADD COLUMN sp_id integer;
+ALTER TABLE aggregated_log_logins ADD COLUMN idp_id integer;
+UPDATE aggregated_log_logins SET
+  sp_id = (SELECT id FROM entity WHERE entityid = spentityid),
+  idp_id = (SELECT id FROM entity WHERE entityid = idpentityid);
+ALTER TABLE aggregated_log_logins DROP COLUMN spentityid;
+ALTER TABLE aggregated_log_logins DROP COLUMN idpentityid;
+
+ALTER TABLE user_log_logins ADD COLUMN sp_id integer;
+ALTER TABLE user_log_logins ADD COLUMN idp_id integer;
+UPDATE user_log_logins SET
+  sp_id = (SELECT id FROM entity WHERE entityid = spentityid),
+  idp_id = (SELECT id FROM entity WHERE entityid = idpentityid);
+ALTER TABLE user_log_logins DROP COLUMN spentityid;
+ALTER TABLE user_log_logins DROP COLUMN idpentityid;
+
+ALTER TABLE user_unique_logins ADD COLUMN sp_id integer;
+ALTER TABLE user_unique_logins ADD COLUMN idp_id integer;
+UPDATE user_unique_logins SET
+  sp_id = (SELECT id FROM entity WHERE entityid = spentityid),
+  idp_id = (SELECT id FROM entity WHERE entityid = idpentityid);
+ALTER TABLE user_unique_logins DROP COLUMN spentityid;
+ALTER TABLE user_unique_logins DROP COLUMN idpentityid;
+
+ALTER TABLE user_unique_logins_cache ADD COLUMN sp_id integer;
+ALTER TABLE user_unique_logins_cache ADD COLUMN idp_id integer;
+UPDATE user_unique_logins_cache SET
+  sp_id = (SELECT id FROM entity WHERE entityid = spentityid),
+  idp_id = (SELECT id FROM entity WHERE entityid = idpentityid);
+ALTER TABLE user_unique_logins_cache DROP COLUMN spentityid;
+ALTER TABLE user_unique_logins_cache DROP COLUMN idpentityid;
@@ -0,0 +1,24 @@
+CREATE TABLE aggregated_log_logins_rollup (
+  timespan integer NOT NULL,
+  entryday date NOT NULL,
+  sp_id integer,
+  idp_id integer,
+  spentityname varchar(1000) DEFAULT NULL,
+  idpentityname varchar(1000) DEFAULT NULL,
+  entrycount bigint NOT NULL,
+  id bigint generated by default as identity (start with 1),
+  PRIMARY KEY (id),
+  UNIQUE (timespan, entryday, sp_id, idp_id)
+);
+
+INSERT INTO aggregated_log_logins_rollup (timespan, entryday, sp_id, idp_id, spentityname, idpentityname, entrycount)
+  SELECT 52, weekstart, sp_id, idp_id, MAX(spentityname), MAX(idpentityname), SUM(entrycount)
+  FROM (SELECT DATEADD('day', -MOD(DAYOFWEEK(entryday) + 5, 7), entryday) AS weekstart, sp_id, idp_id,
+      spentityname, idpentityname, entrycount FROM aggregated_log_logins) days
+  GROUP BY weekstart, sp_id, idp_id;
+
+INSERT INTO aggregated_log_logins_rollup (timespan, entryday, sp_id, idp_id, spentityname, idpentityname, entrycount)
+  SELECT 12, monthstart, sp_id, idp_id, MAX(spentityname), MAX(idpentityname), SUM(entrycount)
+  FROM (SELECT DATEADD('day', 1 - DAYOFMONTH(entryday), entryday) AS monthstart, sp_id, idp_id,
+      spentityname, idpentityname, entrycount FROM aggregated_log_logins) days
+  GROUP BY monthstart, sp_id, idp_id;
@@ -0,0 +1,4 @@
+CREATE INDEX idp_sp_day ON aggregated_log_logins (idp_id, sp_id, entryday);
+CREATE INDEX sp_idp_day ON aggregated_log_logins (sp_id, idp_id, entryday);
+CREATE INDEX timespan_idp_sp_day ON aggregated_log_logins_rollup (timespan, idp_id, sp_id, entryday);
+CREATE INDEX timespan_sp_idp_day ON aggregated_log_logins_rollup (timespan, sp_id, idp_id, entryday);
@@ -0,0 +1 @@
+CREATE INDEX timespan_year_month_sp ON user_unique_logins (timespan, year, month, sp_id);
@@ -0,0 +1,10 @@
+CREATE TABLE user_unique_sketches (
+  year integer NOT NULL,
+  month integer NOT NULL,
+  sp_id integer NOT NULL,
+  idp_id integer NOT NULL,
+  sketch varbinary(4098) NOT NULL,
+  id bigint generated by default as identity (start with 1),
+  PRIMARY KEY (id),
+  UNIQUE (year, month, sp_id, idp_id)
+);
@@ -0,0 +1,12 @@
+DROP TABLE user_unique_logins_cache;
+CREATE TABLE user_unique_logins_cache (
+  uniquehash binary(20) NOT NULL,
+  sp_id integer NOT NULL,
+  idp_id integer NOT NULL,
+  timespan integer NOT NULL,
+  month integer DEFAULT NULL,
+  year integer DEFAULT NULL,
+  id bigint generated by default as identity (start with 1),
+  PRIMARY KEY (id),
+  UNIQUE (uniquehash)
+);
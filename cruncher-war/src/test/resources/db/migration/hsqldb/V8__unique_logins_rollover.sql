@@ -0,0 +1,10 @@
+CREATE INDEX year_month_id ON user_unique_logins_cache (year, month, id);
+
+CREATE TABLE unique_logins_rollover (
+  year integer NOT NULL,
+  month integer NOT NULL,
+  lastid bigint NOT NULL,
+  moved bigint NOT NULL,
+  updated timestamp NOT NULL,
+  PRIMARY KEY (year, month)
+);
@@ -0,0 +1 @@
+CREATE INDEX userid_idp_stamp ON user_log_logins (userid, idp_id, loginstamp, id);